@@ -0,0 +1,164 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import loci.formats.gui.AWTImageTools;
+
+/**
+ * Compare {@link OmeroTiffDecoder} with the previous decoding of microservice tiles 
+ * (ImageIO followed by {@link AWTImageTools#getPixels(BufferedImage)}), for a single channel tile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OmeroTiffDecoderBenchmark {
+
+	private static final int TILE_SIZE = 512;
+
+	@Param({"UINT8", "UINT16", "FLOAT32"})
+	public String pixelType;
+
+	@Param({"None", "Deflate"})
+	public String compression;
+
+	private int dataType;
+	private byte[] tiff;
+
+	@Setup
+	public void setup() throws IOException {
+		switch (pixelType) {
+		case "UINT8":
+			dataType = DataBuffer.TYPE_BYTE;
+			break;
+		case "UINT16":
+			dataType = DataBuffer.TYPE_USHORT;
+			break;
+		default:
+			dataType = DataBuffer.TYPE_FLOAT;
+		}
+		tiff = writeTiff(dataType, "None".equals(compression) ? null : compression);
+	}
+
+	/**
+	 * Decode the tile straight into the bank of a new buffer.
+	 */
+	@Benchmark
+	public DataBuffer decoder() throws IOException {
+		DataBuffer buffer;
+		if (dataType == DataBuffer.TYPE_BYTE)
+			buffer = new DataBufferByte(TILE_SIZE * TILE_SIZE, 1);
+		else if (dataType == DataBuffer.TYPE_USHORT)
+			buffer = new DataBufferUShort(TILE_SIZE * TILE_SIZE, 1);
+		else
+			buffer = new DataBufferFloat(TILE_SIZE * TILE_SIZE, 1);
+		if (!OmeroTiffDecoder.decode(tiff, buffer, 0, TILE_SIZE, TILE_SIZE))
+			throw new IllegalStateException("Tile not supported by the decoder");
+		return buffer;
+	}
+
+	/**
+	 * Decode the tile with ImageIO, then copy its pixels into a new buffer.
+	 */
+	@Benchmark
+	public DataBuffer imageIO() throws IOException {
+		BufferedImage img = ImageIO.read(new ByteArrayInputStream(tiff));
+		Object pixels = AWTImageTools.getPixels(img);
+		if (dataType == DataBuffer.TYPE_BYTE)
+			return new DataBufferByte((byte[][])pixels, TILE_SIZE * TILE_SIZE);
+		else if (dataType == DataBuffer.TYPE_USHORT)
+			return new DataBufferUShort((short[][])pixels, TILE_SIZE * TILE_SIZE);
+		return new DataBufferFloat((float[][])pixels, TILE_SIZE * TILE_SIZE);
+	}
+
+	/**
+	 * Encode a single channel tile of random pixels as a TIFF, as the microservice would.
+	 */
+	private static byte[] writeTiff(int dataType, String compression) throws IOException {
+		var colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+				false, false, Transparency.OPAQUE, dataType);
+		WritableRaster raster = colorModel.createCompatibleWritableRaster(TILE_SIZE, TILE_SIZE);
+		var random = new Random(dataType);
+		for (int y = 0; y < TILE_SIZE; y++) {
+			for (int x = 0; x < TILE_SIZE; x++) {
+				if (dataType == DataBuffer.TYPE_FLOAT)
+					raster.setSample(x, y, 0, (float)random.nextGaussian() * 1000f);
+				else
+					raster.setSample(x, y, 0, random.nextInt(dataType == DataBuffer.TYPE_BYTE ? 256 : 65536));
+			}
+		}
+		var img = new BufferedImage(colorModel, raster, false, null);
+
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if (compression == null) {
+			param.setCompressionMode(ImageWriteParam.MODE_DISABLED);
+		} else {
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionType(compression);
+		}
+		var bytes = new ByteArrayOutputStream();
+		try (ImageOutputStream stream = ImageIO.createImageOutputStream(bytes)) {
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(img, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return bytes.toByteArray();
+	}
+
+}
@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+
+import qupath.lib.images.servers.omero.OmeroAnnotations.OmeroAnnotationType;
+import qupath.lib.images.servers.omero.OmeroObjects.OmeroObject;
+import qupath.lib.images.servers.omero.OmeroRequestLimiter.Priority;
+
+/**
+ * Cache of the annotations (tags, key-value pairs, attachments, comments and ratings) of the objects of
+ * an OMERO server, shared by all the browsers of a client.
+ * <p>
+ * All the categories of annotations of an object are requested concurrently, and kept for
+ * {@link #TTL_MILLIS} after they are received. Requests can be cancelled through the returned futures:
+ * the requests sent to the server are aborted once all the futures waiting for them are cancelled.
+ */
+class OmeroAnnotationCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(OmeroAnnotationCache.class);
+
+	/**
+	 * Categories of annotations requested for each object.
+	 */
+	static final List<OmeroAnnotationType> CATEGORIES = List.of(
+			OmeroAnnotationType.TAG,
+			OmeroAnnotationType.MAP,
+			OmeroAnnotationType.ATTACHMENT,
+			OmeroAnnotationType.COMMENT,
+			OmeroAnnotationType.RATING);
+
+	/**
+	 * Time during which the annotations received are returned without requesting them again.
+	 */
+	static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+	private static final int MAX_ENTRIES = 256;
+
+	private final URI serverURI;
+
+	private final Map<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	OmeroAnnotationCache(URI serverURI) {
+		this.serverURI = serverURI;
+	}
+
+	/**
+	 * Return the annotations of all the {@link #CATEGORIES} of the specified object, requesting them from
+	 * the server if they are not cached (or are too old). Categories that could not be read are mapped to null.
+	 * <p>
+	 * Cancelling the returned future does not affect other callers waiting for the same annotations.
+	 * @param obj
+	 * @return future map of the annotations per category
+	 */
+	CompletableFuture<Map<OmeroAnnotationType, OmeroAnnotations>> getAsync(OmeroObject obj) {
+		String key = obj.getType() + "/" + obj.getId();
+		Entry entry;
+		synchronized (this) {
+			entry = cache.get(key);
+			if (entry == null || entry.isExpired()) {
+				entry = new Entry(obj);
+				cache.put(key, entry);
+			}
+			entry.nWaiting++;
+		}
+
+		var future = entry.future.copy();
+		var requested = entry;
+		future.whenComplete((map, e) -> release(key, requested, future.isCancelled()));
+		return future;
+	}
+
+	private synchronized void release(String key, Entry entry, boolean cancelled) {
+		entry.nWaiting--;
+		if (cancelled && entry.nWaiting == 0 && !entry.future.isDone()) {
+			// Nobody is waiting for these annotations anymore
+			entry.cancel();
+			cache.remove(key, entry);
+		}
+	}
+
+	private class Entry {
+
+		private final List<CompletableFuture<?>> requests = new ArrayList<>();
+		private final CompletableFuture<Map<OmeroAnnotationType, OmeroAnnotations>> future;
+		private volatile long completedAt = -1;
+		private volatile boolean incomplete = false;
+		private int nWaiting = 0;
+
+		private Entry(OmeroObject obj) {
+			Map<OmeroAnnotationType, CompletableFuture<OmeroAnnotations>> futures = new EnumMap<>(OmeroAnnotationType.class);
+			for (var category: CATEGORIES) {
+				CompletableFuture<JsonElement> request;
+				try (var scope = OmeroRequestLimiter.withPriority(Priority.ANNOTATION)) {
+					request = OmeroRequests.requestOMEROAnnotationsAsync(serverURI, obj.getId(), obj.getType(), category);
+				}
+				requests.add(request);
+				futures.put(category, request.thenApply(json -> {
+					try {
+						return OmeroAnnotations.getOmeroAnnotations(json.getAsJsonObject());
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}).exceptionally(e -> {
+					if (!request.isCancelled())
+						logger.warn("Could not fetch {} information: {}", category, e.getLocalizedMessage());
+					return null;
+				}));
+			}
+
+			future = CompletableFuture.allOf(futures.values().toArray(CompletableFuture[]::new)).thenApply(v -> {
+				Map<OmeroAnnotationType, OmeroAnnotations> map = new EnumMap<>(OmeroAnnotationType.class);
+				futures.forEach((category, f) -> map.put(category, f.join()));
+				return map;
+			});
+			future.whenComplete((map, e) -> {
+				// Don't keep incomplete annotations, so that they are requested again next time
+				incomplete = map == null || map.containsValue(null);
+				completedAt = System.currentTimeMillis();
+			});
+		}
+
+		private boolean isExpired() {
+			return completedAt >= 0 && (incomplete || System.currentTimeMillis() - completedAt > TTL_MILLIS);
+		}
+
+		private void cancel() {
+			for (var request: requests)
+				request.cancel(true);
+		}
+	}
+
+}
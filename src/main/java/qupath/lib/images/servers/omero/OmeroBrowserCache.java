@@ -0,0 +1,244 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.gui.prefs.PathPrefs;
+
+/**
+ * Persistent on-disk cache of the small resources displayed by the browser of an OMERO server
+ * (image thumbnails and object icons), so that browsing a familiar server starts from disk.
+ * <p>
+ * Each entry is a file named after its key, in a directory per server and user. Entries are served from disk
+ * as they are, and should be revalidated in the background (i.e. requested again and replaced) once
+ * they are older than {@link #REVALIDATE_AFTER_MILLIS}. When the total size of the entries exceeds
+ * the budget, the least recently written entries are deleted.
+ *
+ * @see OmeroPrefs#browserCacheEnabledProperty()
+ */
+class OmeroBrowserCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(OmeroBrowserCache.class);
+
+	/**
+	 * Age after which an entry should be requested again from the server.
+	 */
+	static final long REVALIDATE_AFTER_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	private static final String SUFFIX = ".bin";
+
+	private static final Map<String, OmeroBrowserCache> instances = new HashMap<>();
+
+	/**
+	 * Caches that could not be opened, to avoid trying again for each resource. 
+	 * They are tried again once the cache is disabled and enabled again.
+	 */
+	private static final Set<String> unavailable = new HashSet<>();
+
+	private final Path directory;
+	private long maxBytes;
+
+	/**
+	 * Size of each entry, from the least to the most recently written.
+	 */
+	private final Map<String, Long> index = new LinkedHashMap<>();
+	private long nBytes = 0;
+
+	private OmeroBrowserCache(Path directory, long maxBytes) throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(directory);
+		loadIndex();
+	}
+
+	/**
+	 * Return the browser cache of the server of the specified client (for the user currently logged in, 
+	 * since thumbnails are only visible to the users allowed to see their image), as defined by the 
+	 * preferences of the extension. If the cache is disabled (or cannot be opened), {@code null} is returned.
+	 * @param client
+	 * @return browser cache, or null
+	 */
+	static synchronized OmeroBrowserCache getInstance(OmeroWebClient client) {
+		if (client == null || !OmeroPrefs.browserCacheEnabledProperty().get()) {
+			instances.clear();
+			unavailable.clear();
+			return null;
+		}
+		long maxBytes = Math.max(0, OmeroPrefs.browserCacheSizeMBProperty().get()) * 1024L * 1024L;
+		URI serverURI = client.getServerURI();
+		String name = sanitize(serverURI.getHost() + (serverURI.getPort() < 0 ? "" : "-" + serverURI.getPort()) + "-" + client.getUsername());
+		var instance = instances.get(name);
+		if (instance == null && unavailable.contains(name))
+			return null;
+		try {
+			if (instance == null) {
+				instance = new OmeroBrowserCache(getDirectory(name), maxBytes);
+				instances.put(name, instance);
+			} else
+				instance.setMaxBytes(maxBytes);
+		} catch (IOException e) {
+			// The preference is not changed, as this is not called from the JavaFX application thread
+			logger.warn("Unable to open the OMERO browser cache for {}: {}", serverURI, e.getLocalizedMessage());
+			unavailable.add(name);
+		}
+		return instance;
+	}
+
+	private static Path getDirectory(String name) {
+		String userPath = PathPrefs.getUserPath();
+		if (userPath != null)
+			return Paths.get(userPath, "omero", "browser-cache", name);
+		return Paths.get(System.getProperty("java.io.tmpdir"), "qupath-omero-browser-cache", name);
+	}
+
+	/**
+	 * Return the cached bytes for the specified key, or {@code null} if it is not cached.
+	 * @param key
+	 * @return bytes, or null
+	 */
+	byte[] get(String key) {
+		String name = sanitize(key);
+		synchronized (this) {
+			if (!index.containsKey(name))
+				return null;
+		}
+		try {
+			return Files.readAllBytes(directory.resolve(name + SUFFIX));
+		} catch (NoSuchFileException e) {
+			remove(name);
+		} catch (IOException e) {
+			logger.debug("Unable to read {} from the OMERO browser cache: {}", key, e.getLocalizedMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Return whether the entry with the specified key is old enough to be requested again from the server.
+	 * @param key
+	 * @return true if the entry should be revalidated
+	 */
+	boolean isStale(String key) {
+		try {
+			FileTime time = Files.getLastModifiedTime(directory.resolve(sanitize(key) + SUFFIX));
+			return System.currentTimeMillis() - time.toMillis() > REVALIDATE_AFTER_MILLIS;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Add the specified bytes to the cache, replacing any existing value for the key.
+	 * @param key
+	 * @param bytes
+	 */
+	void put(String key, byte[] bytes) {
+		String name = sanitize(key);
+		Path path = directory.resolve(name + SUFFIX);
+		try {
+			// Write to a temporary file first, so that a partially written entry is never read
+			Path temp = Files.createTempFile(directory, name, ".tmp");
+			Files.write(temp, bytes);
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.debug("Unable to write {} to the OMERO browser cache: {}", key, e.getLocalizedMessage());
+			return;
+		}
+		synchronized (this) {
+			var previous = index.remove(name);
+			if (previous != null)
+				nBytes -= previous;
+			index.put(name, (long)bytes.length);
+			nBytes += bytes.length;
+			evict();
+		}
+	}
+
+	private synchronized void remove(String name) {
+		var size = index.remove(name);
+		if (size != null)
+			nBytes -= size;
+	}
+
+	private synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+		while (nBytes > maxBytes && iterator.hasNext()) {
+			var entry = iterator.next();
+			try {
+				Files.deleteIfExists(directory.resolve(entry.getKey() + SUFFIX));
+			} catch (IOException e) {
+				logger.debug("Unable to delete {}: {}", entry.getKey(), e.getLocalizedMessage());
+			}
+			nBytes -= entry.getValue();
+			iterator.remove();
+		}
+	}
+
+	private void loadIndex() throws IOException {
+		try (var stream = Files.list(directory)) {
+			// Remove the temporary files of entries whose writing was interrupted
+			stream.filter(p -> p.getFileName().toString().endsWith(".tmp")).forEach(p -> p.toFile().delete());
+		}
+		try (var stream = Files.list(directory)) {
+			stream.filter(p -> p.getFileName().toString().endsWith(SUFFIX))
+					.sorted((p1, p2) -> Long.compare(p1.toFile().lastModified(), p2.toFile().lastModified()))
+					.forEach(p -> {
+						String fileName = p.getFileName().toString();
+						long size = p.toFile().length();
+						index.put(fileName.substring(0, fileName.length() - SUFFIX.length()), size);
+						nBytes += size;
+					});
+		}
+		evict();
+		logger.debug("OMERO browser cache opened in {} ({} entries)", directory, index.size());
+	}
+
+	/**
+	 * Return a file name for the specified key.
+	 */
+	private static String sanitize(String key) {
+		return key.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+}
@@ -95,6 +95,7 @@ public class OmeroExtension implements QuPathExtension, GitHubProject {
     	                )
 				);
 		createServerListMenu(qupath, browseServerMenu);
+		OmeroPrefs.installPreferences(qupath);
 	}
 	
 
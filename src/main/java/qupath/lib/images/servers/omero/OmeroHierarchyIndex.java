@@ -0,0 +1,558 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
+
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.servers.omero.OmeroObjects.OmeroObject;
+import qupath.lib.images.servers.omero.OmeroObjects.OmeroObjectType;
+import qupath.lib.images.servers.omero.OmeroObjects.Server;
+import qupath.lib.images.servers.omero.OmeroRequestLimiter.Priority;
+import qupath.lib.io.GsonTools;
+
+/**
+ * Local on-disk index of the hierarchy (projects, datasets and images, with their owners and groups)
+ * of an OMERO server, as seen by one user.
+ * <p>
+ * The index stores the Json of each list of children returned by the JSON API, in a compressed file per list.
+ * Lists read through the index are returned from disk when available (and refreshed in the background when
+ * they are more than a few minutes old), so that expanding the browser's tree does not wait for the server.
+ * <p>
+ * The index is populated by a background crawl of the whole hierarchy, whose lists are requested in parallel.
+ * The crawl is incremental: the lists of projects and datasets are always requested (since the number of children 
+ * they report is needed), but the images of a dataset are only requested again if its number of children changed, 
+ * or if they were indexed more than a day ago.
+ * <p>
+ * The names of the indexed datasets and images are also searchable (see {@link #findByDescendantName(List, String)}), 
+ * so that filtering the browser's tree does not require their lists to be loaded. The names are indexed per list, 
+ * so that storing a list only updates the names of that list.
+ *
+ * @see OmeroPrefs#hierarchyIndexEnabledProperty()
+ */
+class OmeroHierarchyIndex {
+
+	private static final Logger logger = LoggerFactory.getLogger(OmeroHierarchyIndex.class);
+
+	/**
+	 * Age after which a list read from the index is refreshed in the background.
+	 */
+	private static final long REFRESH_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * Age after which a list is requested again by the crawl, even if its number of children is unchanged.
+	 */
+	private static final long RECRAWL_AFTER_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	private static final int N_CRAWLER_THREADS = 4;
+
+	private static final String ENTRIES_FILE = "index.json";
+	private static final String SUFFIX = ".json.gz";
+
+	private static final Map<String, OmeroHierarchyIndex> instances = new HashMap<>();
+
+	/**
+	 * Indexes that could not be opened, to avoid trying again for each list. 
+	 * They are tried again once the index is disabled and enabled again.
+	 */
+	private static final Set<String> unavailable = new HashSet<>();
+
+	private final URI serverURI;
+	private final Path directory;
+	private final Gson gson = new GsonBuilder().registerTypeAdapter(OmeroObject.class, new OmeroObjects.GsonOmeroObjectDeserializer()).setLenient().create();
+
+	/**
+	 * Number of items and time of indexing of each list, by file name.
+	 */
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicBoolean entriesChanged = new AtomicBoolean(false);
+
+	/**
+	 * Names of the indexed datasets and images, per list (by file name). These are read from the index when 
+	 * first searched, and then updated when a list is stored.
+	 */
+	private final Map<String, ListNames> descendantNames = new ConcurrentHashMap<>();
+	private volatile boolean descendantNamesLoaded = false;
+
+	/**
+	 * Lists currently being refreshed in the background.
+	 */
+	private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(N_CRAWLER_THREADS, OmeroRequestLimiter.createThreadFactory("omero-index-crawler", Priority.PREFETCH));
+
+	private OmeroHierarchyIndex(URI serverURI, Path directory) throws IOException {
+		this.serverURI = serverURI;
+		this.directory = directory;
+		Files.createDirectories(directory);
+		loadEntries();
+	}
+
+	/**
+	 * Return the hierarchy index of the server of the specified client (for the user currently logged in),
+	 * as defined by the preferences of the extension. If the index is disabled (or cannot be opened),
+	 * {@code null} is returned.
+	 * @param client
+	 * @return hierarchy index, or null
+	 */
+	static synchronized OmeroHierarchyIndex getInstance(OmeroWebClient client) {
+		if (!OmeroPrefs.hierarchyIndexEnabledProperty().get()) {
+			instances.values().forEach(OmeroHierarchyIndex::close);
+			instances.clear();
+			unavailable.clear();
+			return null;
+		}
+		URI serverURI = client.getServerURI();
+		String name = sanitize(serverURI.getHost() + (serverURI.getPort() < 0 ? "" : "-" + serverURI.getPort()) + "-" + client.getUsername());
+		var instance = instances.get(name);
+		if (instance != null || unavailable.contains(name))
+			return instance;
+		try {
+			instance = new OmeroHierarchyIndex(serverURI, getDirectory(name));
+			instances.put(name, instance);
+		} catch (IOException e) {
+			// The preference is not changed, as this is not called from the JavaFX application thread
+			logger.warn("Unable to open the OMERO hierarchy index of {}: {}", serverURI, e.getLocalizedMessage());
+			unavailable.add(name);
+		}
+		return instance;
+	}
+
+	private static Path getDirectory(String name) {
+		String userPath = PathPrefs.getUserPath();
+		if (userPath != null)
+			return Paths.get(userPath, "omero", "hierarchy-index", name);
+		return Paths.get(System.getProperty("java.io.tmpdir"), "qupath-omero-hierarchy-index", name);
+	}
+
+	/**
+	 * Return the children of the specified object, as {@link OmeroTools#readOmeroObjects(URI, OmeroObject)}
+	 * would, but reading them from the index if they were indexed.
+	 * @param parent
+	 * @return list of OmeroObjects
+	 * @throws IOException
+	 */
+	List<OmeroObject> readOmeroObjects(OmeroObject parent) throws IOException {
+		var type = OmeroTools.getChildType(parent.getType());
+		return parse(readList(type, parent.getType(), parent.getId()), parent);
+	}
+
+	/**
+	 * Return the orphaned datasets of the server, as {@link OmeroTools#readOrphanedDatasets(URI, Server)}
+	 * would, but reading them from the index if they were indexed.
+	 * @param server
+	 * @return list of orphaned datasets
+	 * @throws IOException
+	 */
+	List<OmeroObject> readOrphanedDatasets(Server server) throws IOException {
+		return parse(readList(OmeroObjectType.DATASET, OmeroObjectType.SERVER, -1), server);
+	}
+
+	/**
+	 * Return the objects of the specified list (i.e. projects and orphaned datasets) with an indexed descendant 
+	 * (dataset or image) whose name contains the specified text, ignoring case. 
+	 * Descendants that were not indexed yet are not found.
+	 * <p>
+	 * The names are read from the index the first time they are searched, so this should not be called from 
+	 * the JavaFX application thread. They are then kept up to date as lists are stored.
+	 * @param objects
+	 * @param query
+	 * @return list of the objects with a matching descendant, in the order of the list
+	 */
+	List<OmeroObject> findByDescendantName(List<OmeroObject> objects, String query) {
+		if (query == null || query.isEmpty())
+			return new ArrayList<>();
+		if (!descendantNamesLoaded)
+			loadDescendantNames();
+
+		// The images of a dataset belong to the projects listing this dataset (or to the dataset itself if orphaned)
+		Map<String, Set<String>> projectsByDataset = new HashMap<>();
+		for (var list: descendantNames.values()) {
+			if (list.parentType == OmeroObjectType.PROJECT) {
+				for (var dataset: list.children)
+					projectsByDataset.computeIfAbsent(getKey(OmeroObjectType.DATASET, dataset.id), k -> new HashSet<>()).add(list.parentKey);
+			}
+		}
+
+		Set<String> keys = new HashSet<>();
+		for (var list: descendantNames.values()) {
+			if (list.names.search(query).isEmpty())
+				continue;
+			if (list.parentType == OmeroObjectType.PROJECT)
+				keys.add(list.parentKey);
+			else
+				keys.addAll(projectsByDataset.getOrDefault(list.parentKey, Set.of(list.parentKey)));
+		}
+		return objects.stream()
+				.filter(o -> keys.contains(getKey(o.getType(), o.getId())))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Read the names of the lists of datasets and images reachable from the indexed lists of projects and 
+	 * orphaned datasets. Lists stored in the meantime (whose names are already up to date) are not read.
+	 */
+	private synchronized void loadDescendantNames() {
+		if (descendantNamesLoaded)
+			return;
+		try {
+			for (var project: loadIndexed(getListURL(OmeroObjectType.PROJECT, OmeroObjectType.SERVER, -1))) {
+				for (var dataset: loadNames(OmeroObjectType.DATASET, OmeroObjectType.PROJECT, getId(project)))
+					loadNames(OmeroObjectType.IMAGE, OmeroObjectType.DATASET, dataset.id);
+				// Filtering was cancelled, the other names are read the next time
+				if (Thread.currentThread().isInterrupted())
+					return;
+			}
+			for (var dataset: loadIndexed(getListURL(OmeroObjectType.DATASET, OmeroObjectType.SERVER, -1)))
+				loadNames(OmeroObjectType.IMAGE, OmeroObjectType.DATASET, getId(dataset));
+		} catch (IOException e) {
+			logger.debug("Unable to read the names of the OMERO hierarchy index: {}", e.getLocalizedMessage());
+		}
+		descendantNamesLoaded = true;
+	}
+
+	/**
+	 * Read the names of a list from the index (unless already read), returning the children of the list.
+	 */
+	private List<Child> loadNames(OmeroObjectType type, OmeroObjectType parentType, int parentId) throws IOException {
+		URL url = getListURL(type, parentType, parentId);
+		String name = getFileName(url);
+		var names = descendantNames.get(name);
+		if (names == null) {
+			// A list stored while it was read from disk is more recent
+			descendantNames.putIfAbsent(name, new ListNames(parentType, parentId, loadIndexed(url)));
+			names = descendantNames.get(name);
+		}
+		return names.children;
+	}
+
+	/**
+	 * Update the names of a list that was just stored, if it is a list of datasets of a project or of images of a dataset.
+	 */
+	private void updateNames(String name, OmeroObjectType parentType, int parentId, List<JsonElement> data) {
+		if (parentType == OmeroObjectType.PROJECT || parentType == OmeroObjectType.DATASET)
+			descendantNames.put(name, new ListNames(parentType, parentId, data));
+	}
+
+	/**
+	 * Return a list stored in the index, or an empty list if it was not indexed.
+	 */
+	private List<JsonElement> loadIndexed(URL url) {
+		String name = getFileName(url);
+		if (!entries.containsKey(name))
+			return List.of();
+		var data = load(name);
+		return data == null ? List.of() : data;
+	}
+
+	/**
+	 * Crawl the whole hierarchy of the server in the background, requesting the lists that are not indexed,
+	 * that changed or that are old.
+	 */
+	void crawlAsync() {
+		submit(this::crawl);
+	}
+
+	private void crawl() {
+		try {
+			var projects = fetch(OmeroObjectType.PROJECT, OmeroObjectType.SERVER, -1);
+			var orphanedDatasets = fetch(OmeroObjectType.DATASET, OmeroObjectType.SERVER, -1);
+			for (var project: projects) {
+				submit(() -> {
+					for (var dataset: fetchChildren(project, OmeroObjectType.DATASET, OmeroObjectType.PROJECT))
+						submit(() -> crawlChildren(dataset, OmeroObjectType.IMAGE, OmeroObjectType.DATASET));
+				});
+			}
+			for (var dataset: orphanedDatasets)
+				submit(() -> crawlChildren(dataset, OmeroObjectType.IMAGE, OmeroObjectType.DATASET));
+			logger.debug("Crawling {} projects and {} orphaned datasets of {}", projects.size(), orphanedDatasets.size(), serverURI);
+		} catch (IOException e) {
+			logger.warn("Unable to index {}: {}", serverURI, e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Request the children of the specified object and index them, returning them. 
+	 * This is used for the lists whose children are crawled in turn, since the number of children of each 
+	 * item stored in the index may be out of date (and the changes below them would go unnoticed).
+	 */
+	private List<JsonElement> fetchChildren(JsonElement parent, OmeroObjectType type, OmeroObjectType parentType) {
+		int id = getId(parent);
+		try {
+			return fetch(type, parentType, id);
+		} catch (IOException e) {
+			logger.debug("Unable to index the children of {} {}: {}", parentType, id, e.getLocalizedMessage());
+			return new ArrayList<>();
+		}
+	}
+
+	/**
+	 * Index the children of the specified object if needed, returning them. 
+	 * The number of children of the object must be up to date, i.e. the object must come from a list 
+	 * that was just requested from the server.
+	 */
+	private List<JsonElement> crawlChildren(JsonElement parent, OmeroObjectType type, OmeroObjectType parentType) {
+		var json = parent.getAsJsonObject();
+		int id = json.get("@id").getAsInt();
+		int childCount = json.has("omero:childCount") ? json.get("omero:childCount").getAsInt() : -1;
+		try {
+			String name = getFileName(getListURL(type, parentType, id));
+			var entry = entries.get(name);
+			if (entry != null && entry.count == childCount && System.currentTimeMillis() - entry.time < RECRAWL_AFTER_MILLIS) {
+				var data = load(name);
+				if (data != null)
+					return data;
+			}
+			return fetch(type, parentType, id);
+		} catch (IOException e) {
+			logger.debug("Unable to index the children of {} {}: {}", parentType, id, e.getLocalizedMessage());
+			return new ArrayList<>();
+		}
+	}
+
+	private List<JsonElement> readList(OmeroObjectType type, OmeroObjectType parentType, int parentId) throws IOException {
+		URL url = getListURL(type, parentType, parentId);
+		String name = getFileName(url);
+		var entry = entries.get(name);
+		if (entry != null) {
+			var data = load(name);
+			if (data != null) {
+				if (System.currentTimeMillis() - entry.time > REFRESH_AFTER_MILLIS && refreshing.add(name)) {
+					submit(() -> {
+						try {
+							fetch(type, parentType, parentId);
+						} catch (IOException e) {
+							logger.debug("Unable to refresh {}: {}", url, e.getLocalizedMessage());
+						} finally {
+							refreshing.remove(name);
+						}
+					});
+				}
+				return data;
+			}
+		}
+		return fetch(type, parentType, parentId);
+	}
+
+	/**
+	 * Request the list of the children of the specified type of an object from the server and store it in the index.
+	 */
+	private List<JsonElement> fetch(OmeroObjectType type, OmeroObjectType parentType, int parentId) throws IOException {
+		URL url = getListURL(type, parentType, parentId);
+		var data = OmeroTools.readPaginated(url);
+		String name = getFileName(url);
+		store(name, data);
+		updateNames(name, parentType, parentId, data);
+		return data;
+	}
+
+	private List<OmeroObject> parse(List<JsonElement> data, OmeroObject parent) {
+		List<OmeroObject> list = new ArrayList<>();
+		for (var d: data) {
+			try {
+				var omeroObj = gson.fromJson(d, OmeroObject.class);
+				if (omeroObj != null) {
+					omeroObj.setParent(parent);
+					list.add(omeroObj);
+				}
+			} catch (Exception e) {
+				logger.error("Error parsing OMERO object: " + e.getLocalizedMessage(), e);
+			}
+		}
+		return list;
+	}
+
+	private URL getListURL(OmeroObjectType type, OmeroObjectType parentType, int parentId) throws IOException {
+		return OmeroRequests.getObjectListURL(serverURI.getScheme(), serverURI.getHost(), serverURI.getPort(), type, parentType, parentId);
+	}
+
+	private List<JsonElement> load(String name) {
+		try (var reader = new InputStreamReader(new GZIPInputStream(Files.newInputStream(directory.resolve(name))), StandardCharsets.UTF_8)) {
+			List<JsonElement> list = new ArrayList<>();
+			JsonParser.parseReader(reader).getAsJsonArray().forEach(list::add);
+			return list;
+		} catch (NoSuchFileException e) {
+			entries.remove(name);
+		} catch (Exception e) {
+			logger.debug("Unable to read {} from the OMERO hierarchy index: {}", name, e.getLocalizedMessage());
+		}
+		return null;
+	}
+
+	private void store(String name, List<JsonElement> data) {
+		try {
+			Path temp = Files.createTempFile(directory, "list", ".tmp");
+			try (var writer = new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(temp)), StandardCharsets.UTF_8))) {
+				writer.beginArray();
+				for (var d: data)
+					GsonTools.getInstance().toJson(d, writer);
+				writer.endArray();
+			}
+			Files.move(temp, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.debug("Unable to write {} to the OMERO hierarchy index: {}", name, e.getLocalizedMessage());
+			return;
+		}
+		entries.put(name, new Entry(data.size(), System.currentTimeMillis()));
+		// Save the entries once the current burst of lists is stored
+		if (entriesChanged.compareAndSet(false, true))
+			submit(this::saveEntries);
+	}
+
+	private void loadEntries() {
+		try (var reader = Files.newBufferedReader(directory.resolve(ENTRIES_FILE), StandardCharsets.UTF_8)) {
+			Map<String, Entry> map = GsonTools.getInstance().fromJson(reader, new TypeToken<Map<String, Entry>>() {}.getType());
+			if (map != null)
+				entries.putAll(map);
+		} catch (NoSuchFileException e) {
+			// Nothing indexed yet
+		} catch (Exception e) {
+			logger.debug("Unable to read the OMERO hierarchy index entries: {}", e.getLocalizedMessage());
+		}
+	}
+
+	private void saveEntries() {
+		entriesChanged.set(false);
+		try {
+			Path temp = Files.createTempFile(directory, "index", ".tmp");
+			try (var writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				GsonTools.getInstance().toJson(new HashMap<>(entries), writer);
+			}
+			Files.move(temp, directory.resolve(ENTRIES_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.debug("Unable to save the OMERO hierarchy index entries: {}", e.getLocalizedMessage());
+		}
+	}
+
+	private void submit(Runnable runnable) {
+		if (!pool.isShutdown())
+			pool.submit(runnable);
+	}
+
+	private void close() {
+		pool.shutdownNow();
+	}
+
+	private static String getFileName(URL url) {
+		String file = url.getFile();
+		return UUID.nameUUIDFromBytes(file.getBytes(StandardCharsets.UTF_8)) + SUFFIX;
+	}
+
+	private static String getKey(OmeroObjectType type, int id) {
+		return type + ":" + id;
+	}
+
+	private static int getId(JsonElement element) {
+		return element.getAsJsonObject().get("@id").getAsInt();
+	}
+
+	private static String getName(JsonElement element) {
+		var json = element.getAsJsonObject();
+		return json.has("Name") && !json.get("Name").isJsonNull() ? json.get("Name").getAsString() : null;
+	}
+
+	private static String sanitize(String name) {
+		return name.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+
+	/**
+	 * Names of the children of an indexed list of datasets or images.
+	 */
+	private static class ListNames {
+
+		private final OmeroObjectType parentType;
+		private final String parentKey;
+		private final List<Child> children;
+		private final OmeroNameIndex<Child> names;
+
+		private ListNames(OmeroObjectType parentType, int parentId, List<JsonElement> data) {
+			this.parentType = parentType;
+			this.parentKey = getKey(parentType, parentId);
+			this.children = data.stream()
+					.map(d -> new Child(getName(d), getId(d)))
+					.collect(Collectors.toList());
+			this.names = new OmeroNameIndex<>(children, c -> c.name);
+		}
+	}
+
+	/**
+	 * Name and id of an indexed dataset or image.
+	 */
+	private static class Child {
+
+		private final String name;
+		private final int id;
+
+		private Child(String name, int id) {
+			this.name = name;
+			this.id = id;
+		}
+	}
+
+	private static class Entry {
+
+		private final int count;
+		private final long time;
+
+		private Entry(int count, long time) {
+			this.count = count;
+			this.time = time;
+		}
+	}
+
+}
@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Immutable index of the names of a list of objects, to find the objects whose name contains a
+ * string (ignoring case) without scanning all the names.
+ * <p>
+ * Names are case-folded once, when the index is built, and each trigram (i.e. sequence of 3 characters)
+ * of a name is mapped to the (sorted) positions of the objects containing it. Queries of at least 3
+ * characters only check the names containing the rarest trigram of the query; shorter queries check
+ * all the case-folded names.
+ *
+ * @param <T> type of the indexed objects
+ */
+class OmeroNameIndex<T> {
+
+	private static final int GRAM_SIZE = 3;
+
+	private final List<T> objects;
+	private final String[] names;
+	private final Map<String, int[]> grams;
+
+	/**
+	 * Create an index of the specified objects.
+	 * @param objects objects to index, in the order in which they should be returned
+	 * @param nameFunction function returning the name of an object (which can be null)
+	 */
+	OmeroNameIndex(List<? extends T> objects, Function<? super T, String> nameFunction) {
+		this.objects = List.copyOf(objects);
+		this.names = new String[this.objects.size()];
+
+		Map<String, List<Integer>> map = new HashMap<>();
+		for (int i = 0; i < names.length; i++) {
+			String name = nameFunction.apply(this.objects.get(i));
+			names[i] = name == null ? "" : fold(name);
+			Set<String> nameGrams = new LinkedHashSet<>();
+			for (int j = 0; j + GRAM_SIZE <= names[i].length(); j++)
+				nameGrams.add(names[i].substring(j, j + GRAM_SIZE));
+			for (var gram: nameGrams)
+				map.computeIfAbsent(gram, g -> new ArrayList<>()).add(i);
+		}
+
+		grams = new HashMap<>(map.size());
+		for (var entry: map.entrySet())
+			grams.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+	}
+
+	/**
+	 * Return the objects whose name contains the specified query, ignoring case, in the order of the indexed list.
+	 * An empty (or null) query matches all the objects.
+	 * @param query
+	 * @return list of matching objects
+	 */
+	List<T> search(String query) {
+		if (query == null || query.isEmpty())
+			return objects;
+
+		String folded = fold(query);
+		int[] candidates = null;
+		if (folded.length() >= GRAM_SIZE) {
+			// Only check the names containing the rarest trigram of the query
+			for (int j = 0; j + GRAM_SIZE <= folded.length(); j++) {
+				int[] positions = grams.get(folded.substring(j, j + GRAM_SIZE));
+				if (positions == null)
+					return List.of();
+				if (candidates == null || positions.length < candidates.length)
+					candidates = positions;
+			}
+		}
+
+		List<T> matches = new ArrayList<>();
+		if (candidates == null) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].contains(folded))
+					matches.add(objects.get(i));
+			}
+		} else {
+			for (int i: candidates) {
+				if (names[i].contains(folded))
+					matches.add(objects.get(i));
+			}
+		}
+		return matches;
+	}
+
+	private static String fold(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+}
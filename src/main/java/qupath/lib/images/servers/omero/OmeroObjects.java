@@ -313,8 +313,8 @@ final class OmeroObjects {
 			return currentChildCount;
 		}
 
-		int incrementAndGetLoadedCount() {
-			return loadedChildCount.incrementAndGet();
+		int addAndGetLoadedCount(int delta) {
+			return loadedChildCount.addAndGet(delta);
 		}
 		
 		void setTotalChildCount(int newValue) {
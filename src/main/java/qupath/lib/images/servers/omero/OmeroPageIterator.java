@@ -0,0 +1,198 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Iterator over the pages of a paginated OMERO JSON API response, returning the data of each page in order.
+ * <p>
+ * Once the first page is read (and therefore the total number of items is known), the following pages 
+ * are requested concurrently, at most {@link #MAX_PAGE_REQUESTS} ahead of the page being consumed, so that 
+ * the iteration does not wait for a round trip per page and the whole response is never held in memory.
+ * <p>
+ * Errors occurring after the first page are thrown as {@link UncheckedIOException}s by {@link #next()}. 
+ * The iterator should be closed if it is not consumed entirely, to abort the pages requested in advance.
+ */
+class OmeroPageIterator implements Iterator<JsonArray>, Closeable {
+
+	/**
+	 * Maximum number of pages requested ahead of the page being consumed.
+	 */
+	static final int MAX_PAGE_REQUESTS = 8;
+
+	private final URL url;
+	private final String symbol;
+
+	private final int totalCount;
+	private final int limit;
+	private final int nPages;
+
+	private JsonArray firstPage;
+	private final Deque<CompletableFuture<JsonObject>> pages = new ArrayDeque<>();
+	private int nRead = 0;
+	private int nextOffset;
+
+	/**
+	 * Create an iterator over the pages of the specified URL, reading the first page 
+	 * (so that errors are reported immediately).
+	 * @param url
+	 * @throws IOException if the first page cannot be read
+	 */
+	OmeroPageIterator(URL url) throws IOException {
+		this.url = url;
+		this.symbol = (url.getQuery() != null && !url.getQuery().isEmpty()) ? "&" : "?";
+
+		JsonObject map;
+		try (InputStream stream = OmeroRequests.openStream(url)) {
+			map = OmeroTools.readPage(stream);
+		}
+		JsonObject meta = map.getAsJsonObject("meta");
+		totalCount = meta.get("totalCount").getAsInt();
+		limit = meta.get("limit").getAsInt();
+		nPages = limit <= 0 || totalCount <= limit ? 1 : (totalCount - 1) / limit + 1;
+		firstPage = map.getAsJsonArray("data");
+		nextOffset = limit;
+
+		// Request the next pages while the first one is consumed
+		requestPages();
+	}
+
+	/**
+	 * Return a sequential stream of the items of the specified URL. The stream should be closed after use.
+	 * @param url
+	 * @return stream of Json elements
+	 * @throws IOException if the first page cannot be read
+	 */
+	static Stream<JsonElement> stream(URL url) throws IOException {
+		var iterator = new OmeroPageIterator(url);
+		var spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false)
+				.flatMap(page -> StreamSupport.stream(page.spliterator(), false))
+				.onClose(iterator::close);
+	}
+
+	/**
+	 * Return the total number of items.
+	 * @return total count
+	 */
+	int getTotalCount() {
+		return totalCount;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return nRead < nPages;
+	}
+
+	@Override
+	public JsonArray next() {
+		try {
+			return nextPage();
+		} catch (IOException e) {
+			close();
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Return the data of the next page, waiting for it if needed.
+	 * @return data of the page
+	 * @throws IOException if the page cannot be read
+	 * @throws NoSuchElementException if all the pages have been read
+	 */
+	JsonArray nextPage() throws IOException {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		nRead++;
+		if (firstPage != null) {
+			var page = firstPage;
+			firstPage = null;
+			return page;
+		}
+
+		var future = pages.removeFirst();
+		try {
+			var page = future.get().getAsJsonArray("data");
+			requestPages();
+			return page;
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading " + url);
+		} catch (ExecutionException e) {
+			var cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+			throw new IOException(String.format("Unable to read page %d/%d of %s", nRead, nPages, url), cause);
+		}
+	}
+
+	/**
+	 * Request the following pages, up to {@link #MAX_PAGE_REQUESTS} pages in advance.
+	 */
+	private void requestPages() throws IOException {
+		while (limit > 0 && nextOffset < totalCount && pages.size() < MAX_PAGE_REQUESTS) {
+			pages.addLast(requestPage(new URL(url + symbol + "offset=" + nextOffset)));
+			nextOffset += limit;
+		}
+	}
+
+	private static CompletableFuture<JsonObject> requestPage(URL url) throws IOException {
+		// Cancelling the page should abort the request itself (and release its permit)
+		var response = OmeroRequests.sendAsync(OmeroRequests.newRequest(url).GET().build(), BodyHandlers.ofInputStream());
+		return OmeroRequests.mapResponse(response, r -> {
+			try (InputStream stream = OmeroRequests.checkStatus(r).body()) {
+				return OmeroTools.readPage(stream);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		// Abort the pages that will never be read
+		pages.forEach(p -> p.cancel(true));
+		pages.clear();
+		nRead = nPages;
+	}
+
+}
@@ -0,0 +1,299 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.StringProperty;
+import qupath.fx.prefs.controlsfx.PropertyItemBuilder;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.prefs.PathPrefs;
+
+/**
+ * Persistent preferences of the OMERO extension.
+ */
+final class OmeroPrefs {
+
+	private static final String CATEGORY = "OMERO";
+
+	private static final BooleanProperty tileCacheEnabled = PathPrefs.createPersistentPreference("omero_ext.tile_cache.enabled", false);
+	private static final IntegerProperty tileCacheSizeMB = PathPrefs.createPersistentPreference("omero_ext.tile_cache.size_mb", 2048);
+	private static final StringProperty tileCacheDirectory = PathPrefs.createPersistentPreference("omero_ext.tile_cache.directory", "");
+
+	private static final BooleanProperty prefetchEnabled = PathPrefs.createPersistentPreference("omero_ext.prefetch.enabled", false);
+	private static final IntegerProperty prefetchPlanes = PathPrefs.createPersistentPreference("omero_ext.prefetch.planes", 0);
+	private static final IntegerProperty prefetchBufferSizeMB = PathPrefs.createPersistentPreference("omero_ext.prefetch.buffer_mb", 128);
+
+	private static final IntegerProperty thumbnailCacheSizeMB = PathPrefs.createPersistentPreference("omero_ext.thumbnail_cache.size_mb", 32);
+	private static final BooleanProperty browserCacheEnabled = PathPrefs.createPersistentPreference("omero_ext.browser_cache.enabled", false);
+	private static final IntegerProperty browserCacheSizeMB = PathPrefs.createPersistentPreference("omero_ext.browser_cache.size_mb", 256);
+
+	private static final BooleanProperty hierarchyIndexEnabled = PathPrefs.createPersistentPreference("omero_ext.hierarchy_index.enabled", false);
+	private static final IntegerProperty treePageSize = PathPrefs.createPersistentPreference("omero_ext.browser.page_size", 200);
+
+	private static final IntegerProperty connectTimeout = PathPrefs.createPersistentPreference("omero_ext.connect_timeout_s", 10);
+	private static final IntegerProperty tileReadTimeout = PathPrefs.createPersistentPreference("omero_ext.tile.read_timeout_s", 60);
+	private static final IntegerProperty tileRetries = PathPrefs.createPersistentPreference("omero_ext.tile.retries", 2);
+	private static final BooleanProperty tileHedging = PathPrefs.createPersistentPreference("omero_ext.tile.hedging", false);
+
+	private static final BooleanProperty roiCompression = PathPrefs.createPersistentPreference("omero_ext.rois.gzip", false);
+
+	/**
+	 * Suppress default constructor for non-instantiability
+	 */
+	private OmeroPrefs() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Whether the tiles received from OMERO servers should be kept in a persistent cache on disk.
+	 * @return property
+	 * @see OmeroTileCache
+	 */
+	static BooleanProperty tileCacheEnabledProperty() {
+		return tileCacheEnabled;
+	}
+
+	/**
+	 * Maximum size of the disk tile cache, in megabytes.
+	 * @return property
+	 */
+	static IntegerProperty tileCacheSizeMBProperty() {
+		return tileCacheSizeMB;
+	}
+
+	/**
+	 * Directory of the disk tile cache. If empty, a directory in the QuPath user directory is used.
+	 * @return property
+	 */
+	static StringProperty tileCacheDirectoryProperty() {
+		return tileCacheDirectory;
+	}
+
+	/**
+	 * Whether the tiles likely to be viewed next (based on panning and zooming) should be fetched in the background.
+	 * @return property
+	 * @see OmeroTilePrefetcher
+	 */
+	static BooleanProperty prefetchEnabledProperty() {
+		return prefetchEnabled;
+	}
+
+	/**
+	 * Number of z-slices and timepoints on each side of the current plane whose tiles should be prefetched 
+	 * (0 to only prefetch within the current plane). This requires prefetching to be enabled.
+	 * @return property
+	 * @see #prefetchEnabledProperty()
+	 */
+	static IntegerProperty prefetchPlanesProperty() {
+		return prefetchPlanes;
+	}
+
+	/**
+	 * Maximum size of the buffer of prefetched tiles of each image, in megabytes.
+	 * @return property
+	 */
+	static IntegerProperty prefetchBufferSizeMBProperty() {
+		return prefetchBufferSizeMB;
+	}
+
+	/**
+	 * Maximum memory used by the (compressed) image thumbnails cached for each OMERO client, in megabytes.
+	 * @return property
+	 * @see OmeroThumbnailCache
+	 */
+	static IntegerProperty thumbnailCacheSizeMBProperty() {
+		return thumbnailCacheSizeMB;
+	}
+
+	/**
+	 * Whether the thumbnails and icons displayed by the browser should be kept on disk, so that they are 
+	 * not downloaded again in later sessions (they are still refreshed in the background from time to time).
+	 * @return property
+	 * @see OmeroBrowserCache
+	 */
+	static BooleanProperty browserCacheEnabledProperty() {
+		return browserCacheEnabled;
+	}
+
+	/**
+	 * Maximum size of the disk cache of thumbnails and icons of each OMERO server, in megabytes.
+	 * @return property
+	 */
+	static IntegerProperty browserCacheSizeMBProperty() {
+		return browserCacheSizeMB;
+	}
+
+	/**
+	 * Whether the hierarchy of the OMERO servers (projects, datasets and images) should be indexed on disk in the background, 
+	 * so that the browser can show it without waiting for the server.
+	 * @return property
+	 * @see OmeroHierarchyIndex
+	 */
+	static BooleanProperty hierarchyIndexEnabledProperty() {
+		return hierarchyIndexEnabled;
+	}
+
+	/**
+	 * Number of images of a dataset loaded at once in the browser, further images being loaded when 
+	 * the end of the list is reached.
+	 * @return property
+	 */
+	static IntegerProperty treePageSizeProperty() {
+		return treePageSize;
+	}
+
+	/**
+	 * Timeout to connect to an OMERO server, in seconds (0 for no timeout). 
+	 * This applies to the connections opened by clients created afterwards.
+	 * @return property
+	 */
+	static IntegerProperty connectTimeoutProperty() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Timeout to receive the response to a tile request, in seconds (0 for no timeout).
+	 * @return property
+	 */
+	static IntegerProperty tileReadTimeoutProperty() {
+		return tileReadTimeout;
+	}
+
+	/**
+	 * Number of times a failed tile request is retried.
+	 * @return property
+	 * @see OmeroTileFetcher
+	 */
+	static IntegerProperty tileRetriesProperty() {
+		return tileRetries;
+	}
+
+	/**
+	 * Whether tile requests slower than usual should be sent a second time, using whichever response comes first.
+	 * @return property
+	 * @see OmeroTileFetcher
+	 */
+	static BooleanProperty tileHedgingProperty() {
+		return tileHedging;
+	}
+
+	/**
+	 * Whether the ROIs sent to OMERO should be compressed with gzip. The web server in front of OMERO.web must 
+	 * decompress request bodies (OMERO.web does not do it by itself), otherwise writing ROIs fails. The ROIs are 
+	 * only sent uncompressed instead if the server rejects them with status 415 (Unsupported Media Type).
+	 * @return property
+	 * @see OmeroROIBodyStream
+	 */
+	static BooleanProperty roiCompressionProperty() {
+		return roiCompression;
+	}
+
+	/**
+	 * Add the preferences of the extension to the preference pane of QuPath.
+	 * @param qupath
+	 */
+	static void installPreferences(QuPathGUI qupath) {
+		var items = qupath.getPreferencePane().getPropertySheet().getItems();
+		items.add(new PropertyItemBuilder<>(tileCacheEnabled, Boolean.class)
+				.name("Cache tiles on disk")
+				.category(CATEGORY)
+				.description("Keep the tiles received from OMERO servers on disk, so that they are not downloaded again in later sessions")
+				.build());
+		items.add(new PropertyItemBuilder<>(tileCacheSizeMB, Integer.class)
+				.name("Tile cache size (MB)")
+				.category(CATEGORY)
+				.description("Maximum disk space used by the tile cache. Least recently used tiles are removed first")
+				.build());
+		items.add(new PropertyItemBuilder<>(tileCacheDirectory, String.class)
+				.name("Tile cache directory")
+				.category(CATEGORY)
+				.description("Directory of the tile cache (leave empty to use the QuPath user directory)")
+				.build());
+		items.add(new PropertyItemBuilder<>(prefetchEnabled, Boolean.class)
+				.name("Prefetch tiles")
+				.category(CATEGORY)
+				.description("Fetch the tiles likely to be viewed next in the background, based on the direction of panning and zooming")
+				.build());
+		items.add(new PropertyItemBuilder<>(prefetchPlanes, Integer.class)
+				.name("Prefetch adjacent planes")
+				.category(CATEGORY)
+				.description("Number of z-slices and timepoints on each side of the current plane to prefetch (requires 'Prefetch tiles')")
+				.build());
+		items.add(new PropertyItemBuilder<>(prefetchBufferSizeMB, Integer.class)
+				.name("Prefetch buffer size (MB)")
+				.category(CATEGORY)
+				.description("Maximum memory used by the prefetched tiles of each image")
+				.build());
+		items.add(new PropertyItemBuilder<>(thumbnailCacheSizeMB, Integer.class)
+				.name("Thumbnail cache size (MB)")
+				.category(CATEGORY)
+				.description("Maximum memory used by the image thumbnails kept for each OMERO server in the browser")
+				.build());
+		items.add(new PropertyItemBuilder<>(browserCacheEnabled, Boolean.class)
+				.name("Cache thumbnails on disk")
+				.category(CATEGORY)
+				.description("Keep the thumbnails and icons shown in the browser on disk, so that they are not downloaded again in later sessions")
+				.build());
+		items.add(new PropertyItemBuilder<>(browserCacheSizeMB, Integer.class)
+				.name("Thumbnail disk cache size (MB)")
+				.category(CATEGORY)
+				.description("Maximum disk space used by the thumbnails and icons of each OMERO server")
+				.build());
+		items.add(new PropertyItemBuilder<>(hierarchyIndexEnabled, Boolean.class)
+				.name("Index server hierarchy")
+				.category(CATEGORY)
+				.description("Index the projects, datasets and images of OMERO servers on disk in the background, so that the browser shows them instantly (lists may be a few minutes out of date)")
+				.build());
+		items.add(new PropertyItemBuilder<>(treePageSize, Integer.class)
+				.name("Browser page size")
+				.category(CATEGORY)
+				.description("Number of images of a dataset loaded at once in the browser (more are loaded when scrolling to the end of the list)")
+				.build());
+		items.add(new PropertyItemBuilder<>(connectTimeout, Integer.class)
+				.name("Connection timeout (s)")
+				.category(CATEGORY)
+				.description("Timeout to connect to an OMERO server (0 for no timeout), applied to new connections to a server")
+				.build());
+		items.add(new PropertyItemBuilder<>(tileReadTimeout, Integer.class)
+				.name("Tile timeout (s)")
+				.category(CATEGORY)
+				.description("Timeout to receive a tile from an OMERO server (0 for no timeout)")
+				.build());
+		items.add(new PropertyItemBuilder<>(tileRetries, Integer.class)
+				.name("Tile retries")
+				.category(CATEGORY)
+				.description("Number of times a failed tile request is retried")
+				.build());
+		items.add(new PropertyItemBuilder<>(tileHedging, Boolean.class)
+				.name("Hedge slow tile requests")
+				.category(CATEGORY)
+				.description("Send a tile request a second time if it is slower than 95% of recent requests, and use the first response (at most 5% of requests are sent twice)")
+				.build());
+		items.add(new PropertyItemBuilder<>(roiCompression, Boolean.class)
+				.name("Compress ROIs sent")
+				.category(CATEGORY)
+				.description("Compress the ROIs sent to OMERO with gzip. Only enable this if the web server in front of OMERO.web decompresses request bodies, otherwise writing ROIs fails")
+				.build());
+	}
+
+}
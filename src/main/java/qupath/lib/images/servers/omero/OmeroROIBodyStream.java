@@ -0,0 +1,181 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.images.servers.omero;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Body of a {@code persist_rois} request adding ROIs to an OMERO image, which is written as it is read.
+ * <p>
+ * The JSON is written by a {@link JsonWriter} one ROI at a time into a small buffer, which is refilled 
+ * when it has been read. The memory needed is therefore independent of the number of ROIs, apart from 
+ * the list of ROIs itself. The body can optionally be compressed with gzip.
+ */
+class OmeroROIBodyStream extends InputStream {
+
+	private final Iterator<String> rois;
+	private final Buffer buffer = new Buffer();
+	private final Writer out;
+	private final JsonWriter writer;
+	private int pos = 0;
+	private boolean finished = false;
+
+	/**
+	 * Create the body of a request adding the specified ROIs to an image.
+	 * @param imageId id of the image
+	 * @param rois JSON of the ROIs
+	 * @param gzip whether to compress the body with gzip
+	 * @throws IOException
+	 */
+	OmeroROIBodyStream(int imageId, List<String> rois, boolean gzip) throws IOException {
+		this.rois = rois.iterator();
+		OutputStream stream = gzip ? new GZIPOutputStream(buffer) : buffer;
+		out = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+		writer = new JsonWriter(out);
+		writer.beginObject();
+		writer.name("imageId").value(imageId);
+		writer.name("rois").beginObject();
+		writer.name("count").value(rois.size());
+		writer.name("empty_rois").beginObject().endObject();
+		writer.name("new_and_deleted").beginArray().endArray();
+		writer.name("deleted").beginObject().endObject();
+		writer.name("new").beginArray();
+		writer.flush();
+	}
+
+	/**
+	 * Write the next ROI (or the end of the body) into the buffer once it has been read entirely.
+	 * Several ROIs might be needed before the compressed stream outputs anything.
+	 */
+	private void fill() throws IOException {
+		while (pos >= buffer.size() && !finished) {
+			buffer.reset();
+			pos = 0;
+			if (rois.hasNext()) {
+				// The ROIs are already serialized
+				writer.jsonValue(rois.next());
+				writer.flush();
+			} else {
+				writer.endArray();
+				writer.name("modified").beginArray().endArray();
+				writer.endObject();
+				writer.endObject();
+				writer.close();
+				finished = true;
+			}
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		fill();
+		if (pos >= buffer.size())
+			return -1;
+		return buffer.bytes()[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		fill();
+		int n = Math.min(len, buffer.size() - pos);
+		if (n <= 0)
+			return -1;
+		System.arraycopy(buffer.bytes(), pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return buffer.size() - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// Closing the JSON writer would fail if the document is not complete
+		if (!finished) {
+			finished = true;
+			out.close();
+		}
+	}
+
+	/**
+	 * Return the number of bytes of the uncompressed body of a request adding ROIs to an image, without writing it.
+	 * @param imageId id of the image
+	 * @param nRois number of ROIs
+	 * @param roisLength number of bytes of the JSON of the ROIs encoded in UTF-8, each followed by a comma
+	 * @return length in bytes
+	 */
+	static long getLength(int imageId, int nRois, long roisLength) {
+		// As written by the constructor and fill(), the last ROI is not followed by a comma
+		String start = "{\"imageId\":" + imageId + ",\"rois\":{\"count\":" + nRois 
+				+ ",\"empty_rois\":{},\"new_and_deleted\":[],\"deleted\":{},\"new\":[";
+		String end = "],\"modified\":[]}}";
+		return start.length() + roisLength - (nRois == 0 ? 0 : 1) + end.length();
+	}
+
+	/**
+	 * Return the compressed body of a request adding the specified ROIs, if it is not larger than the specified length. 
+	 * This avoids compressing the body twice (once to compute its length, and once to send it) when it is small enough 
+	 * to be kept in memory.
+	 * @param imageId id of the image
+	 * @param rois JSON of the ROIs
+	 * @param maxLength maximum number of bytes of the compressed body
+	 * @return compressed body, or null if it is larger than {@code maxLength}
+	 * @throws IOException
+	 */
+	static byte[] readCompressed(int imageId, List<String> rois, int maxLength) throws IOException {
+		try (var stream = new OmeroROIBodyStream(imageId, rois, true)) {
+			byte[] bytes = stream.readNBytes(maxLength + 1);
+			return bytes.length > maxLength ? null : bytes;
+		}
+	}
+
+	/**
+	 * Byte array output stream giving access to its array, to avoid copying it.
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+
+		private Buffer() {
+			super(8192);
+		}
+
+		private byte[] bytes() {
+			return buf;
+		}
+	}
+
+}
@@ -0,0 +1,243 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.omero.OmeroRequests.HttpStatusException;
+
+/**
+ * Writer of the ROIs of many objects to an OMERO image, which splits them into batches sent in parallel.
+ * <p>
+ * Batches are bounded in size, so that each request stays below the limit of OMERO.web on the size of 
+ * request bodies (2.5 MB by default, see Django's {@code DATA_UPLOAD_MAX_MEMORY_SIZE}). All the ROIs of 
+ * an object are sent in the same batch, and only a few batches are kept in memory at once.
+ * <p>
+ * Each batch is saved by OMERO in a single transaction. To avoid duplicating ROIs, a batch is only 
+ * retried if it was certainly not saved, i.e. if the connection could not be established or the server 
+ * rejected it as overloaded. Other failures are reported once all the batches have been sent.
+ */
+class OmeroROIWriter {
+
+	private static final Logger logger = LoggerFactory.getLogger(OmeroROIWriter.class);
+
+	/**
+	 * Maximum number of bytes (encoded in UTF-8) of the ROIs of a batch.
+	 */
+	static final int MAX_BATCH_BYTES = 2_000_000;
+
+	/**
+	 * Number of batches sent concurrently.
+	 */
+	private static final int N_THREADS = 4;
+
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long BACKOFF_BASE_MILLIS = 500;
+
+	private final String scheme;
+	private final String host;
+	private final int port;
+	private final int imageId;
+	private final String token;
+	private final IntConsumer progress;
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(N_THREADS, ThreadTools.createThreadFactory("omero-roi-writer", true));
+	private final Semaphore nPending = new Semaphore(N_THREADS * 2);
+	private final List<Future<?>> futures = new ArrayList<>();
+
+	private final AtomicInteger nWritten = new AtomicInteger();
+	private final List<IOException> errors = Collections.synchronizedList(new ArrayList<>());
+	private final AtomicInteger nFailed = new AtomicInteger();
+
+	private List<String> rois = new ArrayList<>();
+	private int nBytes = 0;
+	private int nObjects = 0;
+	private int nTotal = 0;
+
+	/**
+	 * Create a writer of ROIs to the specified image.
+	 * @param server server of the image
+	 * @param progress consumer of the number of objects written so far (called from the writing threads), or null
+	 */
+	OmeroROIWriter(OmeroWebImageServer server, IntConsumer progress) {
+		this.scheme = server.getScheme();
+		this.host = server.getHost();
+		this.port = server.getPort();
+		this.imageId = Integer.parseInt(server.getId());
+		this.token = server.getWebclient().getToken();
+		this.progress = progress;
+	}
+
+	/**
+	 * Add the ROIs of an object (in JSON), which are sent once enough ROIs have been added.
+	 * This method blocks while too many batches are waiting to be sent.
+	 * @param objectRois ROIs of the object
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	void add(List<String> objectRois) throws InterruptedIOException {
+		// Each ROI is followed by a comma in the body
+		int size = objectRois.stream().mapToInt(roi -> getUTF8Length(roi) + 1).sum();
+		if (!rois.isEmpty() && nBytes + size > MAX_BATCH_BYTES)
+			submit();
+		rois.addAll(objectRois);
+		nBytes += size;
+		nObjects++;
+		nTotal++;
+	}
+
+	/**
+	 * Send the remaining ROIs and wait for all the batches to be written.
+	 * @return number of objects written
+	 * @throws IOException if some objects could not be written (the others are written anyway)
+	 */
+	int finish() throws IOException {
+		try {
+			if (!rois.isEmpty())
+				submit();
+			for (var future: futures)
+				future.get();
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Interrupted after writing %d/%d objects", nWritten.get(), nTotal));
+		} catch (ExecutionException e) {
+			// Errors are caught by the batches
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+
+		if (!errors.isEmpty()) {
+			var e = new IOException(String.format("%d/%d objects could not be written: %s", 
+					nFailed.get(), nTotal, errors.get(0).getLocalizedMessage()));
+			for (var error: errors)
+				e.addSuppressed(error);
+			throw e;
+		}
+		return nWritten.get();
+	}
+
+	private void submit() throws InterruptedIOException {
+		try {
+			nPending.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send ROIs");
+		}
+		var batch = rois;
+		int nBatchBytes = nBytes;
+		int nBatchObjects = nObjects;
+		rois = new ArrayList<>();
+		nBytes = 0;
+		nObjects = 0;
+		futures.add(pool.submit(() -> {
+			try {
+				write(batch, nBatchBytes);
+				int n = nWritten.addAndGet(nBatchObjects);
+				logger.debug("{} objects written to OMERO image {}", n, imageId);
+				if (progress != null)
+					progress.accept(n);
+			} catch (IOException e) {
+				logger.warn("Could not write {} objects to OMERO image {}: {}", nBatchObjects, imageId, e.getLocalizedMessage());
+				nFailed.addAndGet(nBatchObjects);
+				errors.add(e);
+			} finally {
+				nPending.release();
+			}
+		}));
+	}
+
+	/**
+	 * Return the number of bytes of a string encoded in UTF-8, without encoding it.
+	 */
+	static int getUTF8Length(String s) {
+		int n = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				n++;
+			else if (c < 0x800)
+				n += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				n += 4;
+				i++;
+			} else
+				n += 3;
+		}
+		return n;
+	}
+
+	private void write(List<String> batch, long nBatchBytes) throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				OmeroRequests.requestWriteROIs(scheme, host, port, imageId, token, batch, nBatchBytes);
+				return;
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				if (attempt >= MAX_ATTEMPTS || !isRetryable(e))
+					throw e;
+				logger.debug("Retrying to write ROIs ({})", e.getLocalizedMessage());
+				backoff(attempt);
+			}
+		}
+	}
+
+	/**
+	 * Return whether the ROIs of a failed request were certainly not saved, so that they can be sent again.
+	 */
+	static boolean isRetryable(IOException e) {
+		if (e instanceof HttpStatusException) {
+			int status = ((HttpStatusException)e).getStatus();
+			return status == 429 || status == 503;
+		}
+		return e instanceof ConnectException;
+	}
+
+	private static void backoff(int attempt) throws InterruptedIOException {
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(BACKOFF_BASE_MILLIS << attempt));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to write ROIs again");
+		}
+	}
+
+}
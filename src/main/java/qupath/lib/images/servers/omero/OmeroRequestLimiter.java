@@ -0,0 +1,384 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import qupath.lib.common.ThreadTools;
+
+/**
+ * Adaptive limit on the number of concurrent requests sent to an OMERO server.
+ * <p>
+ * The limit follows an additive increase/multiplicative decrease (AIMD) scheme: it grows slowly while
+ * responses are fast and successful, and is cut as soon as the server shows signs of overload, i.e.
+ * errors, 'too many requests'/'unavailable' responses or a latency well above the lowest latency seen
+ * recently. Latencies are measured until the response headers are received, and compared to the lowest 
+ * latency of requests of the same {@link Priority} only, since the different kinds of requests (small JSON 
+ * pages, tiles, uploads) take very different times even when the server is idle.
+ * <p>
+ * Requests beyond the limit wait in one queue per {@link Priority}, and the most urgent request is sent 
+ * first when a permit is released. Less urgent priorities can only use a share of the limit, so that some 
+ * permits are always left for viewer tiles, however many thumbnails or prefetched tiles are waiting. To 
+ * prevent starvation, a request is considered one priority more urgent for each {@link #AGING_MILLIS} 
+ * it has been waiting (and every priority can use at least one permit).
+ * <p>
+ * The priority of a request is the priority of the thread sending it (see {@link #withPriority(Priority)}), 
+ * which is {@link Priority#TILE} by default.
+ */
+class OmeroRequestLimiter {
+
+	/**
+	 * Priority of a request, from the most to the least urgent.
+	 */
+	enum Priority {
+		/**
+		 * Tiles displayed in a viewer (and any request without specific priority).
+		 */
+		TILE(1.0),
+		/**
+		 * Children of the objects expanded in the browser, and searches.
+		 */
+		TREE(0.75),
+		/**
+		 * Annotations of the objects selected in the browser.
+		 */
+		ANNOTATION(0.75),
+		/**
+		 * Thumbnails of the browser.
+		 */
+		THUMBNAIL(0.5),
+		/**
+		 * Anything that might be needed later (prefetched tiles, background indexing).
+		 */
+		PREFETCH(0.25);
+
+		private final double share;
+
+		private Priority(double share) {
+			this.share = share;
+		}
+	}
+
+	/**
+	 * Time after which a waiting request is considered one priority more urgent.
+	 */
+	static final long AGING_MILLIS = 500;
+
+	private static final ThreadLocal<Priority> currentPriority = ThreadLocal.withInitial(() -> Priority.TILE);
+
+	private static final int INITIAL_LIMIT = 16;
+	private static final int MIN_LIMIT = 2;
+	private static final int MAX_LIMIT = 128;
+
+	/**
+	 * Factor applied to the limit when the server is overloaded.
+	 */
+	private static final double DECREASE_FACTOR = 0.75;
+
+	/**
+	 * A response slower than this factor times the baseline latency is considered a sign of overload.
+	 */
+	private static final double LATENCY_TOLERANCE = 3.0;
+
+	/**
+	 * Latencies below this value are never considered a sign of overload, however low the baseline.
+	 */
+	private static final long MIN_LATENCY_THRESHOLD_NANOS = 50_000_000L;
+
+	/**
+	 * Number of samples after which the baseline latency is replaced by the lowest latency of these samples, 
+	 * in case the server got slower for good.
+	 */
+	private static final int BASELINE_WINDOW = 500;
+
+	private double limit = INITIAL_LIMIT;
+	private int inFlight = 0;
+	private final int[] inFlightPerPriority = new int[Priority.values().length];
+	private final List<Deque<Waiter>> waiters = new ArrayList<>();
+
+	// Baseline latency per priority
+	private final long[] baselineNanos = new long[Priority.values().length];
+	private final long[] windowMinNanos = new long[Priority.values().length];
+	private final int[] nSamples = new int[Priority.values().length];
+	private long lastDecreaseNanos = System.nanoTime() - TimeUnit.HOURS.toNanos(1);
+
+	OmeroRequestLimiter() {
+		for (int i = 0; i < Priority.values().length; i++)
+			waiters.add(new ArrayDeque<>());
+		Arrays.fill(baselineNanos, Long.MAX_VALUE);
+		Arrays.fill(windowMinNanos, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Return the priority of the requests sent by the current thread.
+	 * @return priority
+	 */
+	static Priority getCurrentPriority() {
+		return currentPriority.get();
+	}
+
+	/**
+	 * Set the priority of the requests sent by the current thread, until the returned scope is closed.
+	 * Asynchronous requests keep the priority of the thread that sent them.
+	 * @param priority
+	 * @return scope restoring the previous priority when closed
+	 */
+	static PriorityScope withPriority(Priority priority) {
+		var previous = currentPriority.get();
+		currentPriority.set(priority);
+		return () -> currentPriority.set(previous);
+	}
+
+	/**
+	 * Create a thread factory for daemon threads whose requests have the specified priority.
+	 * @param prefix
+	 * @param priority
+	 * @return thread factory
+	 * @see ThreadTools#createThreadFactory(String, boolean)
+	 */
+	static ThreadFactory createThreadFactory(String prefix, Priority priority) {
+		var factory = ThreadTools.createThreadFactory(prefix, true);
+		return r -> factory.newThread(() -> {
+			currentPriority.set(priority);
+			r.run();
+		});
+	}
+
+	/**
+	 * Scope of a priority set with {@link OmeroRequestLimiter#withPriority(Priority)}.
+	 */
+	interface PriorityScope extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	/**
+	 * Wait until a request with the specified priority can be sent.
+	 * @param priority
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	void acquire(Priority priority) throws InterruptedIOException {
+		var permit = acquireAsync(priority);
+		try {
+			permit.get();
+		} catch (InterruptedException e) {
+			// If the permit was granted in the meantime, give it back
+			if (!permit.cancel(false))
+				release(priority);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send a request");
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Request a permit to send a request with the specified priority, which is granted when the returned 
+	 * future completes. Cancelling the future withdraws the request.
+	 * @param priority
+	 * @return permit future
+	 */
+	synchronized CompletableFuture<Void> acquireAsync(Priority priority) {
+		if (!hasWaiters(priority) && canSend(priority)) {
+			grant(priority);
+			return CompletableFuture.completedFuture(null);
+		}
+		var waiter = new Waiter(priority);
+		waiters.get(priority.ordinal()).addLast(waiter);
+		return waiter.permit;
+	}
+
+	/**
+	 * Release a permit after a response was received (or the request failed), updating the limit.
+	 * @param priority priority of the request
+	 * @param latencyNanos time between sending the request and receiving the response headers
+	 * @param overloaded whether the response indicates that the server is overloaded
+	 */
+	void release(Priority priority, long latencyNanos, boolean overloaded) {
+		synchronized (this) {
+			update(priority, latencyNanos, overloaded);
+		}
+		release(priority);
+	}
+
+	/**
+	 * Release a permit without updating the limit (e.g. when a request is cancelled).
+	 * @param priority priority of the request
+	 */
+	void release(Priority priority) {
+		List<Waiter> granted = new ArrayList<>();
+		synchronized (this) {
+			inFlight--;
+			inFlightPerPriority[priority.ordinal()]--;
+			Waiter waiter;
+			while ((waiter = nextWaiter()) != null) {
+				grant(waiter.priority);
+				granted.add(waiter);
+			}
+		}
+		// Complete outside of the lock, since this may run the callbacks of asynchronous requests
+		for (var waiter : granted) {
+			if (!waiter.permit.complete(null))
+				release(waiter.priority);
+		}
+	}
+
+	/**
+	 * Remove and return the most urgent waiter that can be sent now, taking into account how long 
+	 * the waiters have been waiting, or null if none can be sent.
+	 */
+	private Waiter nextWaiter() {
+		long now = System.nanoTime();
+		Waiter best = null;
+		double bestRank = Double.POSITIVE_INFINITY;
+		for (var queue : waiters) {
+			// Within a priority, the oldest waiter is the most urgent
+			var waiter = peekPending(queue);
+			if (waiter == null || !canSend(waiter.priority))
+				continue;
+			double rank = waiter.priority.ordinal() - (now - waiter.enqueuedNanos) / (AGING_MILLIS * 1_000_000.0);
+			if (rank < bestRank) {
+				best = waiter;
+				bestRank = rank;
+			}
+		}
+		if (best != null)
+			waiters.get(best.priority.ordinal()).pollFirst();
+		return best;
+	}
+
+	/**
+	 * Return whether a request with the specified priority can be sent without exceeding the limit, 
+	 * nor the share of the limit of its priority (which also includes the requests of lower priorities).
+	 */
+	private boolean canSend(Priority priority) {
+		if (inFlight >= (int)limit)
+			return false;
+		int n = 0;
+		for (int i = priority.ordinal(); i < inFlightPerPriority.length; i++)
+			n += inFlightPerPriority[i];
+		return n < Math.max(1, (int)(limit * priority.share));
+	}
+
+	private boolean hasWaiters(Priority priority) {
+		// Requests of the same or higher priority were queued first
+		for (int i = 0; i <= priority.ordinal(); i++) {
+			if (peekPending(waiters.get(i)) != null)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return the first waiter of the queue that is still waiting, dropping the requests cancelled while waiting.
+	 */
+	private static Waiter peekPending(Deque<Waiter> queue) {
+		while (!queue.isEmpty() && queue.peekFirst().permit.isDone())
+			queue.pollFirst();
+		return queue.peekFirst();
+	}
+
+	private void grant(Priority priority) {
+		inFlight++;
+		inFlightPerPriority[priority.ordinal()]++;
+	}
+
+	private static class Waiter {
+
+		private final Priority priority;
+		private final CompletableFuture<Void> permit = new CompletableFuture<>();
+		private final long enqueuedNanos = System.nanoTime();
+
+		private Waiter(Priority priority) {
+			this.priority = priority;
+		}
+	}
+
+	private void update(Priority priority, long latencyNanos, boolean overloaded) {
+		int i = priority.ordinal();
+		if (!overloaded) {
+			baselineNanos[i] = Math.min(baselineNanos[i], latencyNanos);
+			windowMinNanos[i] = Math.min(windowMinNanos[i], latencyNanos);
+			if (++nSamples[i] >= BASELINE_WINDOW) {
+				baselineNanos[i] = windowMinNanos[i];
+				windowMinNanos[i] = Long.MAX_VALUE;
+				nSamples[i] = 0;
+			}
+		}
+
+		long threshold = Math.max(MIN_LATENCY_THRESHOLD_NANOS, (long)(baselineNanos[i] * LATENCY_TOLERANCE));
+		if (overloaded || latencyNanos > threshold) {
+			// Decrease at most once per round trip, since the responses of a burst are all slow for the same reason
+			long now = System.nanoTime();
+			if (now - lastDecreaseNanos > latencyNanos) {
+				limit = Math.max(MIN_LIMIT, limit * DECREASE_FACTOR);
+				lastDecreaseNanos = now;
+			}
+		} else if (inFlight >= (int)limit) {
+			// Only increase when the limit is actually reached, otherwise it could grow without bound
+			limit = Math.min(MAX_LIMIT, limit + 1.0 / limit);
+		}
+	}
+
+	/**
+	 * Return whether a response with the specified status code indicates that the server is overloaded.
+	 * @param statusCode
+	 * @return true if overloaded
+	 */
+	static boolean isOverloaded(int statusCode) {
+		return statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+	}
+
+	/**
+	 * Return the current limit on concurrent requests.
+	 * @return limit
+	 */
+	synchronized int getLimit() {
+		return (int)limit;
+	}
+
+	/**
+	 * Return the number of requests currently being sent.
+	 * @return requests in flight
+	 */
+	synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Return the number of requests waiting for the limit.
+	 * @return queue depth
+	 */
+	synchronized int getQueueDepth() {
+		return (int)waiters.stream().flatMap(Deque::stream).filter(w -> !w.permit.isDone()).count();
+	}
+
+}
@@ -22,17 +22,43 @@
 package qupath.lib.images.servers.omero;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.imageio.ImageIO;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -52,10 +78,13 @@ import qupath.lib.io.GsonTools;
  */
 public final class OmeroRequests {
 	
+	private static final Logger logger = LoggerFactory.getLogger(OmeroRequests.class);
+	
 	private static final String WEBCLIENT_READ_ANNOTATION = "/webclient/api/annotations/?type=%s&%s=%d&limit=10000&_=&%d";
 	
 	private static final String WEBGATEWAY_DATA = "/webgateway/imgData/%d";
 	private static final String WEBGATEWAY_THUMBNAIL = "/webgateway/render_thumbnail/%d/%d";	// '/webgateway/render_thumbnail/101/256'
+	private static final String WEBGATEWAY_THUMBNAILS = "/webgateway/get_thumbnails/%d/?%s";	// '/webgateway/get_thumbnails/256/?id=101&id=102'
 	private static final String WEBGATEWAY_ICON = "/static/webgateway/img/%s";
 	private static final String WEBGATEWAY_IMAGE_ICON = "/static/webclient/image/%s";
 	
@@ -64,6 +93,15 @@ public final class OmeroRequests {
 	private static final String JSON_API_FILTERED_LIST = "/api/v0/m/%s/%d/%s/?%s";	// '/api/v0/m/{datasets}/{103}/{images}/?{childCount=true}'
 	private static final String JSON_API_ROIS = "/api/v0/m/rois/?image=%s";
 	
+	/**
+	 * HTTP client for servers that have no {@link OmeroWebClient} yet (e.g. before logging in). 
+	 * It does not store any cookie.
+	 */
+	private static final HttpClient DEFAULT_HTTP_CLIENT = OmeroWebClient.createHttpClient(null);
+	
+	// Servers (host and port) that failed to write compressed ROIs, but accepted them uncompressed
+	private static final Set<String> GZIP_UNSUPPORTED = ConcurrentHashMap.newKeySet();
+	
 	/**
 	 * Suppress default constructor for non-instantiability
 	 */
@@ -82,7 +120,7 @@ public final class OmeroRequests {
 	 */
 	public static JsonObject requestMetadata(String scheme, String host, int port, int id) throws IOException {
 		URL url = new URL(scheme, host, port, String.format(WEBGATEWAY_DATA, id));
-		try (InputStreamReader reader = new InputStreamReader(url.openStream())) {
+		try (InputStreamReader reader = new InputStreamReader(openStream(url))) {
 			JsonObject map = new Gson().fromJson(reader, JsonObject.class);			
 			return map;
 		}
@@ -119,16 +157,14 @@ public final class OmeroRequests {
 		// Create URL
 		URL url = new URL(scheme, host, port, String.format(JSON_API_INFO, type.toURLString(), id) + (args == null ? "" : args));
 		
-		// Open connection
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        int response = connection.getResponseCode();
-        
-        // Catch bad response
-        if (response != 200)
-        	throw new IOException(String.format("Connection to %s failed: Error %d.", url.getHost(), response));
+		// Send request
+		var response = send(newRequest(url).GET().build(), BodyHandlers.ofInputStream());
         
         // Read input stream
-        try (InputStreamReader reader = new InputStreamReader(connection.getInputStream())) {
+        try (InputStreamReader reader = new InputStreamReader(response.body())) {
+            // Catch bad response
+            if (response.statusCode() != 200)
+            	throw new IOException(String.format("Connection to %s failed: Error %d.", url.getHost(), response.statusCode()));
         	return GsonTools.getInstance().fromJson(reader, JsonObject.class);
         }
 	}
@@ -245,18 +281,121 @@ public final class OmeroRequests {
 	 * @see #requestWebClientObjectList
 	 */
 	public static List<JsonElement> requestObjectList(String scheme, String host, int port, OmeroObjectType objectType, OmeroObjectType parentType, int parentId) throws IOException {
-		URL url;
+		return requestObjectList(scheme, host, port, objectType, parentType, parentId, null, null);
+	}
+	
+	/**
+	 * Request a list of {@code OmeroObject}s with type {@code objectType} and parent's id {@code parentId} from the server, 
+	 * restricted to the objects of the specified group and owner. The restriction is applied by the server, so that 
+	 * the objects of other groups/owners are not sent at all.
+	 * <p>
+	 * A {@code null} group (or {@link Group#getAllGroupsGroup()}) and a {@code null} owner (or {@link Owner#getAllMembersOwner()}) 
+	 * do not restrict the list.
+	 * 
+	 * @param scheme server's scheme
+	 * @param host server's host
+	 * @param port server's port
+	 * @param objectType object's type
+	 * @param parentType type of object's parent
+	 * @param parentId object's parent id
+	 * @param group group of the objects, or null
+	 * @param owner owner of the objects, or null
+	 * @return list of json responses
+	 * @throws IOException
+	 */
+	public static List<JsonElement> requestObjectList(String scheme, String host, int port, OmeroObjectType objectType, OmeroObjectType parentType, int parentId, 
+			Group group, Owner owner) throws IOException {
+		// Return json
+		return OmeroTools.readPaginated(getObjectListURL(scheme, host, port, objectType, parentType, parentId, group, owner));
+	}
+	
+	/**
+	 * Request a list of {@code OmeroObject}s with type {@code objectType} and parent's id {@code parentId} from the server, 
+	 * as a stream of {@code JsonElement}s that are parsed as the pages of the response are received.
+	 * <p>
+	 * The returned stream should be closed after use. I/O errors occurring after the first page are thrown 
+	 * as {@link java.io.UncheckedIOException}s.
+	 * 
+	 * @param scheme server's scheme
+	 * @param host server's host
+	 * @param port server's port
+	 * @param objectType object's type
+	 * @param parentType type of object's parent
+	 * @param parentId object's parent id
+	 * @return stream of json responses
+	 * @throws IOException
+	 * @see #requestObjectList(String, String, int, OmeroObjectType, OmeroObjectType, int)
+	 */
+	static Stream<JsonElement> streamObjectList(String scheme, String host, int port, OmeroObjectType objectType, OmeroObjectType parentType, int parentId) throws IOException {
+		return streamObjectList(scheme, host, port, objectType, parentType, parentId, null, null);
+	}
+	
+	/**
+	 * Request a list of {@code OmeroObject}s restricted to the specified group and owner, as a stream of {@code JsonElement}s 
+	 * that are parsed as the pages of the response are received.
+	 * 
+	 * @param scheme server's scheme
+	 * @param host server's host
+	 * @param port server's port
+	 * @param objectType object's type
+	 * @param parentType type of object's parent
+	 * @param parentId object's parent id
+	 * @param group group of the objects, or null
+	 * @param owner owner of the objects, or null
+	 * @return stream of json responses
+	 * @throws IOException
+	 * @see #streamObjectList(String, String, int, OmeroObjectType, OmeroObjectType, int)
+	 * @see #requestObjectList(String, String, int, OmeroObjectType, OmeroObjectType, int, Group, Owner)
+	 */
+	static Stream<JsonElement> streamObjectList(String scheme, String host, int port, OmeroObjectType objectType, OmeroObjectType parentType, int parentId, 
+			Group group, Owner owner) throws IOException {
+		return OmeroPageIterator.stream(getObjectListURL(scheme, host, port, objectType, parentType, parentId, group, owner));
+	}
+	
+	/**
+	 * Return the URL of the (paginated) list of {@code OmeroObject}s with type {@code objectType} and parent's id {@code parentId}.
+	 * 
+	 * @param scheme server's scheme
+	 * @param host server's host
+	 * @param port server's port
+	 * @param objectType object's type
+	 * @param parentType type of object's parent ({@code SERVER} for orphaned objects)
+	 * @param parentId object's parent id
+	 * @return URL of the list
+	 * @throws IOException
+	 */
+	static URL getObjectListURL(String scheme, String host, int port, OmeroObjectType objectType, OmeroObjectType parentType, int parentId) throws IOException {
+		return getObjectListURL(scheme, host, port, objectType, parentType, parentId, null, null);
+	}
+	
+	/**
+	 * Return the URL of the (paginated) list of {@code OmeroObject}s with type {@code objectType} and parent's id {@code parentId}, 
+	 * restricted to the specified group and owner (if not null, and not 'All groups'/'All members').
+	 * 
+	 * @param scheme server's scheme
+	 * @param host server's host
+	 * @param port server's port
+	 * @param objectType object's type
+	 * @param parentType type of object's parent ({@code SERVER} for orphaned objects)
+	 * @param parentId object's parent id
+	 * @param group group of the objects, or null
+	 * @param owner owner of the objects, or null
+	 * @return URL of the list
+	 * @throws IOException
+	 */
+	static URL getObjectListURL(String scheme, String host, int port, OmeroObjectType objectType, OmeroObjectType parentType, int parentId, 
+			Group group, Owner owner) throws IOException {
 		String query = "childCount=true";
+		if (group != null && group != Group.getAllGroupsGroup())
+			query += "&group=" + group.getId();
+		if (owner != null && owner != Owner.getAllMembersOwner())
+			query += "&owner=" + owner.getId();
 		if (parentType == OmeroObjectType.SERVER)	// Orphaned
-			url = new URL(scheme, host, port, String.format(JSON_API_LIST, objectType.toURLString(), query) + "&orphaned=true");
+			return new URL(scheme, host, port, String.format(JSON_API_LIST, objectType.toURLString(), query) + "&orphaned=true");
 		else if (parentId == -1)					// All OmeroObjects of type 'objectType'
-			url = new URL(scheme, host, port, String.format(JSON_API_LIST, objectType.toURLString(), query));
+			return new URL(scheme, host, port, String.format(JSON_API_LIST, objectType.toURLString(), query));
 		else										// All OmeroObjects of type 'objectType' with parent
-			url = new URL(scheme, host, port, String.format(JSON_API_FILTERED_LIST, parentType.toURLString(), parentId, objectType.toURLString(), query));
-
-		// Return json
-		return OmeroTools.readPaginated(url);
-		
+			return new URL(scheme, host, port, String.format(JSON_API_FILTERED_LIST, parentType.toURLString(), parentId, objectType.toURLString(), query));
 	}
 	
 	/**
@@ -274,13 +413,12 @@ public final class OmeroRequests {
 	 */
 	public static JsonObject requestWebClientObjectList(String scheme, String host, int port, OmeroObjectType objectType) throws IOException {
 		URL urlOrphanedImages = new URL(scheme, host, port, String.format("/webclient/api/%s/?orphaned=true", objectType.toURLString()));
-		HttpURLConnection connection = (HttpURLConnection) urlOrphanedImages.openConnection();
-        if (connection.getResponseCode() == 200) {
-        	try (InputStreamReader reader = new InputStreamReader(connection.getInputStream())) {
-        		return GsonTools.getInstance().fromJson(reader, JsonObject.class);
-        	}
-        }
-		throw new IOException(String.format("Error %d while connecting to OMERO Webclient: %s", connection.getResponseCode(), connection.getResponseMessage()));
+		var response = send(newRequest(urlOrphanedImages).GET().build(), BodyHandlers.ofInputStream());
+    	try (InputStreamReader reader = new InputStreamReader(response.body())) {
+    		if (response.statusCode() == 200)
+    			return GsonTools.getInstance().fromJson(reader, JsonObject.class);
+    	}
+		throw new IOException(String.format("Error %d while connecting to OMERO Webclient: %s", response.statusCode(), urlOrphanedImages));
 	}
 	
 	/**
@@ -298,11 +436,33 @@ public final class OmeroRequests {
 	 */
 	public static JsonElement requestOMEROAnnotations(String scheme, String host, int port, int id, OmeroObjectType objType, OmeroAnnotationType annType) throws IOException {
 		URL url = new URL(scheme, host, port, String.format(WEBCLIENT_READ_ANNOTATION, annType.toURLString(), objType.toString().toLowerCase(), id, System.currentTimeMillis()));
-		try (InputStreamReader reader = new InputStreamReader(url.openStream())) {
+		try (InputStreamReader reader = new InputStreamReader(openStream(url))) {
 			return GsonTools.getInstance().fromJson(reader, JsonElement.class);
 		}
 	}
 
+	/**
+	 * Request the annotations of type {@code annType} of the OMERO object with the specified {@code id}, without blocking.
+	 * Cancelling the returned future aborts the request.
+	 * 
+	 * @param serverURI server's URI
+	 * @param id object's id
+	 * @param objType object's type
+	 * @param annType annotation's type
+	 * @return future JsonElement
+	 * @see #requestOMEROAnnotations(String, String, int, int, OmeroObjectType, OmeroAnnotationType)
+	 */
+	static CompletableFuture<JsonElement> requestOMEROAnnotationsAsync(URI serverURI, int id, OmeroObjectType objType, OmeroAnnotationType annType) {
+		var request = HttpRequest.newBuilder(serverURI.resolve(String.format(WEBCLIENT_READ_ANNOTATION, annType.toURLString(), objType.toString().toLowerCase(), id, System.currentTimeMillis()))).GET().build();
+		return mapResponse(sendAsync(request, BodyHandlers.ofInputStream()), response -> {
+			try (InputStreamReader reader = new InputStreamReader(checkStatus(response).body())) {
+				return GsonTools.getInstance().fromJson(reader, JsonElement.class);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
 	/**
 	 * Request all the (OMERO) ROIs from the OMERO image with the specified {@code id}.
 	 * A list of {@code JsonElement}s is returned as the OMERO API response is paginated.
@@ -319,9 +479,34 @@ public final class OmeroRequests {
 		return OmeroTools.readPaginated(url);
 	}
 	
+	/**
+	 * Request all the (OMERO) ROIs from the OMERO image with the specified {@code id}, as a stream 
+	 * of {@code JsonElement}s that are parsed as the pages of the response are received.
+	 * <p>
+	 * The returned stream should be closed after use. I/O errors occurring after the first page are thrown 
+	 * as {@link java.io.UncheckedIOException}s.
+	 * 
+	 * @param scheme server's scheme
+	 * @param host server's host
+	 * @param port server's port
+	 * @param id object's id
+	 * @return stream of json responses
+	 * @throws IOException
+	 * @see #requestROIs(String, String, int, String)
+	 */
+	static Stream<JsonElement> streamROIs(String scheme, String host, int port, String id) throws IOException {
+		URL url = new URL(scheme, host, port, String.format(JSON_API_ROIS, id));
+		return OmeroPageIterator.stream(url);
+	}
+	
 	/**
 	 * Request to write QuPath's annotations (in Json form) to the OMERO image with the specified {@code id}.
 	 * It is recommended to use methods from {@link OmeroTools} directly with {@code PathObject}s instead of this method.
+	 * <p>
+	 * The body of the request is written as it is sent, and compressed with gzip if enabled in the preferences. 
+	 * OMERO.web itself does not decompress request bodies (this is left to the server in front of it), and fails 
+	 * to parse compressed ROIs: if compressed ROIs are not written, they are sent uncompressed once, and are not 
+	 * compressed anymore for this server if this succeeds.
 	 * 
 	 * @param scheme server's scheme
 	 * @param host server's host
@@ -334,27 +519,80 @@ public final class OmeroRequests {
 	 * @see OmeroTools
 	 */
 	public static boolean requestWriteROIs(String scheme, String host, int port, int id, String token, List<String> roiJsonList) throws IOException {
-		String request = String.format("{\"imageId\":%d,\n" +
-				"\"rois\":{\"count\":%d,\n" +
-				"\"empty_rois\":{},\n" +
-				"\"new_and_deleted\":[],\n" +
-				"\"deleted\":{},\n" +
-				"\"new\":[%s],\"modified\":[]}}", id, roiJsonList.size(), String.join(", ", roiJsonList));
-		
-		// Create request
+		// Each ROI is followed by a comma
+		long roisLength = roiJsonList.stream().mapToLong(roi -> OmeroROIWriter.getUTF8Length(roi) + 1).sum();
+		return requestWriteROIs(scheme, host, port, id, token, roiJsonList, roisLength);
+	}
+	
+	/**
+	 * Request to write QuPath's annotations (in Json form) to the OMERO image with the specified {@code id}, 
+	 * when the number of bytes of the ROIs is already known.
+	 * 
+	 * @param scheme server's scheme
+	 * @param host server's host
+	 * @param port server's port
+	 * @param id object's id
+	 * @param token webclient's token
+	 * @param roiJsonList list of Jsons
+	 * @param roisLength number of bytes of the Jsons encoded in UTF-8, each followed by a comma
+	 * @return success
+	 * @throws IOException
+	 * @see #requestWriteROIs(String, String, int, int, String, List)
+	 */
+	static boolean requestWriteROIs(String scheme, String host, int port, int id, String token, List<String> roiJsonList, long roisLength) throws IOException {
 		URL url = new URL(scheme, host, port, "/iviewer/persist_rois/");
-		var conn = url.openConnection();
-		conn.setRequestProperty("Referer", new URL(scheme, host, port, "/iviewer/?images=" + id).toString());
-		conn.setRequestProperty("X-CSRFToken", token);
-		conn.setDoOutput(true);
+		// A compressed body is usually small enough to be compressed only once, and kept in memory
+		byte[] compressed = OmeroPrefs.roiCompressionProperty().get() && !GZIP_UNSUPPORTED.contains(url.getAuthority()) ? 
+				OmeroROIBodyStream.readCompressed(id, roiJsonList, OmeroROIWriter.MAX_BATCH_BYTES) : null;
+		if (compressed == null)
+			return requestWriteROIs(url, id, token, roiJsonList, roisLength, null);
 		
-		// Send JSON
-		try (OutputStream stream = conn.getOutputStream()) {
-			stream.write(request.getBytes("UTF-8"));	
+		try {
+			return requestWriteROIs(url, id, token, roiJsonList, roisLength, compressed);
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException e) {
+			// Requests that were not handled are sent again later, other failures might be caused by the compression
+			if (OmeroROIWriter.isRetryable(e))
+				throw e;
+			logger.debug("Unable to write compressed ROIs to {} ({}), sending them uncompressed", url.getAuthority(), e.getLocalizedMessage());
+			boolean success = requestWriteROIs(url, id, token, roiJsonList, roisLength, null);
+			logger.info("{} does not accept compressed ROIs, they will be sent uncompressed", url.getAuthority());
+			GZIP_UNSUPPORTED.add(url.getAuthority());
+			return success;
+		}
+	}
+	
+	private static boolean requestWriteROIs(URL url, int id, String token, List<String> roiJsonList, long roisLength, byte[] compressed) throws IOException {
+		BodyPublisher body;
+		if (compressed != null)
+			body = BodyPublishers.ofByteArray(compressed);
+		else {
+			// The body is written as it is sent, its length is known beforehand (some servers need it)
+			long length = OmeroROIBodyStream.getLength(id, roiJsonList.size(), roisLength);
+			body = BodyPublishers.fromPublisher(BodyPublishers.ofInputStream(() -> {
+				try {
+					return new OmeroROIBodyStream(id, roiJsonList, false);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}), length);
 		}
 		
-		// Get response
-		try (var stream = conn.getInputStream()) {
+		// Create request
+		var builder = newRequest(url)
+				.header("Referer", new URL(url, "/iviewer/?images=" + id).toString())
+				.header("X-CSRFToken", token)
+				.header("Content-Type", "application/x-www-form-urlencoded");
+		if (compressed != null)
+			builder.header("Content-Encoding", "gzip");
+		var httpRequest = builder
+				.POST(body)
+				.build();
+		
+		// Send JSON and get response
+		var httpResponse = checkStatus(send(httpRequest, BodyHandlers.ofInputStream()));
+		try (var stream = httpResponse.body()) {
 			String response = GeneralTools.readInputStreamAsString(stream);
 			if (response.toLowerCase().contains("error"))
 				throw new IOException(response);
@@ -376,9 +614,61 @@ public final class OmeroRequests {
 	 */
 	public static BufferedImage requestThumbnail(String scheme, String host, int port, int id, int prefSize) throws IOException {
 		URL url = new URL(scheme, host, port, String.format(WEBGATEWAY_THUMBNAIL, id, prefSize));			
-		return ImageIO.read(url);
+		return readImage(url);
 		
 	}
+	
+	/**
+	 * Request the (compressed) thumbnail of size {@code prefSize} of the OMERO image with the specified {@code id}, 
+	 * without blocking.
+	 * 
+	 * @param serverURI server's URI
+	 * @param id object's id
+	 * @param prefSize thumbnail's size
+	 * @return future bytes of the thumbnail
+	 */
+	static CompletableFuture<byte[]> requestThumbnailAsync(URI serverURI, int id, int prefSize) {
+		var request = HttpRequest.newBuilder(serverURI.resolve(String.format(WEBGATEWAY_THUMBNAIL, id, prefSize))).GET().build();
+		return mapResponse(sendAsync(request, BodyHandlers.ofByteArray()), response -> {
+			try {
+				return checkStatus(response).body();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+	
+	/**
+	 * Request the (compressed) thumbnails of size {@code prefSize} of all the OMERO images with the specified {@code ids} 
+	 * in a single request, without blocking. Images without thumbnail are absent from the returned map.
+	 * <p>
+	 * Note: OMERO.web limits the number of thumbnails per request (50 by default).
+	 * 
+	 * @param serverURI server's URI
+	 * @param ids objects' ids
+	 * @param prefSize thumbnails' size
+	 * @return future map of image ids and bytes of their thumbnail
+	 */
+	static CompletableFuture<Map<Integer, byte[]>> requestThumbnailsAsync(URI serverURI, Collection<Integer> ids, int prefSize) {
+		String query = ids.stream().map(id -> "id=" + id).collect(Collectors.joining("&"));
+		var request = HttpRequest.newBuilder(serverURI.resolve(String.format(WEBGATEWAY_THUMBNAILS, prefSize, query))).GET().build();
+		return mapResponse(sendAsync(request, BodyHandlers.ofInputStream()), response -> {
+			try (var reader = new InputStreamReader(checkStatus(response).body(), StandardCharsets.UTF_8)) {
+				// Thumbnails are returned as data URLs, e.g. {"101": "data:image/jpeg;base64,/9j/4AAQ..."}
+				var json = GsonTools.getInstance().fromJson(reader, JsonObject.class);
+				Map<Integer, byte[]> map = new HashMap<>();
+				for (var entry: json.entrySet()) {
+					if (!entry.getValue().isJsonPrimitive())
+						continue;
+					String data = entry.getValue().getAsString();
+					map.put(Integer.parseInt(entry.getKey()), Base64.getDecoder().decode(data.substring(data.indexOf(',') + 1)));
+				}
+				return map;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
 
 	/**
 	 * Request OMERO icon with the specified {@code iconFilename} from the provided server.
@@ -392,7 +682,7 @@ public final class OmeroRequests {
 	 */
 	public static BufferedImage requestIcon(String scheme, String host, int port, String iconFilename) throws IOException {
 		URL url = new URL(scheme, host, port, String.format(WEBGATEWAY_ICON, iconFilename));
-		return ImageIO.read(url);
+		return readCachedImage(url);
 	}
 	
 	/**
@@ -409,7 +699,7 @@ public final class OmeroRequests {
 	 */
 	public static BufferedImage requestImageIcon(String scheme, String host, int port, String iconFilename) throws IOException {
 		URL url = new URL(scheme, host, port, String.format(WEBGATEWAY_IMAGE_ICON, iconFilename));
-		return ImageIO.read(url);
+		return readCachedImage(url);
 	}
 
 	/**
@@ -430,6 +720,39 @@ public final class OmeroRequests {
 	 */
 	public static String requestAdvancedSearch(String scheme, String host, int port, String query, String[] fields, 
 			String[] datatypes,	Group group, Owner owner) throws IOException {
+		URL url = getAdvancedSearchURL(scheme, host, port, query, fields, datatypes, group, owner);
+		try (InputStream stream = openStream(url)) {
+			return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+	
+	/**
+	 * Request advanced search with specified {@code query}, returning an iterator over the rows of the results 
+	 * that parses them as they are received. See {@link #requestAdvancedSearch(String, String, int, String, String[], String[], Group, Owner)} 
+	 * for the parameters.
+	 * <p>
+	 * The iterator should be closed after use.
+	 * 
+	 * @param scheme server's scheme
+	 * @param host server's host
+	 * @param port server's port
+	 * @param query query to search
+	 * @param fields fields to query
+	 * @param datatypes datatypes to query
+	 * @param group group to restrict search to
+	 * @param owner owner to restrict search to
+	 * @return iterator over the result rows
+	 * @throws IOException if the search cannot be sent
+	 * @see OmeroSearchResultReader
+	 */
+	static OmeroSearchResultReader openAdvancedSearch(String scheme, String host, int port, String query, String[] fields, 
+			String[] datatypes,	Group group, Owner owner) throws IOException {
+		URL url = getAdvancedSearchURL(scheme, host, port, query, fields, datatypes, group, owner);
+		return new OmeroSearchResultReader(openStream(url));
+	}
+	
+	private static URL getAdvancedSearchURL(String scheme, String host, int port, String query, String[] fields, 
+			String[] datatypes,	Group group, Owner owner) throws IOException {
 		
 		// Throw NPE to avoid unexpected behavior due to wrong OMERO URL syntax
 		if (group == null || owner == null)
@@ -442,12 +765,12 @@ public final class OmeroRequests {
 				+ "&startdateinput="
 				+ "&enddateinput=&_=%d";
 		
-		URL url = new URL(
+		return new URL(
 				scheme, 					// Scheme
 				host, 						// Host
 				port, 						// Port
 				String.format(urlQuery, 	// Long url query
-						query, 
+						URLEncoder.encode(query, StandardCharsets.UTF_8), 
 						String.join("&", fields), 
 						String.join("&", datatypes), 
 						group.getId(), 
@@ -455,17 +778,6 @@ public final class OmeroRequests {
 						System.currentTimeMillis()
 				)
 		);
-		
-		try (InputStreamReader reader = new InputStreamReader(url.openStream())) {
-			String response = "";
-			var temp = reader.read();
-			while (temp != -1) {
-				response += (char)temp;
-				temp = reader.read();
-			}
-			
-			return response;			
-		}
 	}
 
 	/**
@@ -476,10 +788,185 @@ public final class OmeroRequests {
 	public static boolean isLoggedIn(URI uri) {
 		try {
 			var url = new URL(uri.getScheme(), uri.getHost(), uri.getPort(), "/api/v0/m/" + OmeroObjectType.PROJECT.toURLString());
-			var conn = (HttpURLConnection) url.openConnection();
-			return conn.getResponseCode() == 200;
+			return send(newRequest(url).GET().build(), BodyHandlers.discarding()).statusCode() == 200;
 		} catch (IOException ex) {
 			return false;
 		}
 	}
+	
+	/**
+	 * Checks whether the specified client is logged in to its server (<b>not</b> necessarily with access to its image).
+	 * Unlike {@link #isLoggedIn(URI)}, this uses the session of the client even if it is not registered yet.
+	 * @param client 
+	 * @return isLoggedIn
+	 */
+	static boolean isLoggedIn(OmeroWebClient client) {
+		try {
+			var request = HttpRequest.newBuilder(client.getServerURI().resolve("/api/v0/m/" + OmeroObjectType.PROJECT.toURLString())).GET().build();
+			return client.send(request, BodyHandlers.discarding()).statusCode() == 200;
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Send the specified request through the {@link OmeroWebClient} of the request's server, 
+	 * so that its session and connections are used. If no client exists yet for this server, 
+	 * the request is sent without any session.
+	 * 
+	 * @param <T> response body type
+	 * @param request
+	 * @param handler
+	 * @return response
+	 * @throws IOException
+	 */
+	static <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> handler) throws IOException {
+		var client = getClient(request.uri());
+		if (client != null)
+			return client.send(request, handler);
+		return OmeroWebClient.send(DEFAULT_HTTP_CLIENT, request, handler);
+	}
+	
+	/**
+	 * Apply the specified function to the response of an asynchronous request. Unlike 
+	 * {@link CompletableFuture#thenApply(Function)}, cancelling the returned future also cancels the request 
+	 * (e.g. to abort the exchange, or to withdraw it if it is still waiting to be sent).
+	 * @param <T> response type
+	 * @param <U> result type
+	 * @param response future response
+	 * @param fn function applied to the response
+	 * @return future result
+	 */
+	static <T, U> CompletableFuture<U> mapResponse(CompletableFuture<T> response, Function<? super T, ? extends U> fn) {
+		var result = response.<U>thenApply(fn);
+		result.whenComplete((r, e) -> {
+			if (result.isCancelled())
+				response.cancel(true);
+		});
+		return result;
+	}
+	
+	/**
+	 * Asynchronous equivalent of {@link #send(HttpRequest, BodyHandler)}.
+	 * 
+	 * @param <T> response body type
+	 * @param request
+	 * @param handler
+	 * @return future response
+	 */
+	static <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> handler) {
+		var client = getClient(request.uri());
+		if (client != null)
+			return client.sendAsync(request, handler);
+		return DEFAULT_HTTP_CLIENT.sendAsync(request, handler);
+	}
+	
+	/**
+	 * Send a GET request to the specified URL and return the response body. 
+	 * As with {@link URL#openStream()}, an IOException is thrown if the server returns an error code.
+	 * 
+	 * @param url
+	 * @return input stream
+	 * @throws IOException
+	 */
+	static InputStream openStream(URL url) throws IOException {
+		return checkStatus(send(newRequest(url).GET().build(), BodyHandlers.ofInputStream())).body();
+	}
+	
+	/**
+	 * Create a request builder for the specified URL.
+	 * @param url
+	 * @return request builder
+	 * @throws IOException if the URL cannot be converted to a URI
+	 */
+	static HttpRequest.Builder newRequest(URL url) throws IOException {
+		try {
+			return HttpRequest.newBuilder(url.toURI());
+		} catch (URISyntaxException ex) {
+			throw new IOException(ex);
+		}
+	}
+	
+	/**
+	 * Throw an IOException (and release the response body) if the response has an error code.
+	 * @param <T> response body type
+	 * @param response
+	 * @return the same response
+	 * @throws HttpStatusException if the response has an error code
+	 * @throws IOException if the response body cannot be released
+	 */
+	static <T> HttpResponse<T> checkStatus(HttpResponse<T> response) throws IOException {
+		if (response.statusCode() >= 400) {
+			if (response.body() instanceof Closeable)
+				((Closeable)response.body()).close();
+			throw new HttpStatusException(response.statusCode(), response.uri());
+		}
+		return response;
+	}
+	
+	private static BufferedImage readImage(URL url) throws IOException {
+		try (var stream = openStream(url)) {
+			return ImageIO.read(stream);
+		}
+	}
+	
+	/**
+	 * Read an image that rarely changes (e.g. an icon) from the browser cache of its server if possible, 
+	 * requesting it again in the background if the cached copy is old.
+	 */
+	private static BufferedImage readCachedImage(URL url) throws IOException {
+		OmeroBrowserCache cache;
+		try {
+			cache = OmeroBrowserCache.getInstance(getClient(url.toURI()));
+		} catch (URISyntaxException ex) {
+			throw new IOException(ex);
+		}
+		if (cache == null)
+			return readImage(url);
+		
+		String key = "icon" + url.getPath();
+		byte[] bytes = cache.get(key);
+		if (bytes == null) {
+			try (var stream = openStream(url)) {
+				bytes = stream.readAllBytes();
+			}
+			cache.put(key, bytes);
+		} else if (cache.isStale(key)) {
+			sendAsync(newRequest(url).GET().build(), BodyHandlers.ofByteArray()).thenAccept(response -> {
+				if (response.statusCode() == 200)
+					cache.put(key, response.body());
+			});
+		}
+		return ImageIO.read(new ByteArrayInputStream(bytes));
+	}
+	
+	private static OmeroWebClient getClient(URI uri) {
+		var serverURI = OmeroTools.getServerURI(uri);
+		if (serverURI == null)
+			return null;
+		return OmeroWebClients.getClientFromServerURI(serverURI);
+	}
+	
+	/**
+	 * Exception thrown when the server returns an error code.
+	 */
+	static class HttpStatusException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int status;
+
+		HttpStatusException(int status, URI uri) {
+			super(String.format("Server returned HTTP response code %d for URL: %s", status, uri));
+			this.status = status;
+		}
+
+		/**
+		 * Return the HTTP status code returned by the server.
+		 * @return status code
+		 */
+		int getStatus() {
+			return status;
+		}
+	}
 }
@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Iterator over the rows of the HTML table returned by the advanced search of OMERO.web, which parses
+ * the rows one at a time as the response is received instead of reading the whole response first.
+ * <p>
+ * Each row is returned as an array of 7 values: type, id, name, acquisition date, import date, group and link.
+ * Only the row being read is kept in memory, and the patterns are only matched against that row.
+ * <p>
+ * Errors are thrown as {@link UncheckedIOException}s. The iterator should be closed if it is not consumed
+ * entirely, to release the underlying connection.
+ */
+class OmeroSearchResultReader implements Iterator<String[]>, Closeable {
+
+	private static final String ROW_END = "</tr>";
+
+	private static final Pattern patternRow = Pattern.compile("<tr id=\"(.+?)-(.+?)\".+?</tr>", Pattern.DOTALL | Pattern.MULTILINE);
+	private static final Pattern patternDesc = Pattern.compile("<td class=\"desc\"><a>(.+?)</a></td>");
+	private static final Pattern patternDate = Pattern.compile("<td class=\"date\">(.+?)</td>");
+	private static final Pattern patternGroup = Pattern.compile("<td class=\"group\">(.+?)</td>");
+	private static final Pattern patternLink = Pattern.compile("<td><a href=\"(.+?)\"");
+
+	private static final Pattern[] patterns = new Pattern[] {patternDesc, patternDate, patternDate, patternGroup, patternLink};
+
+	private final Reader reader;
+	private final char[] chars = new char[8192];
+	private final StringBuilder buffer = new StringBuilder();
+	private boolean endOfStream = false;
+
+	private String[] next;
+
+	OmeroSearchResultReader(InputStream stream) {
+		this.reader = new InputStreamReader(stream, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next != null)
+			return true;
+		try {
+			next = readNext();
+		} catch (IOException e) {
+			close();
+			throw new UncheckedIOException(e);
+		}
+		return next != null;
+	}
+
+	@Override
+	public String[] next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		var values = next;
+		next = null;
+		return values;
+	}
+
+	private String[] readNext() throws IOException {
+		int from = 0;
+		while (true) {
+			int end = buffer.indexOf(ROW_END, from);
+			if (end >= 0) {
+				end += ROW_END.length();
+				String chunk = buffer.substring(0, end);
+				buffer.delete(0, end);
+				from = 0;
+				// Table header rows don't have an id, skip them
+				Matcher rowMatcher = patternRow.matcher(chunk);
+				if (rowMatcher.find())
+					return parseRow(rowMatcher);
+				continue;
+			}
+			if (endOfStream)
+				return null;
+
+			// The end of the row might be split between two reads
+			from = Math.max(0, buffer.length() - ROW_END.length());
+			int n = reader.read(chars);
+			if (n < 0)
+				endOfStream = true;
+			else
+				buffer.append(chars, 0, n);
+		}
+	}
+
+	private static String[] parseRow(Matcher rowMatcher) {
+		String[] values = new String[7];
+		String row = rowMatcher.group(0);
+		values[0] = rowMatcher.group(1);
+		values[1] = rowMatcher.group(2);
+		String value = "";
+
+		int nValue = 2;
+		for (var pattern: patterns) {
+			Matcher matcher = pattern.matcher(row);
+			if (matcher.find()) {
+				value = matcher.group(1);
+				row = row.substring(matcher.end());
+			}
+			values[nValue++] = value;
+		}
+		return values;
+	}
+
+	@Override
+	public void close() {
+		try {
+			reader.close();
+		} catch (IOException e) {
+			// Nothing else we can do
+		}
+	}
+
+}
@@ -0,0 +1,390 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.omero.OmeroRequestLimiter.Priority;
+
+/**
+ * Cache of the image thumbnails of an OMERO server, shared by all the browsers of a client.
+ * <p>
+ * Thumbnails are kept as the compressed bytes received from the server (and only decoded when they are
+ * painted), in a least recently used cache bounded by its size in bytes. Thumbnails requested within a
+ * short delay of each other are fetched together through the multi-id {@code get_thumbnails} endpoint
+ * of the webgateway, rather than one request per image.
+ * <p>
+ * Thumbnails are also kept in the {@link OmeroBrowserCache} of the server (if enabled), from which they are 
+ * read in the background when they are requested and not in memory (since thumbnails are mostly requested 
+ * from the JavaFX application thread). Thumbnails read from disk are returned without waiting for the server, 
+ * and requested again in the background if they are old.
+ * <p>
+ * Cancelling a returned future does not affect other callers waiting for the same thumbnail. Once all the 
+ * callers waiting for a thumbnail have cancelled, it is removed from the next batch (or, if all the thumbnails 
+ * of a batch were cancelled, the request of the batch is aborted).
+ *
+ * @see OmeroPrefs#thumbnailCacheSizeMBProperty()
+ */
+class OmeroThumbnailCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(OmeroThumbnailCache.class);
+
+	/**
+	 * Maximum number of thumbnails per request (OMERO.web's default {@code omero.web.thumbnails_batch}).
+	 */
+	static final int MAX_BATCH_SIZE = 50;
+
+	/**
+	 * Time to wait for other thumbnails to be requested before sending a batch.
+	 */
+	private static final long BATCH_DELAY_MILLIS = 20;
+
+	/**
+	 * Pool reading the thumbnails from the disk cache.
+	 */
+	private static final ExecutorService diskPool = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("omero-thumbnail-disk-cache", true));
+
+	private final OmeroWebClient client;
+	private final URI serverURI;
+
+	private final Map<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+	private long nBytes = 0;
+
+	/**
+	 * Thumbnails requested but not received yet.
+	 */
+	private final Map<String, Pending> pending = new HashMap<>();
+
+	/**
+	 * Ids of the thumbnails waiting to be sent in a batch, per thumbnail size.
+	 */
+	private final Map<Integer, Set<Integer>> queued = new HashMap<>();
+
+	OmeroThumbnailCache(OmeroWebClient client) {
+		this.client = client;
+		this.serverURI = client.getServerURI();
+	}
+
+	/**
+	 * Return the thumbnail of the specified image if it is cached in memory, or {@code null} otherwise
+	 * (in which case it is neither read from disk nor requested).
+	 * @param id image id
+	 * @param size size of the longest side of the thumbnail
+	 * @return thumbnail, or null
+	 */
+	BufferedImage get(int id, int size) {
+		return decode(getBytes(id, size));
+	}
+
+	/**
+	 * Return the compressed bytes of the thumbnail of the specified image if it is cached in memory, or {@code null} otherwise. 
+	 * This does not read the disk cache, so it can be called from the JavaFX application thread.
+	 * @param id image id
+	 * @param size size of the longest side of the thumbnail
+	 * @return bytes, or null
+	 */
+	synchronized byte[] getBytes(int id, int size) {
+		return cache.get(getKey(id, size));
+	}
+
+	/**
+	 * Return the thumbnail of the specified image, requesting it from the server if it is not cached.
+	 * The future completes with {@code null} if the server did not return a thumbnail.
+	 * @param id image id
+	 * @param size size of the longest side of the thumbnail
+	 * @return future thumbnail
+	 */
+	CompletableFuture<BufferedImage> getAsync(int id, int size) {
+		var bytes = getBytesAsync(id, size);
+		var image = bytes.thenApply(OmeroThumbnailCache::decode);
+		image.whenComplete((img, e) -> {
+			if (image.isCancelled())
+				bytes.cancel(false);
+		});
+		return image;
+	}
+
+	/**
+	 * Return the compressed bytes of the thumbnail of the specified image, reading it from the disk cache 
+	 * or requesting it from the server (along with any other thumbnail requested at the same time) 
+	 * if it is not cached in memory.
+	 * @param id image id
+	 * @param size size of the longest side of the thumbnail
+	 * @return future bytes
+	 */
+	CompletableFuture<byte[]> getBytesAsync(int id, int size) {
+		byte[] bytes = getBytes(id, size);
+		if (bytes != null)
+			return CompletableFuture.completedFuture(bytes);
+		if (!OmeroPrefs.browserCacheEnabledProperty().get())
+			return requestBytes(id, size);
+
+		var future = new CompletableFuture<byte[]>();
+		diskPool.execute(() -> {
+			// skip thumbnails cancelled while waiting
+			if (future.isDone())
+				return;
+			byte[] diskBytes = readFromDisk(id, size);
+			if (diskBytes != null) {
+				future.complete(diskBytes);
+				return;
+			}
+			var request = requestBytes(id, size);
+			request.whenComplete((b, e) -> {
+				if (e == null)
+					future.complete(b);
+				else
+					future.completeExceptionally(e);
+			});
+			future.whenComplete((b, e) -> {
+				if (future.isCancelled())
+					request.cancel(false);
+			});
+		});
+		return future;
+	}
+
+	/**
+	 * Request the thumbnail of the specified image from the server, unless it is already pending.
+	 */
+	private CompletableFuture<byte[]> requestBytes(int id, int size) {
+		Pending request;
+		synchronized (this) {
+			request = request(id, size);
+			request.nWaiting++;
+			// Someone is waiting for it again, so it should not count as cancelled when the rest of its batch is
+			request.cancelled = false;
+		}
+		var future = request.future.copy();
+		future.whenComplete((b, e) -> release(request, future.isCancelled()));
+		return future;
+	}
+
+	private synchronized void release(Pending request, boolean cancelled) {
+		request.nWaiting--;
+		if (!cancelled || request.nWaiting > 0 || request.future.isDone())
+			return;
+		request.cancelled = true;
+		if (request.batch == null) {
+			// Not sent yet, nobody is waiting for it anymore
+			var ids = queued.get(request.size);
+			if (ids != null)
+				ids.remove(request.id);
+			pending.remove(getKey(request.id, request.size));
+			request.future.cancel(false);
+		} else if (request.batch.stream().allMatch(r -> r.cancelled))
+			request.batchRequest.cancel(true);
+	}
+
+	/**
+	 * Read a thumbnail from the disk cache, adding it to the memory cache and revalidating it if it is old.
+	 */
+	private byte[] readFromDisk(int id, int size) {
+		var diskCache = OmeroBrowserCache.getInstance(client);
+		if (diskCache == null)
+			return null;
+		String diskKey = getDiskKey(id, size);
+		byte[] bytes = diskCache.get(diskKey);
+		if (bytes == null)
+			return null;
+		synchronized (this) {
+			put(getKey(id, size), bytes);
+		}
+		if (diskCache.isStale(diskKey))
+			request(id, size);
+		return bytes;
+	}
+
+	/**
+	 * Queue a request for the specified thumbnail, unless it is already pending.
+	 */
+	private synchronized Pending request(int id, int size) {
+		String key = getKey(id, size);
+		var request = pending.get(key);
+		if (request != null)
+			return request;
+		request = new Pending(id, size);
+		pending.put(key, request);
+
+		var ids = queued.computeIfAbsent(size, s -> new LinkedHashSet<>());
+		ids.add(id);
+		if (ids.size() >= MAX_BATCH_SIZE)
+			flush(size);
+		else if (ids.size() == 1)
+			CompletableFuture.runAsync(() -> flush(size), CompletableFuture.delayedExecutor(BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS));
+		return request;
+	}
+
+	/**
+	 * Send a request for all the queued thumbnails of the specified size.
+	 */
+	private synchronized void flush(int size) {
+		var ids = queued.remove(size);
+		if (ids == null || ids.isEmpty())
+			return;
+		List<Integer> batch = new ArrayList<>(ids);
+		List<Pending> requests = new ArrayList<>();
+		for (int id: batch)
+			requests.add(pending.get(getKey(id, size)));
+		CompletableFuture<Map<Integer, byte[]>> batchRequest;
+		try (var scope = OmeroRequestLimiter.withPriority(Priority.THUMBNAIL)) {
+			batchRequest = OmeroRequests.requestThumbnailsAsync(serverURI, batch, size);
+		}
+		for (var request: requests) {
+			request.batch = requests;
+			request.batchRequest = batchRequest;
+		}
+		batchRequest.whenComplete((map, e) -> {
+			if (e == null) {
+				for (int id: batch)
+					complete(id, size, map.get(id));
+			} else if (batchRequest.isCancelled()) {
+				for (var request: requests)
+					cancel(request);
+			} else
+				requestOneByOne(batch, size, e);
+		});
+	}
+
+	private void requestOneByOne(List<Integer> batch, int size, Throwable batchError) {
+		logger.debug("Unable to request thumbnails in batch ({}), requesting them one by one", batchError.getLocalizedMessage());
+		// This runs in a callback of the batch request, so the priority has to be set again
+		try (var scope = OmeroRequestLimiter.withPriority(Priority.THUMBNAIL)) {
+			for (int id: batch) {
+				OmeroRequests.requestThumbnailAsync(serverURI, id, size).whenComplete((bytes, e) -> {
+					if (e != null)
+						logger.warn("Error requesting the thumbnail: {}", e.getLocalizedMessage());
+					complete(id, size, bytes);
+				});
+			}
+		}
+	}
+
+	private void cancel(Pending request) {
+		synchronized (this) {
+			pending.remove(getKey(request.id, request.size), request);
+		}
+		request.future.cancel(false);
+	}
+
+	private void complete(int id, int size, byte[] bytes) {
+		Pending request;
+		synchronized (this) {
+			String key = getKey(id, size);
+			request = pending.remove(key);
+			if (bytes != null)
+				put(key, bytes);
+		}
+		if (bytes != null) {
+			var diskCache = OmeroBrowserCache.getInstance(client);
+			if (diskCache != null)
+				diskCache.put(getDiskKey(id, size), bytes);
+		}
+		// Complete outside of the lock, since this runs the callbacks of the browser
+		if (request != null)
+			request.future.complete(bytes);
+	}
+
+	private void put(String key, byte[] bytes) {
+		var previous = cache.put(key, bytes);
+		if (previous != null)
+			nBytes -= previous.length;
+		nBytes += bytes.length;
+
+		long maxBytes = Math.max(0, OmeroPrefs.thumbnailCacheSizeMBProperty().get()) * 1024L * 1024L;
+		Iterator<byte[]> iterator = cache.values().iterator();
+		while (nBytes > maxBytes && iterator.hasNext()) {
+			nBytes -= iterator.next().length;
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Return the number of bytes of the thumbnails currently cached.
+	 * @return bytes
+	 */
+	synchronized long getSizeBytes() {
+		return nBytes;
+	}
+
+	private static String getKey(int id, int size) {
+		return id + "/" + size;
+	}
+
+	private static String getDiskKey(int id, int size) {
+		return "thumbnail-" + id + "-" + size;
+	}
+
+	/**
+	 * Thumbnail requested but not received yet.
+	 */
+	private static class Pending {
+
+		private final int id;
+		private final int size;
+		private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+		private int nWaiting = 0;
+		private boolean cancelled = false;
+
+		// Thumbnails requested together, and their request (null until the batch is sent)
+		private List<Pending> batch;
+		private CompletableFuture<?> batchRequest;
+
+		private Pending(int id, int size) {
+			this.id = id;
+			this.size = size;
+		}
+	}
+
+	private static BufferedImage decode(byte[] bytes) {
+		if (bytes == null)
+			return null;
+		try {
+			return ImageIO.read(new ByteArrayInputStream(bytes));
+		} catch (IOException e) {
+			logger.warn("Unable to decode thumbnail: {}", e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decoder for the single channel TIFF tiles returned by the OMERO pixel buffer microservice.
+ * <p>
+ * Pixels are written directly into one bank of a preallocated {@link DataBuffer}, avoiding the
+ * intermediate images and arrays created when decoding with ImageIO. Only the subset of TIFF
+ * written by the microservice is supported: classic (non-BigTIFF) files with a single sample per pixel,
+ * stored in strips, uncompressed or deflate-compressed, without predictor. For anything else,
+ * {@link #decode(byte[], DataBuffer, int, int, int)} returns false so that the caller can fall back
+ * to a general purpose decoder.
+ */
+final class OmeroTiffDecoder {
+
+	private static final int TAG_IMAGE_WIDTH = 256;
+	private static final int TAG_IMAGE_LENGTH = 257;
+	private static final int TAG_BITS_PER_SAMPLE = 258;
+	private static final int TAG_COMPRESSION = 259;
+	private static final int TAG_STRIP_OFFSETS = 273;
+	private static final int TAG_SAMPLES_PER_PIXEL = 277;
+	private static final int TAG_STRIP_BYTE_COUNTS = 279;
+	private static final int TAG_PREDICTOR = 317;
+	private static final int TAG_TILE_WIDTH = 322;
+	private static final int TAG_SAMPLE_FORMAT = 339;
+
+	private static final int COMPRESSION_NONE = 1;
+	private static final int COMPRESSION_DEFLATE = 8;
+	private static final int COMPRESSION_DEFLATE_OLD = 32946;
+
+	private static final int SAMPLE_FORMAT_FLOAT = 3;
+
+	private static final int TYPE_SHORT = 3;
+	private static final int TYPE_LONG = 4;
+
+	/**
+	 * Suppress default constructor for non-instantiability
+	 */
+	private OmeroTiffDecoder() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Decode a single channel TIFF into the specified bank of a data buffer.
+	 * @param bytes encoded TIFF
+	 * @param buffer destination buffer, which must have at least {@code width * height} elements per bank
+	 * @param bank index of the bank to write into
+	 * @param width expected image width
+	 * @param height expected image height
+	 * @return true if the image was decoded, false if its format is not supported by this decoder
+	 *         (in which case the buffer is unchanged)
+	 * @throws IOException if the TIFF is corrupt
+	 */
+	static boolean decode(byte[] bytes, DataBuffer buffer, int bank, int width, int height) throws IOException {
+		try {
+			return decodeTiff(bytes, buffer, bank, width, height);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | DataFormatException e) {
+			throw new IOException("Unable to decode TIFF tile", e);
+		}
+	}
+
+	private static boolean decodeTiff(byte[] bytes, DataBuffer buffer, int bank, int width, int height) throws DataFormatException, IOException {
+		if (bytes.length < 8)
+			return false;
+		ByteBuffer bb = ByteBuffer.wrap(bytes);
+		if (bytes[0] == 'I' && bytes[1] == 'I')
+			bb.order(ByteOrder.LITTLE_ENDIAN);
+		else if (bytes[0] == 'M' && bytes[1] == 'M')
+			bb.order(ByteOrder.BIG_ENDIAN);
+		else
+			return false;
+		// BigTIFF (43) is not written by the microservice
+		if (bb.getShort(2) != 42)
+			return false;
+
+		var ifd = new Ifd(bb, bb.getInt(4));
+		if (ifd.getValue(TAG_IMAGE_WIDTH, -1) != width || ifd.getValue(TAG_IMAGE_LENGTH, -1) != height)
+			return false;
+		if (ifd.getValue(TAG_SAMPLES_PER_PIXEL, 1) != 1 || ifd.getValue(TAG_PREDICTOR, 1) != 1 || ifd.has(TAG_TILE_WIDTH))
+			return false;
+
+		int compression = (int)ifd.getValue(TAG_COMPRESSION, COMPRESSION_NONE);
+		if (compression != COMPRESSION_NONE && compression != COMPRESSION_DEFLATE && compression != COMPRESSION_DEFLATE_OLD)
+			return false;
+
+		int bitsPerSample = (int)ifd.getValue(TAG_BITS_PER_SAMPLE, 1);
+		boolean isFloat = ifd.getValue(TAG_SAMPLE_FORMAT, 1) == SAMPLE_FORMAT_FLOAT;
+		if (!isCompatible(buffer, bitsPerSample, isFloat))
+			return false;
+
+		long[] offsets = ifd.getValues(TAG_STRIP_OFFSETS);
+		long[] byteCounts = ifd.getValues(TAG_STRIP_BYTE_COUNTS);
+		if (offsets == null || byteCounts == null || offsets.length != byteCounts.length)
+			return false;
+
+		int bytesPerSample = bitsPerSample / 8;
+		int nSamples = width * height;
+		int pos = 0;
+		Inflater inflater = compression == COMPRESSION_NONE ? null : new Inflater();
+		byte[] stripBytes = null;
+		try {
+			for (int i = 0; i < offsets.length && pos < nSamples; i++) {
+				ByteBuffer strip;
+				if (inflater == null) {
+					strip = ByteBuffer.wrap(bytes, (int)offsets[i], (int)byteCounts[i]).slice();
+				} else {
+					// A strip never holds more than the remaining samples
+					int maxLength = (nSamples - pos) * bytesPerSample;
+					if (stripBytes == null || stripBytes.length < maxLength)
+						stripBytes = new byte[maxLength];
+					inflater.reset();
+					inflater.setInput(bytes, (int)offsets[i], (int)byteCounts[i]);
+					int length = 0;
+					while (length < maxLength && !inflater.finished()) {
+						int n = inflater.inflate(stripBytes, length, maxLength - length);
+						if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+							break;
+						length += n;
+					}
+					strip = ByteBuffer.wrap(stripBytes, 0, length).slice();
+				}
+				strip.order(bb.order());
+				pos += copySamples(strip, buffer, bank, pos, Math.min(strip.remaining() / bytesPerSample, nSamples - pos));
+			}
+		} finally {
+			if (inflater != null)
+				inflater.end();
+		}
+		if (pos != nSamples)
+			throw new IOException("TIFF tile is truncated: " + pos + " of " + nSamples + " pixels decoded");
+		return true;
+	}
+
+	private static boolean isCompatible(DataBuffer buffer, int bitsPerSample, boolean isFloat) {
+		switch (buffer.getDataType()) {
+		case DataBuffer.TYPE_BYTE:
+			return bitsPerSample == 8 && !isFloat;
+		case DataBuffer.TYPE_USHORT:
+		case DataBuffer.TYPE_SHORT:
+			return bitsPerSample == 16 && !isFloat;
+		case DataBuffer.TYPE_INT:
+			return bitsPerSample == 32 && !isFloat;
+		case DataBuffer.TYPE_FLOAT:
+			return bitsPerSample == 32 && isFloat;
+		case DataBuffer.TYPE_DOUBLE:
+			return bitsPerSample == 64 && isFloat;
+		default:
+			return false;
+		}
+	}
+
+	private static int copySamples(ByteBuffer strip, DataBuffer buffer, int bank, int pos, int n) {
+		if (buffer instanceof DataBufferByte)
+			strip.get(((DataBufferByte)buffer).getData(bank), pos, n);
+		else if (buffer instanceof DataBufferUShort)
+			strip.asShortBuffer().get(((DataBufferUShort)buffer).getData(bank), pos, n);
+		else if (buffer instanceof DataBufferShort)
+			strip.asShortBuffer().get(((DataBufferShort)buffer).getData(bank), pos, n);
+		else if (buffer instanceof DataBufferInt)
+			strip.asIntBuffer().get(((DataBufferInt)buffer).getData(bank), pos, n);
+		else if (buffer instanceof DataBufferFloat)
+			strip.asFloatBuffer().get(((DataBufferFloat)buffer).getData(bank), pos, n);
+		else if (buffer instanceof DataBufferDouble)
+			strip.asDoubleBuffer().get(((DataBufferDouble)buffer).getData(bank), pos, n);
+		else
+			throw new UnsupportedOperationException("Unsupported data buffer " + buffer);
+		return n;
+	}
+
+
+	/**
+	 * Minimal reader for the entries of a TIFF image file directory.
+	 */
+	private static class Ifd {
+
+		private final ByteBuffer bb;
+		private final int offset;
+		private final int nEntries;
+
+		private Ifd(ByteBuffer bb, int offset) {
+			this.bb = bb;
+			this.offset = offset;
+			this.nEntries = Short.toUnsignedInt(bb.getShort(offset));
+		}
+
+		private int findEntry(int tag) {
+			for (int i = 0; i < nEntries; i++) {
+				int entry = offset + 2 + i * 12;
+				if (Short.toUnsignedInt(bb.getShort(entry)) == tag)
+					return entry;
+			}
+			return -1;
+		}
+
+		private boolean has(int tag) {
+			return findEntry(tag) >= 0;
+		}
+
+		private long getValue(int tag, long defaultValue) {
+			long[] values = getValues(tag);
+			return values == null || values.length == 0 ? defaultValue : values[0];
+		}
+
+		private long[] getValues(int tag) {
+			int entry = findEntry(tag);
+			if (entry < 0)
+				return null;
+			int type = Short.toUnsignedInt(bb.getShort(entry + 2));
+			int count = bb.getInt(entry + 4);
+			int size = type == TYPE_SHORT ? 2 : type == TYPE_LONG ? 4 : -1;
+			if (size < 0 || count < 0)
+				return null;
+			int valueOffset = count * size <= 4 ? entry + 8 : bb.getInt(entry + 8);
+			long[] values = new long[count];
+			for (int i = 0; i < count; i++) {
+				if (size == 2)
+					values[i] = Short.toUnsignedInt(bb.getShort(valueOffset + i * 2));
+				else
+					values[i] = Integer.toUnsignedLong(bb.getInt(valueOffset + i * 4));
+			}
+			return values;
+		}
+	}
+
+}
@@ -0,0 +1,424 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.gui.prefs.PathPrefs;
+
+/**
+ * Persistent on-disk cache of the tiles received from OMERO servers.
+ * <p>
+ * Tiles are stored as the encoded bytes received from the server, appended to memory-mapped segment
+ * files of fixed size. When the total size of the segments exceeds the budget, the oldest segment
+ * is deleted along with all the tiles it contains. Tiles read from an old segment are copied to the
+ * current segment, so that tiles still in use survive the deletion of their segment (i.e. eviction is
+ * least recently used at the granularity of a segment).
+ * <p>
+ * Each record starts with the length of its key and data, so that the index can be rebuilt by
+ * scanning the segments when the cache is reopened in a later session. The key of a tile should
+ * identify the server, image (including a fingerprint of its metadata), resolution level, z, t,
+ * channel and tile bounds.
+ * <p>
+ * A cache directory can only be used by one QuPath instance at a time, as the segments are written without 
+ * coordination between processes. The directory is locked while the cache is open, and the cache is 
+ * disabled for the other instances.
+ */
+class OmeroTileCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(OmeroTileCache.class);
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".bin";
+	private static final Pattern SEGMENT_PATTERN = Pattern.compile(SEGMENT_PREFIX + "(\\d+)" + SEGMENT_SUFFIX);
+	private static final String LOCK_FILE = "cache.lock";
+
+	/**
+	 * Number of bytes before the key of each record (key length and data length).
+	 */
+	private static final int HEADER_SIZE = 8;
+
+	private static final long MIN_SEGMENT_SIZE = 1024L * 1024L;
+	private static final long MAX_SEGMENT_SIZE = 256L * 1024L * 1024L;
+
+	/**
+	 * Approximate number of segments the budget is split into.
+	 */
+	private static final int N_SEGMENTS = 16;
+
+	private static OmeroTileCache instance;
+
+	/**
+	 * Directory that could not be used (e.g. locked by another process) the last time the cache was opened, 
+	 * to avoid trying again for each tile. It is tried again once the cache is disabled and enabled again.
+	 */
+	private static Path unavailableDirectory;
+
+	private final Path directory;
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	private final int segmentSize;
+	private long maxBytes;
+
+	/**
+	 * Segments, from the oldest to the newest (the last one is the one being written).
+	 */
+	private final Deque<Segment> segments = new ArrayDeque<>();
+
+	/**
+	 * Location of each cached tile (tiles are evicted per segment, so the order of the entries does not matter).
+	 */
+	private final Map<String, Entry> index = new HashMap<>();
+
+	private long nextSegment = 0;
+
+	private OmeroTileCache(Path directory, long maxBytes) throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.segmentSize = (int)Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxBytes / N_SEGMENTS));
+		Files.createDirectories(directory);
+		lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			lock = lockChannel.tryLock();
+		} catch (IOException | OverlappingFileLockException e) {
+			lockChannel.close();
+			throw e;
+		}
+		if (lock == null) {
+			lockChannel.close();
+			throw new CacheLockedException(directory);
+		}
+		try {
+			loadSegments();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Return the shared tile cache, as defined by the preferences of the extension.
+	 * If the cache is disabled (or cannot be opened), {@code null} is returned.
+	 * @return tile cache, or null
+	 * @see OmeroPrefs#tileCacheEnabledProperty()
+	 */
+	static synchronized OmeroTileCache getInstance() {
+		if (!OmeroPrefs.tileCacheEnabledProperty().get()) {
+			unavailableDirectory = null;
+			if (instance != null) {
+				instance.close();
+				instance = null;
+			}
+			return null;
+		}
+
+		Path directory = getDirectory();
+		long maxBytes = Math.max(0, OmeroPrefs.tileCacheSizeMBProperty().get()) * 1024L * 1024L;
+		if (instance != null && !instance.directory.equals(directory)) {
+			instance.close();
+			instance = null;
+		}
+
+		if (instance == null && directory.equals(unavailableDirectory))
+			return null;
+
+		try {
+			if (instance == null)
+				instance = new OmeroTileCache(directory, maxBytes);
+			else
+				instance.setMaxBytes(maxBytes);
+			unavailableDirectory = null;
+		} catch (CacheLockedException | OverlappingFileLockException e) {
+			// Keep the preference, which is shared with the instance using the cache
+			logger.warn("The OMERO tile cache in {} is used by another QuPath instance, tiles will not be cached", directory);
+			unavailableDirectory = directory;
+		} catch (IOException e) {
+			// The preference is not changed, as this is not called from the JavaFX application thread
+			logger.warn("Unable to open the OMERO tile cache in {}, tiles will not be cached: {}", directory, e.getLocalizedMessage());
+			unavailableDirectory = directory;
+		}
+		return instance;
+	}
+
+	private static Path getDirectory() {
+		String dir = OmeroPrefs.tileCacheDirectoryProperty().get();
+		if (dir != null && !dir.isBlank())
+			return Paths.get(dir);
+		String userPath = PathPrefs.getUserPath();
+		if (userPath != null)
+			return Paths.get(userPath, "omero", "tile-cache");
+		return Paths.get(System.getProperty("java.io.tmpdir"), "qupath-omero-tile-cache");
+	}
+
+	/**
+	 * Return the cached bytes for the specified key, or {@code null} if it is not cached.
+	 * @param key
+	 * @return bytes, or null
+	 */
+	synchronized byte[] get(String key) {
+		Entry entry = index.get(key);
+		if (entry == null)
+			return null;
+
+		byte[] bytes = new byte[entry.length];
+		entry.segment.buffer.get(entry.offset, bytes);
+
+		// Keep tiles that are still in use away from the next segments to be evicted
+		if (entry.segment.sequence < segments.peekLast().sequence - segments.size() / 2)
+			put(key, bytes);
+		return bytes;
+	}
+
+	/**
+	 * Remove the specified key from the cache (e.g. if its bytes cannot be decoded). 
+	 * The bytes stay on disk until their segment is evicted, but are never returned again.
+	 * @param key
+	 */
+	synchronized void remove(String key) {
+		index.remove(key);
+	}
+
+	/**
+	 * Check whether the cache contains the specified key, without updating its access order.
+	 * @param key
+	 * @return true if the key is cached
+	 */
+	synchronized boolean contains(String key) {
+		return index.containsKey(key);
+	}
+
+	/**
+	 * Add the specified bytes to the cache, replacing any existing value for the key.
+	 * @param key
+	 * @param bytes
+	 */
+	synchronized void put(String key, byte[] bytes) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int recordSize = HEADER_SIZE + keyBytes.length + bytes.length;
+		if (recordSize > segmentSize || maxBytes < segmentSize)
+			return;
+
+		try {
+			Segment segment = segments.peekLast();
+			if (segment == null || segment.position + recordSize > segmentSize)
+				segment = addSegment();
+
+			int position = segment.position;
+			var buffer = segment.buffer;
+			buffer.putInt(position + 4, bytes.length);
+			buffer.put(position + HEADER_SIZE, keyBytes);
+			buffer.put(position + HEADER_SIZE + keyBytes.length, bytes);
+			// Write the key length last, so that a record interrupted by a crash is not read back
+			buffer.putInt(position, keyBytes.length);
+			segment.position += recordSize;
+
+			var entry = new Entry(segment, position + HEADER_SIZE + keyBytes.length, bytes.length);
+			segment.keys.add(key);
+			index.put(key, entry);
+		} catch (IOException e) {
+			logger.warn("Unable to write to the OMERO tile cache: {}", e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Return the number of bytes currently used on disk by the cache.
+	 * @return bytes
+	 */
+	synchronized long getSizeBytes() {
+		return (long)segments.size() * segmentSize;
+	}
+
+	private synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict(0);
+	}
+
+	private Segment addSegment() throws IOException {
+		evict(segmentSize);
+		var segment = new Segment(nextSegment++, directory.resolve(SEGMENT_PREFIX + (nextSegment-1) + SEGMENT_SUFFIX), segmentSize);
+		segments.addLast(segment);
+		return segment;
+	}
+
+	/**
+	 * Delete the oldest segments until the specified number of bytes can be added within the budget.
+	 * @param extraBytes
+	 */
+	private void evict(long extraBytes) {
+		while (!segments.isEmpty() && getSizeBytes() + extraBytes > maxBytes) {
+			var segment = segments.removeFirst();
+			for (String key : segment.keys) {
+				var entry = index.get(key);
+				if (entry != null && entry.segment == segment)
+					index.remove(key);
+			}
+			segment.delete();
+		}
+	}
+
+	private void loadSegments() throws IOException {
+		List<Path> paths;
+		try (var stream = Files.list(directory)) {
+			paths = stream.filter(p -> SEGMENT_PATTERN.matcher(p.getFileName().toString()).matches())
+					.sorted((p1, p2) -> Long.compare(getSequence(p1), getSequence(p2)))
+					.collect(Collectors.toList());
+		}
+
+		for (var path : paths) {
+			long sequence = getSequence(path);
+			if (Files.size(path) != segmentSize) {
+				// Segments written with another budget cannot be reused
+				Files.deleteIfExists(path);
+				continue;
+			}
+			var segment = new Segment(sequence, path, segmentSize);
+			segment.scan(index);
+			segments.addLast(segment);
+			nextSegment = sequence + 1;
+		}
+		evict(0);
+		logger.debug("OMERO tile cache opened in {} ({} tiles)", directory, index.size());
+	}
+
+	private static long getSequence(Path path) {
+		var matcher = SEGMENT_PATTERN.matcher(path.getFileName().toString());
+		return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+	}
+
+	synchronized void close() {
+		for (var segment : segments)
+			segment.close();
+		segments.clear();
+		index.clear();
+		try {
+			lock.release();
+			lockChannel.close();
+		} catch (IOException e) {
+			logger.debug("Unable to release the lock of the OMERO tile cache: {}", e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Exception thrown when the cache directory is locked by another process.
+	 */
+	private static class CacheLockedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private CacheLockedException(Path directory) {
+			super("Cache directory locked by another process: " + directory);
+		}
+	}
+
+
+	private static class Entry {
+
+		private final Segment segment;
+		private final int offset;
+		private final int length;
+
+		private Entry(Segment segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+
+	private static class Segment {
+
+		private final long sequence;
+		private final Path path;
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+		private final List<String> keys = new ArrayList<>();
+		private int position = 0;
+
+		private Segment(long sequence, Path path, int size) throws IOException {
+			this.sequence = sequence;
+			this.path = path;
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.buffer = channel.map(MapMode.READ_WRITE, 0, size);
+		}
+
+		/**
+		 * Add all the records of this segment to the index, stopping at the first empty or incomplete record.
+		 * @param index
+		 */
+		private void scan(Map<String, Entry> index) {
+			int size = buffer.capacity();
+			while (position + HEADER_SIZE <= size) {
+				int keyLength = buffer.getInt(position);
+				int dataLength = buffer.getInt(position + 4);
+				if (keyLength <= 0 || dataLength < 0 || (long)position + HEADER_SIZE + keyLength + dataLength > size)
+					break;
+				byte[] keyBytes = new byte[keyLength];
+				buffer.get(position + HEADER_SIZE, keyBytes);
+				String key = new String(keyBytes, StandardCharsets.UTF_8);
+				keys.add(key);
+				index.put(key, new Entry(this, position + HEADER_SIZE + keyLength, dataLength));
+				position += HEADER_SIZE + keyLength + dataLength;
+			}
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.debug("Unable to close {}: {}", path, e.getLocalizedMessage());
+			}
+		}
+
+		private void delete() {
+			// Invalidate the first record in case the file cannot be deleted while it is mapped (e.g. on Windows)
+			buffer.putInt(0, 0);
+			close();
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				logger.debug("Unable to delete {}: {}", path, e.getLocalizedMessage());
+			}
+		}
+	}
+
+}
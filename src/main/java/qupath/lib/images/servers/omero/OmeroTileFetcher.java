@@ -0,0 +1,279 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.omero.OmeroRequests.HttpStatusException;
+
+/**
+ * Fetcher of the tiles of an OMERO server, which makes tile requests resilient to slow or failing workers.
+ * <p>
+ * Each request has a read timeout, and failed requests (I/O errors, timeouts, server errors) are retried
+ * with a jittered exponential backoff. Client errors (e.g. 404) are not retried.
+ * If hedging is enabled, a request that has not answered within the 95th percentile of recent tile latencies
+ * is sent a second time, and the first response received is used. Hedged requests are limited to a small
+ * proportion of all requests, so that hedging cannot significantly increase the load on the server.
+ *
+ * @see OmeroPrefs#tileRetriesProperty()
+ * @see OmeroPrefs#tileHedgingProperty()
+ */
+class OmeroTileFetcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(OmeroTileFetcher.class);
+
+	private static final long BACKOFF_BASE_MILLIS = 200;
+	private static final long BACKOFF_MAX_MILLIS = 5000;
+
+	/**
+	 * Maximum proportion of requests that can be hedged.
+	 */
+	private static final double MAX_HEDGE_RATIO = 0.05;
+
+	/**
+	 * Number of recent latencies used to estimate the percentile at which requests are hedged.
+	 */
+	private static final int N_LATENCIES = 256;
+
+	/**
+	 * Minimum number of latencies needed before hedging.
+	 */
+	private static final int MIN_LATENCIES = 32;
+
+	private final OmeroWebClient client;
+
+	private final long[] latencies = new long[N_LATENCIES];
+	private int nLatencies = 0;
+	private long hedgeDelayNanos = -1;
+
+	private final LongAdder nRequests = new LongAdder();
+	private final LongAdder nHedged = new LongAdder();
+	private final LongAdder nRetried = new LongAdder();
+
+	OmeroTileFetcher(OmeroWebClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Fetch the bytes of a tile, retrying if needed, and calling the specified function each time a request 
+	 * is about to be sent (i.e. once it has a permit of the client's limiter).
+	 * @param uri full URI of the tile
+	 * @param beforeSend function returning false if the request should not be sent after all
+	 * @return bytes received
+	 * @throws IOException if the tile could not be fetched
+	 * @throws CancellationException if a request was not sent because {@code beforeSend} returned false
+	 * @see OmeroWebClient#send(HttpRequest, java.net.http.HttpResponse.BodyHandler, BooleanSupplier)
+	 */
+	byte[] fetch(URI uri, BooleanSupplier beforeSend) throws IOException {
+		int retries = Math.max(0, OmeroPrefs.tileRetriesProperty().get());
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return fetchOnce(uri, beforeSend);
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				if (attempt >= retries || !isRetryable(e))
+					throw e;
+				nRetried.increment();
+				logger.debug("Retrying tile request {} ({})", uri, e.getLocalizedMessage());
+				backoff(attempt);
+			}
+		}
+	}
+
+	private byte[] fetchOnce(URI uri, BooleanSupplier beforeSend) throws IOException {
+		var builder = HttpRequest.newBuilder(uri).GET();
+		int timeout = OmeroPrefs.tileReadTimeoutProperty().get();
+		if (timeout > 0)
+			builder.timeout(Duration.ofSeconds(timeout));
+		var request = builder.build();
+
+		nRequests.increment();
+		// Latencies are measured from the moment the request is sent, excluding the time spent waiting for a permit
+		var sentNanos = new CompletableFuture<Long>();
+		BooleanSupplier onSend = () -> {
+			if (!beforeSend.getAsBoolean())
+				return false;
+			sentNanos.complete(System.nanoTime());
+			return true;
+		};
+		long delay = OmeroPrefs.tileHedgingProperty().get() ? getHedgeDelayNanos() : -1;
+		HttpResponse<byte[]> response;
+		if (delay < 0)
+			response = client.send(request, BodyHandlers.ofByteArray(), onSend);
+		else
+			response = sendHedged(request, delay, onSend, sentNanos);
+
+		int status = response.statusCode();
+		if (status >= 400)
+			throw new HttpStatusException(status, uri);
+		recordLatency(System.nanoTime() - sentNanos.join());
+		return response.body();
+	}
+
+	/**
+	 * Send a request, and a duplicate one if no response is received within the specified delay 
+	 * after it was sent (i.e. not counting the time spent waiting for a permit of the client's limiter).
+	 * {@code sentNanos} is completed when the request is sent, and replaced by the time the duplicate 
+	 * was sent if it answered, so that the latency recorded is that of the request that answered.
+	 */
+	private HttpResponse<byte[]> sendHedged(HttpRequest request, long delayNanos, BooleanSupplier beforeSend, 
+			CompletableFuture<Long> sentNanos) throws IOException {
+		var primary = client.sendAsync(request, BodyHandlers.ofByteArray(), beforeSend);
+		CompletableFuture<HttpResponse<byte[]>> hedge = null;
+		try {
+			try {
+				// A request still waiting for a permit is not slow, the client is busy: hedging it would only add load
+				CompletableFuture.anyOf(sentNanos, primary).get();
+				return primary.get(delayNanos, TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				if (!tryHedge())
+					return primary.get();
+			}
+			logger.trace("Hedging tile request {}", request.uri());
+			var hedgeSentNanos = new CompletableFuture<Long>();
+			hedge = client.sendAsync(request, BodyHandlers.ofByteArray(), () -> {
+				hedgeSentNanos.complete(System.nanoTime());
+				return true;
+			});
+			var response = firstSuccessful(primary, hedge).get();
+			if (hedge.isDone() && !hedge.isCompletedExceptionally() && hedge.join() == response)
+				sentNanos.obtrudeValue(hedgeSentNanos.join());
+			return response;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while requesting " + request.uri());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			if (e.getCause() instanceof CancellationException)
+				throw (CancellationException)e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			// Abort whichever request is still running
+			primary.cancel(true);
+			if (hedge != null)
+				hedge.cancel(true);
+		}
+	}
+
+	/**
+	 * Return a future completed by the first successful response of two requests. A response with a status 
+	 * worth retrying (e.g. a fast 503 from an overloaded worker) only completes it if the other request failed too.
+	 */
+	private static <T> CompletableFuture<HttpResponse<T>> firstSuccessful(CompletableFuture<HttpResponse<T>> first, 
+			CompletableFuture<HttpResponse<T>> second) {
+		var result = new CompletableFuture<HttpResponse<T>>();
+		var nFailed = new AtomicInteger();
+		for (var future : Arrays.asList(first, second)) {
+			future.whenComplete((response, e) -> {
+				if (e == null && !isRetryable(response.statusCode()))
+					result.complete(response);
+				else if (nFailed.incrementAndGet() == 2) {
+					if (e == null)
+						result.complete(response);
+					else
+						result.completeExceptionally(e);
+				}
+			});
+		}
+		return result;
+	}
+
+	private synchronized boolean tryHedge() {
+		if (nHedged.sum() >= nRequests.sum() * MAX_HEDGE_RATIO)
+			return false;
+		nHedged.increment();
+		return true;
+	}
+
+	private synchronized void recordLatency(long nanos) {
+		latencies[nLatencies % N_LATENCIES] = nanos;
+		nLatencies++;
+		// Sorting is cheap compared to a request, but there is no need to do it every time
+		if (nLatencies >= MIN_LATENCIES && nLatencies % 16 == 0) {
+			long[] sorted = Arrays.copyOf(latencies, Math.min(nLatencies, N_LATENCIES));
+			Arrays.sort(sorted);
+			hedgeDelayNanos = sorted[(int)(sorted.length * 0.95)];
+		}
+	}
+
+	private synchronized long getHedgeDelayNanos() {
+		return hedgeDelayNanos;
+	}
+
+	private static boolean isRetryable(IOException e) {
+		if (e instanceof HttpStatusException)
+			return isRetryable(((HttpStatusException)e).getStatus());
+		return true;
+	}
+
+	private static boolean isRetryable(int status) {
+		return status >= 500 || OmeroRequestLimiter.isOverloaded(status);
+	}
+
+	private static void backoff(int attempt) throws InterruptedIOException {
+		long maxDelay = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempt, 16));
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelay + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry a tile request");
+		}
+	}
+
+	/**
+	 * Return the number of tile requests sent a second time because they were slow.
+	 * @return hedged requests
+	 */
+	long getHedgedCount() {
+		return nHedged.sum();
+	}
+
+	/**
+	 * Return the number of tile requests retried after a failure.
+	 * @return retried requests
+	 */
+	long getRetriedCount() {
+		return nRetried.sum();
+	}
+
+}
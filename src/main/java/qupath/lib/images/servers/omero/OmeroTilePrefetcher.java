@@ -0,0 +1,358 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.images.servers.omero.OmeroRequestLimiter.Priority;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Background prefetcher of the tiles of an {@link OmeroWebImageServer}.
+ * <p>
+ * The tiles requested by QuPath are used to estimate the direction in which the image is panned
+ * and whether it is being zoomed in or out. The next tiles in the pan direction and the tiles of the
+ * adjacent resolution level are then fetched at low priority, and their bytes kept until they are
+ * requested (or evicted). Prefetching never delays real requests: the most recent predictions are
+ * fetched first, stale predictions are dropped when the queue is full, and a tile requested while
+ * being prefetched shares the same request.
+ * <p>
+ * If plane prefetching is enabled, the same tiles are also fetched for the adjacent z-slices and
+ * timepoints (the nearest planes in the scrolling direction first), so that scrolling through a stack
+ * or time-lapse does not wait for each plane. Prefetched tiles are kept in a buffer bounded in bytes,
+ * from which the oldest tiles are evicted.
+ * 
+ * @see OmeroPrefs#prefetchPlanesProperty()
+ */
+class OmeroTilePrefetcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(OmeroTilePrefetcher.class);
+
+	/**
+	 * Number of threads fetching tiles in the background.
+	 */
+	private static final int N_THREADS = 2;
+
+	/**
+	 * Maximum number of tiles waiting to be prefetched.
+	 */
+	private static final int MAX_QUEUED = 256;
+
+	/**
+	 * Number of recent tile requests remembered, so that tiles already requested are not prefetched again.
+	 */
+	private static final int MAX_RECENT = 1024;
+
+	/**
+	 * Weight of the latest movement in the estimated pan direction.
+	 */
+	private static final double MOTION_SMOOTHING = 0.3;
+
+	private final OmeroWebImageServer server;
+	private final ThreadPoolExecutor pool;
+
+	private final Map<TileRequest, Boolean> recentRequests = new LinkedHashMap<>(MAX_RECENT, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<TileRequest, Boolean> eldest) {
+			return size() > MAX_RECENT;
+		}
+	};
+
+	private final Map<String, byte[]> prefetched = new LinkedHashMap<>(16, 0.75f, true);
+	private long prefetchedBytes = 0;
+
+	private int lastLevel = -1;
+	private double lastX = Double.NaN;
+	private double lastY = Double.NaN;
+	private double velocityX = 0;
+	private double velocityY = 0;
+	private int zoomTrend = 0;
+
+	private int lastZ = -1;
+	private int lastT = -1;
+	private int zTrend = 0;
+	private int tTrend = 0;
+
+	private final LongAdder nPrefetched = new LongAdder();
+	private final LongAdder nHits = new LongAdder();
+
+	OmeroTilePrefetcher(OmeroWebImageServer server) {
+		this.server = server;
+		// The most recent predictions are the most relevant, so the queue is used as a stack
+		BlockingDeque<Runnable> queue = new LinkedBlockingDeque<>(MAX_QUEUED) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			public boolean offer(Runnable r) {
+				return offerFirst(r);
+			}
+		};
+		this.pool = new ThreadPoolExecutor(N_THREADS, N_THREADS, 30L, TimeUnit.SECONDS, queue,
+				ThreadTools.createThreadFactory("omero-prefetch-" + server.getId() + "-", true, Thread.MIN_PRIORITY),
+				(r, executor) -> {
+					if (executor.isShutdown())
+						return;
+					// Drop the oldest prediction to make room for the new one
+					var dropped = queue.pollLast();
+					if (dropped == null)
+						return;
+					// The dropped tile was never fetched, so it can be predicted again
+					if (dropped instanceof PrefetchTask) {
+						synchronized (this) {
+							recentRequests.remove(((PrefetchTask)dropped).request);
+						}
+					}
+					executor.execute(r);
+				});
+		this.pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Notify the prefetcher that a tile has been requested, which updates the estimated motion
+	 * and schedules the tiles expected to be requested next.
+	 * @param request
+	 */
+	void tileRequested(TileRequest request) {
+		// The tile is now a real request, it should not be prefetched anymore
+		pool.getQueue().removeIf(r -> r instanceof PrefetchTask && ((PrefetchTask)r).request.equals(request));
+
+		List<TileRequest> predictions;
+		synchronized (this) {
+			recentRequests.put(request, Boolean.TRUE);
+			updateMotion(request);
+			predictions = predict(request);
+			predictions.addAll(predictPlanes(request, OmeroPrefs.prefetchPlanesProperty().get()));
+			predictions.removeIf(r -> recentRequests.containsKey(r));
+			for (var prediction : predictions)
+				recentRequests.put(prediction, Boolean.TRUE);
+		}
+		for (var prediction : predictions)
+			pool.execute(new PrefetchTask(prediction));
+	}
+
+	private void updateMotion(TileRequest request) {
+		double x = request.getImageX() + request.getImageWidth() / 2.0;
+		double y = request.getImageY() + request.getImageHeight() / 2.0;
+		int level = request.getLevel();
+		if (level == lastLevel) {
+			velocityX = velocityX * (1 - MOTION_SMOOTHING) + (x - lastX) * MOTION_SMOOTHING;
+			velocityY = velocityY * (1 - MOTION_SMOOTHING) + (y - lastY) * MOTION_SMOOTHING;
+		} else {
+			if (lastLevel >= 0)
+				zoomTrend = Integer.signum(level - lastLevel);
+			velocityX = 0;
+			velocityY = 0;
+		}
+		lastLevel = level;
+		lastX = x;
+		lastY = y;
+
+		if (lastZ >= 0 && request.getZ() != lastZ)
+			zTrend = Integer.signum(request.getZ() - lastZ);
+		if (lastT >= 0 && request.getT() != lastT)
+			tTrend = Integer.signum(request.getT() - lastT);
+		lastZ = request.getZ();
+		lastT = request.getT();
+	}
+
+	/**
+	 * Return the tiles likely to be requested after the specified one.
+	 * @param request
+	 * @return predicted tile requests
+	 */
+	private List<TileRequest> predict(TileRequest request) {
+		List<TileRequest> predictions = new ArrayList<>();
+		RegionRequest region = request.getRegionRequest();
+		int w = request.getImageWidth();
+		int h = request.getImageHeight();
+
+		// Next tile in the direction of panning (ignoring small movements within the current field of view)
+		int dx = Math.abs(velocityX) > w * 0.1 ? (int)Math.signum(velocityX) : 0;
+		int dy = Math.abs(velocityY) > h * 0.1 ? (int)Math.signum(velocityY) : 0;
+		if (dx != 0 || dy != 0)
+			addTiles(predictions, region.getDownsample(), request.getImageX() + dx * w, request.getImageY() + dy * h, w, h, request.getZ(), request.getT(), request);
+
+		// Same region in the adjacent resolution level (in the zoom direction, or the lower resolution by default)
+		int level = request.getLevel() + (zoomTrend == 0 ? 1 : zoomTrend);
+		if (level >= 0 && level < server.nResolutions())
+			addTiles(predictions, server.getDownsampleForResolution(level), request.getImageX(), request.getImageY(), w, h, request.getZ(), request.getT(), request);
+
+		return predictions;
+	}
+
+	/**
+	 * Return the same tile in the planes within {@code nPlanes} z-slices and timepoints of the specified request.
+	 * Since the most recent predictions are fetched first, the farthest planes are returned first, 
+	 * and the planes in the scrolling direction are returned last.
+	 * @param request
+	 * @param nPlanes
+	 * @return predicted tile requests
+	 */
+	private List<TileRequest> predictPlanes(TileRequest request, int nPlanes) {
+		List<TileRequest> predictions = new ArrayList<>();
+		if (nPlanes <= 0)
+			return predictions;
+		double downsample = request.getRegionRequest().getDownsample();
+		int x = request.getImageX();
+		int y = request.getImageY();
+		int w = request.getImageWidth();
+		int h = request.getImageHeight();
+		int z = request.getZ();
+		int t = request.getT();
+		for (int direction : getPlaneDirections(zTrend)) {
+			for (int k = nPlanes; k >= 1; k--) {
+				int z2 = z + direction * k;
+				if (z2 >= 0 && z2 < server.nZSlices())
+					addTiles(predictions, downsample, x, y, w, h, z2, t, request);
+			}
+		}
+		for (int direction : getPlaneDirections(tTrend)) {
+			for (int k = nPlanes; k >= 1; k--) {
+				int t2 = t + direction * k;
+				if (t2 >= 0 && t2 < server.nTimepoints())
+					addTiles(predictions, downsample, x, y, w, h, z, t2, request);
+			}
+		}
+		return predictions;
+	}
+
+	/**
+	 * Return the directions in which to prefetch planes, the scrolling direction (if any) being last.
+	 */
+	private static int[] getPlaneDirections(int trend) {
+		return trend < 0 ? new int[] {1, -1} : new int[] {-1, 1};
+	}
+
+	/**
+	 * Add the tiles of the specified region, if it is (at least partially) within the image.
+	 */
+	private void addTiles(List<TileRequest> predictions, double downsample, int x, int y, int w, int h, int z, int t, TileRequest request) {
+		int x1 = Math.max(0, x);
+		int y1 = Math.max(0, y);
+		int x2 = Math.min(server.getWidth(), x + w);
+		int y2 = Math.min(server.getHeight(), y + h);
+		if (x2 <= x1 || y2 <= y1)
+			return;
+		var region = RegionRequest.createInstance(request.getRegionRequest().getPath(), downsample, x1, y1, x2 - x1, y2 - y1, z, t);
+		predictions.addAll(server.getTileRequestManager().getTileRequests(region));
+	}
+
+	/**
+	 * Remove and return the prefetched bytes of a tile, if available.
+	 * @param key tile key
+	 * @return bytes, or null if the tile was not prefetched
+	 */
+	synchronized byte[] take(String key) {
+		byte[] bytes = prefetched.remove(key);
+		if (bytes != null) {
+			prefetchedBytes -= bytes.length;
+			nHits.increment();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Check whether the bytes of a tile are already prefetched.
+	 * @param key tile key
+	 * @return true if the tile is available
+	 */
+	synchronized boolean contains(String key) {
+		return prefetched.containsKey(key);
+	}
+
+	/**
+	 * Keep the prefetched bytes of a tile until it is requested, evicting the least recently prefetched tiles if needed.
+	 * @param key tile key
+	 * @param bytes
+	 */
+	synchronized void put(String key, byte[] bytes) {
+		long maxBytes = Math.max(0, OmeroPrefs.prefetchBufferSizeMBProperty().get()) * 1024L * 1024L;
+		if (bytes.length > maxBytes)
+			return;
+		var previous = prefetched.put(key, bytes);
+		if (previous != null)
+			prefetchedBytes -= previous.length;
+		prefetchedBytes += bytes.length;
+		nPrefetched.increment();
+		Iterator<byte[]> iter = prefetched.values().iterator();
+		while (prefetchedBytes > maxBytes && iter.hasNext()) {
+			prefetchedBytes -= iter.next().length;
+			iter.remove();
+		}
+	}
+
+	/**
+	 * Return the proportion of prefetched tiles that were later requested.
+	 * @return hit rate, or NaN if nothing was prefetched
+	 */
+	double getHitRate() {
+		long n = nPrefetched.sum();
+		return n == 0 ? Double.NaN : nHits.sum() / (double)n;
+	}
+
+	/**
+	 * Stop prefetching and discard any prefetched tile.
+	 */
+	void close() {
+		pool.shutdownNow();
+		logger.debug("Prefetched {} tiles for {} (hit rate {})", nPrefetched.sum(), server.getId(), getHitRate());
+		synchronized (this) {
+			prefetched.clear();
+			prefetchedBytes = 0;
+		}
+	}
+
+
+	private class PrefetchTask implements Runnable {
+
+		private final TileRequest request;
+
+		private PrefetchTask(TileRequest request) {
+			this.request = request;
+		}
+
+		@Override
+		public void run() {
+			try (var scope = OmeroRequestLimiter.withPriority(Priority.PREFETCH)) {
+				server.prefetchTile(request, OmeroTilePrefetcher.this);
+			} catch (IOException e) {
+				logger.debug("Unable to prefetch {}: {}", request, e.getLocalizedMessage());
+			}
+		}
+	}
+
+}
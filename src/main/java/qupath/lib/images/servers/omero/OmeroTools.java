@@ -23,18 +23,21 @@ package qupath.lib.images.servers.omero;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -43,16 +46,20 @@ import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import javafx.application.Platform;
 import qupath.lib.common.ThreadTools;
 import qupath.lib.images.servers.omero.OmeroAnnotations.OmeroAnnotationType;
+import qupath.lib.images.servers.omero.OmeroObjects.Group;
 import qupath.lib.images.servers.omero.OmeroObjects.OmeroObject;
 import qupath.lib.images.servers.omero.OmeroObjects.OmeroObjectType;
 import qupath.lib.images.servers.omero.OmeroObjects.OrphanedFolder;
+import qupath.lib.images.servers.omero.OmeroObjects.Owner;
 import qupath.lib.images.servers.omero.OmeroObjects.Server;
+import qupath.lib.images.servers.omero.OmeroRequestLimiter.Priority;
 import qupath.lib.io.GsonTools;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathCellObject;
@@ -123,34 +130,104 @@ public final class OmeroTools {
 	 * @throws IOException
 	 */
 	public static List<OmeroObject> readOmeroObjects(URI uri, OmeroObject parent) throws IOException {
+		return readOmeroObjects(uri, parent, null, null);
+	}
+	
+	/**
+	 * Get the OMERO objects inside the specified parent that belong to the specified group and owner. 
+	 * The objects are filtered by the server, so that other objects are not sent at all.
+	 * <p>
+	 * A {@code null} group (or 'All groups') and a {@code null} owner (or 'All members') do not restrict the objects.
+	 * 
+	 * @param uri
+	 * @param parent
+	 * @param group group of the objects, or null
+	 * @param owner owner of the objects, or null
+	 * @return list of OmeroObjects
+	 * @throws IOException
+	 */
+	static List<OmeroObject> readOmeroObjects(URI uri, OmeroObject parent, Group group, Owner owner) throws IOException {
 		List<OmeroObject> list = new ArrayList<>();
 		if (parent == null)
 			return list;
 		
-		OmeroObjectType type = OmeroObjectType.PROJECT;
-		if (parent.getType() == OmeroObjectType.PROJECT)
-			type = OmeroObjectType.DATASET;
-		else if (parent.getType() == OmeroObjectType.DATASET)
-			type = OmeroObjectType.IMAGE;
+		OmeroObjectType type = getChildType(parent.getType());
 
 		var gson = new GsonBuilder().registerTypeAdapter(OmeroObject.class, new OmeroObjects.GsonOmeroObjectDeserializer()).setLenient().create();
-		List<JsonElement> data = OmeroRequests.requestObjectList(uri.getScheme(), uri.getHost(),uri.getPort(), type, parent);
-		for (var d: data) {
-			gson = new GsonBuilder().registerTypeAdapter(OmeroObject.class, new OmeroObjects.GsonOmeroObjectDeserializer()).setLenient().create();
+		// Parse objects as they are received, rather than keeping the Json of all the pages in memory
+		try (var data = OmeroRequests.streamObjectList(uri.getScheme(), uri.getHost(),uri.getPort(), type, parent.getType(), parent.getId(), group, owner)) {
+			data.forEach(d -> {
+				try {
+					var omeroObj = gson.fromJson(d, OmeroObject.class);
+					if (omeroObj != null) {
+						omeroObj.setParent(parent);
+						list.add(omeroObj);					
+					}
+				} catch (Exception e) {
+					logger.error("Error parsing OMERO object: " + e.getLocalizedMessage(), e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		
+		return list;
+	}
+	
+	/**
+	 * Get a page of the OMERO objects inside the specified parent, i.e. at most {@code limit} objects 
+	 * starting from the object at index {@code offset} (in the order of {@link #readOmeroObjects(URI, OmeroObject, Group, Owner)}).
+	 * <p>
+	 * The server can return fewer objects than requested if {@code limit} exceeds its maximum page size, so 
+	 * the next page should start at {@code offset} plus the number of objects returned.
+	 * 
+	 * @param uri
+	 * @param parent
+	 * @param group group of the objects, or null
+	 * @param owner owner of the objects, or null
+	 * @param offset index of the first object
+	 * @param limit maximum number of objects
+	 * @return list of OmeroObjects
+	 * @throws IOException
+	 * @see #readOmeroObjects(URI, OmeroObject, Group, Owner)
+	 */
+	static List<OmeroObject> readOmeroObjects(URI uri, OmeroObject parent, Group group, Owner owner, int offset, int limit) throws IOException {
+		List<OmeroObject> list = new ArrayList<>();
+		if (parent == null)
+			return list;
+		
+		OmeroObjectType type = getChildType(parent.getType());
+		URL listURL = OmeroRequests.getObjectListURL(uri.getScheme(), uri.getHost(), uri.getPort(), type, parent.getType(), parent.getId(), group, owner);
+		URL url = new URL(listURL + "&offset=" + offset + "&limit=" + limit);
+		
+		var gson = new GsonBuilder().registerTypeAdapter(OmeroObject.class, new OmeroObjects.GsonOmeroObjectDeserializer()).setLenient().create();
+		for (var d: readPage(OmeroRequests.openStream(url)).getAsJsonArray("data")) {
 			try {
 				var omeroObj = gson.fromJson(d, OmeroObject.class);
 				if (omeroObj != null) {
 					omeroObj.setParent(parent);
-					list.add(omeroObj);					
+					list.add(omeroObj);
 				}
 			} catch (Exception e) {
 				logger.error("Error parsing OMERO object: " + e.getLocalizedMessage(), e);
 			}
 		}
-		
 		return list;
 	}
 	
+	/**
+	 * Return the type of the children listed by {@link #readOmeroObjects(URI, OmeroObject)} for a parent of the specified type.
+	 * @param parentType
+	 * @return type of the children
+	 */
+	static OmeroObjectType getChildType(OmeroObjectType parentType) {
+		if (parentType == OmeroObjectType.PROJECT)
+			return OmeroObjectType.DATASET;
+		else if (parentType == OmeroObjectType.DATASET)
+			return OmeroObjectType.IMAGE;
+		return OmeroObjectType.PROJECT;
+	}
+	
 //	/**
 //	 * Get all the orphaned images in the given server.
 //	 * 
@@ -214,6 +291,8 @@ public final class OmeroTools {
 	/**
 	 * Populate the specified {@code orphanedFolder}'s image list with all orphaned images in the server.
 	 * <p>
+	 * The images are requested in a background thread, as a paginated list of the JSON API whose pages are 
+	 * fetched concurrently and added to the list as soon as they are received (on the JavaFX thread). 
 	 * As soon as all the objects have been loaded in the list, the {@code isLoading} property of the 
 	 * {@code OrphanedFodler} is modified accordingly.
 	 * 
@@ -225,37 +304,38 @@ public final class OmeroTools {
 		orphanedFolder.setLoading(true);
 		list.clear();
 		
-		try {
-			var map = OmeroRequests.requestWebClientObjectList(uri.getScheme(), uri.getHost(), uri.getPort(), OmeroObjectType.IMAGE);
-    		ExecutorService executorRequests = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("orphaned-image-requests", true));
-    		
-    		// Get the total amount of orphaned images to load
-    		int max = map.get("images").getAsJsonArray().size();
-    		if (max == 0)
-    			orphanedFolder.setLoading(false);
-    		
-    		orphanedFolder.setTotalChildCount(max);
-    		map.get("images").getAsJsonArray().forEach(e -> {
-    			executorRequests.submit(() -> {
-    				try {
-    					var id = Integer.parseInt(e.getAsJsonObject().get("id").toString());
-    					OmeroObject omeroObj = readOmeroObject(uri.getScheme(), uri.getHost(), uri.getPort(), id, OmeroObjectType.IMAGE);
-        				Platform.runLater(() -> {
-        					list.add(omeroObj);
-        					
-        					// Check if all orphaned images were loaded
-        					if (orphanedFolder.incrementAndGetLoadedCount() >= max)
-        						orphanedFolder.setLoading(false);
-        				});
-    				} catch (IOException ex) {
-						logger.error("Could not fetch information for image id: " + e.getAsJsonObject().get("id"), ex);
+		ExecutorService executorRequests = Executors.newSingleThreadExecutor(OmeroRequestLimiter.createThreadFactory("orphaned-image-requests", Priority.TREE));
+		executorRequests.submit(() -> {
+			var gson = new GsonBuilder().registerTypeAdapter(OmeroObject.class, new OmeroObjects.GsonOmeroObjectDeserializer()).setLenient().create();
+			try {
+				URL url = OmeroRequests.getObjectListURL(uri.getScheme(), uri.getHost(), uri.getPort(), OmeroObjectType.IMAGE, OmeroObjectType.SERVER, -1);
+				readPaginated(url, (page, totalCount) -> {
+					// Parse the images here, so that the JavaFX thread only has to add them to the list
+					List<OmeroObject> images = new ArrayList<>();
+					for (var d: page) {
+						try {
+							var omeroObj = gson.fromJson(d, OmeroObject.class);
+							if (omeroObj != null)
+								images.add(omeroObj);
+						} catch (Exception e) {
+							logger.error("Error parsing OMERO object: " + e.getLocalizedMessage(), e);
+						}
 					}
-    			});
-        	});
-    		executorRequests.shutdown();
-        } catch (IOException ex) {
-        	logger.error(ex.getLocalizedMessage());
-        }
+					Platform.runLater(() -> {
+						orphanedFolder.setTotalChildCount(totalCount);
+						list.addAll(images);
+						
+						// Check if all orphaned images were loaded
+						if (orphanedFolder.addAndGetLoadedCount(page.size()) >= totalCount)
+							orphanedFolder.setLoading(false);
+					});
+				});
+			} catch (IOException ex) {
+				logger.error("Could not fetch orphaned images: " + ex.getLocalizedMessage(), ex);
+				Platform.runLater(() -> orphanedFolder.setLoading(false));
+			}
+		});
+		executorRequests.shutdown();
 	}
 	
 	/**
@@ -399,58 +479,88 @@ public final class OmeroTools {
 	 * @param server
 	 * @return success
 	 * @throws IOException
+	 * @see #writePathObjects(Collection, OmeroWebImageServer, IntConsumer)
 	 */
 	public static boolean writePathObjects(Collection<PathObject> pathObjects, OmeroWebImageServer server) throws IOException {
+		return writePathObjects(pathObjects, server, null);
+	}
+	
+	/**
+	 * Write PathObject collection to OMERO server, reporting the progress. This will not delete the existing 
+	 * ROIs present on the OMERO server. Rather, it will simply add the new ones.
+	 * <p>
+	 * Objects are sent in batches of bounded size, several batches at a time. If some batches cannot be written, 
+	 * the other batches are written anyway and an exception reporting the number of objects not written is thrown.
+	 * 
+	 * @param pathObjects
+	 * @param server
+	 * @param progress consumer of the number of objects written so far (called from a background thread), or null
+	 * @return success
+	 * @throws IOException if some objects could not be written
+	 */
+	public static boolean writePathObjects(Collection<PathObject> pathObjects, OmeroWebImageServer server, IntConsumer progress) throws IOException {
 		// TODO: What to do if token expires?
-		// TODO: What if we have more object than the limit accepted by the OMERO API?
 		if (pathObjects.isEmpty())
 			return true;
 		
-		String id = server.getId();
-		String host = server.getHost();
-		String scheme = server.getScheme();
-		int port = server.getPort();
-		
 		// TODO: probably should do this in one line
 		Gson gsonTMAs  = new GsonBuilder().registerTypeAdapter(TMACoreObject.class, new OmeroShapes.GsonShapeSerializer()).serializeSpecialFloatingPointValues().setLenient().create();
 		Gson gsonAnnotation = new GsonBuilder().registerTypeAdapter(PathAnnotationObject.class, new OmeroShapes.GsonShapeSerializer()).setLenient().create();
 		Gson gsonDetection  = new GsonBuilder().registerTypeAdapter(PathDetectionObject.class, new OmeroShapes.GsonShapeSerializer()).serializeSpecialFloatingPointValues().setLenient().create();
 		
-		// Iterate through PathObjects and get their JSON representation
-		List<String> jsonList = new ArrayList<>();
+		// Check all the objects before sending any of them
 		for (var pathObject: pathObjects) {
-			String myJson = "";
-			if (pathObject.isTMACore())
-				myJson = gsonTMAs.toJson(pathObject);
-			else if (pathObject.isAnnotation())
-				myJson = gsonAnnotation.toJson(pathObject);
-			else if (pathObject.isDetection()) {
-				// TODO: ugly design, should improve this
-				if (pathObject instanceof PathCellObject) {
-					var detTemp = PathObjects.createDetectionObject(pathObject.getROI());
-					detTemp.setPathClass(pathObject.getPathClass());
-					detTemp.setColorRGB(pathObject.getColorRGB());
-					detTemp.setName(pathObject.getName());
-					pathObject = detTemp;
-				}
-				myJson = gsonDetection.toJson(pathObject);				
-			} else
+			if (!pathObject.isTMACore() && !pathObject.isAnnotation() && !pathObject.isDetection())
 				throw new IOException(String.format("Type not supported: %s", pathObject.getClass()));
+		}
+		
+		// Iterate through PathObjects, and send their JSON representation in batches
+		var writer = new OmeroROIWriter(server, progress);
+		try {
+			for (var pathObject: pathObjects) {
+				JsonElement json;
+				if (pathObject.isTMACore())
+					json = gsonTMAs.toJsonTree(pathObject);
+				else if (pathObject.isAnnotation())
+					json = gsonAnnotation.toJsonTree(pathObject);
+				else {
+					// TODO: ugly design, should improve this
+					if (pathObject instanceof PathCellObject) {
+						var detTemp = PathObjects.createDetectionObject(pathObject.getROI());
+						detTemp.setPathClass(pathObject.getPathClass());
+						detTemp.setColorRGB(pathObject.getColorRGB());
+						detTemp.setName(pathObject.getName());
+						pathObject = detTemp;
+					}
+					json = gsonDetection.toJsonTree(pathObject);
+				}
 			
+				// Some ROIs are split into several shapes (e.g. Points/MultiPolygon)
+				List<String> rois = new ArrayList<>();
+				if (json.isJsonArray())
+					json.getAsJsonArray().forEach(e -> rois.add(e.toString()));
+				else
+					rois.add(json.toString());
+				writer.add(rois);
+			}
+		} catch (IOException | RuntimeException e) {
+			// Wait for the batches already sent, stopping the writer and reporting their errors too
 			try {
-				// See if resulting JSON is a list (e.g. Points/MultiPolygon)
-				List<JsonElement> roiList = Arrays.asList(GsonTools.getInstance().fromJson(myJson, JsonElement[].class));
-				roiList.forEach(e -> jsonList.add(e.toString()));
-			} catch (Exception ex) {
-				jsonList.add(myJson);
+				writer.finish();
+			} catch (IOException e2) {
+				e.addSuppressed(e2);
 			}
+			throw e;
 		}
 		
-		return OmeroRequests.requestWriteROIs(scheme, host, port, Integer.parseInt(id), server.getWebclient().getToken(), jsonList);
+		writer.finish();
+		return true;
 	}
 	
 	/**
 	 * Return the thumbnail of the OMERO image corresponding to the specified {@code imageId}.
+	 * <p>
+	 * The thumbnail is read from (or added to) the thumbnail cache of the server's client.
 	 * 
 	 * @param server
 	 * @param imageId
@@ -458,16 +568,13 @@ public final class OmeroTools {
 	 * @return thumbnail
 	 */
 	public static BufferedImage getThumbnail(OmeroWebImageServer server, int imageId, int prefSize) {
-		try {
-			return OmeroRequests.requestThumbnail(server.getScheme(), server.getHost(), server.getPort(), imageId, prefSize);			
-		} catch (IOException ex) {
-			logger.warn("Error requesting the thumbnail: {}", ex.getLocalizedMessage());
-			return null;
-		}
+		return getThumbnail(server.getWebclient().getThumbnailCache(), imageId, prefSize);
 	}
 	
 	/**
 	 * Return the thumbnail of the OMERO image corresponding to the specified {@code id}.
+	 * <p>
+	 * If a client exists for the server, the thumbnail is read from (or added to) its thumbnail cache.
 	 * 
 	 * @param uri
 	 * @param id
@@ -475,6 +582,9 @@ public final class OmeroTools {
 	 * @return thumbnail
 	 */
 	public static BufferedImage getThumbnail(URI uri, int id, int prefSize) {
+		var client = OmeroWebClients.getClientFromServerURI(getServerURI(uri));
+		if (client != null)
+			return getThumbnail(client.getThumbnailCache(), id, prefSize);
 		try {
 			return OmeroRequests.requestThumbnail(uri.getScheme(), uri.getHost(), uri.getPort(), id, prefSize);
 		} catch (IOException ex) {
@@ -483,6 +593,18 @@ public final class OmeroTools {
 		}
 	}
 	
+	private static BufferedImage getThumbnail(OmeroThumbnailCache cache, int id, int prefSize) {
+		try {
+			return cache.getAsync(id, prefSize).get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException ex) {
+			logger.warn("Error requesting the thumbnail: {}", ex.getCause().getLocalizedMessage());
+			return null;
+		}
+	}
+	
 	
 //	/**
 //	 * Return a list of all {@code OmeroWebClient}s that are using the specified URI (based on their {@code host}).
@@ -534,42 +656,53 @@ public final class OmeroTools {
      * OMERO requests that return a list of items are paginated 
      * (see <a href="https://docs.openmicroscopy.org/omero/5.6.1/developers/json-api.html#pagination">OMERO API docs</a>).
      * Using this helper method ensures that all the requested data is retrieved.
+     * <p>
+     * Once the first page is read (and therefore the total number of items is known), the remaining pages 
+     * are requested concurrently, at most {@link OmeroPageIterator#MAX_PAGE_REQUESTS} at a time. If any page 
+     * cannot be read, an IOException is thrown rather than returning an incomplete list.
      * 
      * @param url
      * @return list of {@code Json Element}s
      * @throws IOException
      */
-	// TODO: Consider using parallel/asynchronous requests
     static List<JsonElement> readPaginated(URL url) throws IOException {
     	List<JsonElement> jsonList = new ArrayList<>();
-        String symbol = (url.getQuery() != null && !url.getQuery().isEmpty()) ? "&" : "?";
-
-        // Open connection
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        int response = connection.getResponseCode();
-        
-        // Catch bad response
-        if (response != 200)
-        	return jsonList;
+    	readPaginated(url, (page, totalCount) -> page.forEach(jsonList::add));
+    	return jsonList;
+    }
 
-        JsonObject map;
-        try (InputStreamReader reader = new InputStreamReader(connection.getInputStream())) {
-        	map = GsonTools.getInstance().fromJson(reader, JsonObject.class);
-        }
+    /**
+     * Read all the pages of a paginated OMERO request, passing the data of each page to the specified consumer 
+     * (along with the total number of items) in order, as soon as it is available.
+     * <p>
+     * As with {@link #readPaginated(URL)}, pages are requested concurrently, but the number of pages requested 
+     * ahead of the one being consumed is bounded, so that the whole response is never held in memory.
+     * 
+     * @param url
+     * @param pageConsumer consumer of the data of each page and the total number of items
+     * @throws IOException if any page cannot be read
+     * @see OmeroPageIterator
+     */
+    static void readPaginated(URL url, BiConsumer<JsonArray, Integer> pageConsumer) throws IOException {
+    	try (var pages = new OmeroPageIterator(url)) {
+    		while (pages.hasNext())
+    			pageConsumer.accept(pages.nextPage(), pages.getTotalCount());
+    	}
+    }
 
-        map.get("data").getAsJsonArray().forEach(jsonList::add);
-    	JsonObject meta = map.getAsJsonObject("meta");
-        int offset = 0;
-        int totalCount = meta.get("totalCount").getAsInt();
-        int limit = meta.get("limit").getAsInt();
-        while (offset + limit < totalCount) {
-            offset += limit;
-            URL nextURL = new URL(url + symbol + "offset=" + offset);
-            InputStreamReader newPageReader = new InputStreamReader(nextURL.openStream());
-            JsonObject newPageMap = GsonTools.getInstance().fromJson(newPageReader, JsonObject.class);
-            newPageMap.get("data").getAsJsonArray().forEach(jsonList::add);
-        }
-        return jsonList;
+    /**
+     * Read a page of a paginated OMERO request, checking that it contains data.
+     * @param stream
+     * @return page
+     * @throws IOException
+     */
+    static JsonObject readPage(InputStream stream) throws IOException {
+    	try (InputStreamReader reader = new InputStreamReader(stream)) {
+    		JsonObject map = GsonTools.getInstance().fromJson(reader, JsonObject.class);
+    		if (map == null || !map.has("data"))
+    			throw new IOException("Invalid page received from OMERO: no data");
+    		return map;
+    	}
     }
    
     
@@ -24,7 +24,7 @@ package qupath.lib.images.servers.omero;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Type;
 import java.net.Authenticator;
 import java.net.ConnectException;
@@ -38,9 +38,16 @@ import java.net.PasswordAuthentication;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -49,6 +56,11 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 
 import javax.naming.OperationNotSupportedException;
 
@@ -134,6 +146,34 @@ public class OmeroWebClient {
 	private OmeroAPIVersion APIVersion;
 	private String token;
 	
+	/**
+	 * Cookies (session and CSRF token) of this client. These are kept per client rather than 
+	 * in the JVM-wide {@link CookieHandler}, so that sessions to different servers do not interfere.
+	 */
+	private final CookieManager cookieManager;
+	
+	/**
+	 * HTTP client through which all requests to this client's server are sent. 
+	 * Its connections are reused (and multiplexed when HTTP/2 is available).
+	 */
+	private final HttpClient httpClient;
+	
+	/**
+	 * Adaptive limit on the number of concurrent requests sent through {@link #httpClient}, 
+	 * shared by tiles, browser and scripts so that the server is not overloaded.
+	 */
+	private final OmeroRequestLimiter limiter = new OmeroRequestLimiter();
+	
+	/**
+	 * Image thumbnails of this client's server, shared by all browsers.
+	 */
+	private final OmeroThumbnailCache thumbnailCache;
+	
+	/**
+	 * Annotations (tags, key-value pairs, etc.) of the objects of this client's server, shared by all browsers.
+	 */
+	private final OmeroAnnotationCache annotationCache;
+	
 	private Timer timer;
 	
 	static OmeroWebClient create(URI serverURI, boolean startTimer) throws JsonSyntaxException, MalformedURLException, IOException, URISyntaxException {
@@ -156,6 +196,10 @@ public class OmeroWebClient {
 		this.defaultGroup = null;
 		this.userId = -1;
 		this.loggedIn = new SimpleBooleanProperty(false);
+		this.cookieManager = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+		this.httpClient = createHttpClient(cookieManager);
+		this.thumbnailCache = new OmeroThumbnailCache(this);
+		this.annotationCache = new OmeroAnnotationCache(serverUri);
 		loadURLs();
 	}
 
@@ -175,37 +219,33 @@ public class OmeroWebClient {
 	}
 
 	String authenticate(final PasswordAuthentication authentication, final int serverID) throws Exception {
-		var handler = CookieHandler.getDefault();
-		handler = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
-		CookieHandler.setDefault(handler);
-
-		if (this.token == null)
-			this.token = getCSRFToken();
+		// Start from a clean session, the CSRF token must then be requested again
+		cookieManager.getCookieStore().removeAll();
+		this.token = getCSRFToken();
 
 		String url = omeroURLs.get(URL_LOGIN);
-		HttpURLConnection connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
-		connection.setRequestProperty("X-CSRFToken", this.token);
-		connection.setRequestMethod("POST");
-		connection.setRequestProperty("Referer", url + ":" + omeroServerInfo.port);
-		connection.setUseCaches(false);
-
-		connection.setDoInput(true);
-		connection.setDoOutput(true);
-		
-		
 		var charset = StandardCharsets.UTF_8;
-		try (OutputStream stream = connection.getOutputStream()) {
-			// To avoid storing the password in a String: create ByteBuffers and concatenate them, then convert to byte[]
-			String s = String.join("&", "server=" + serverID, "username=" + authentication.getUserName(), "password=");
-			CharBuffer charBuffer = CharBuffer.wrap(authentication.getPassword());
-			byte[] sBytes = s.getBytes(charset);
-			byte[] out = new byte[sBytes.length + charBuffer.length() * 4];
-			ByteBuffer byteBuffer = ByteBuffer.wrap(out);
-			byteBuffer.put(sBytes);
-			var encoder = charset.newEncoder();
-			encoder.encode(charBuffer, byteBuffer, true);
-			stream.write(out, 0, byteBuffer.position());
-			
+		
+		// To avoid storing the password in a String: create ByteBuffers and concatenate them, then convert to byte[]
+		String s = String.join("&", "server=" + serverID, "username=" + authentication.getUserName(), "password=");
+		CharBuffer charBuffer = CharBuffer.wrap(authentication.getPassword());
+		byte[] sBytes = s.getBytes(charset);
+		byte[] out = new byte[sBytes.length + charBuffer.length() * 4];
+		ByteBuffer byteBuffer = ByteBuffer.wrap(out);
+		byteBuffer.put(sBytes);
+		var encoder = charset.newEncoder();
+		encoder.encode(charBuffer, byteBuffer, true);
+
+		HttpResponse<String> response;
+		try {
+			var request = HttpRequest.newBuilder(URI.create(url))
+					.header("X-CSRFToken", this.token)
+					.header("Referer", url + ":" + omeroServerInfo.port)
+					.header("Content-Type", "application/x-www-form-urlencoded")
+					.POST(BodyPublishers.ofByteArray(out, 0, byteBuffer.position()))
+					.build();
+			response = send(request, BodyHandlers.ofString());
+		} finally {
 			// Fill the traces of password with '0'
 			Arrays.fill(authentication.getPassword(), (char) 0);
 			Arrays.fill(out, (byte)0);
@@ -214,30 +254,16 @@ public class OmeroWebClient {
 			encoder.reset();
 			System.gc();
 		}
+		
+		if (response.statusCode() >= 400)
+			throw new IOException("Server returned HTTP response code " + response.statusCode() + " for URL: " + url);
+		String rtn = response.body();
 
-//	        var client = HttpClient.newBuilder()
-//	        		.build();
-//	        var request = HttpRequest.newBuilder(URI.create(url))
-//	        		.header("X-CSRFToken", this.token)
-//	        		.header("Referer", url)
-//	        		.header("Cookie", "csrftoken=" + this.token)
-//	        		.POST(BodyPublishers.ofString(s)).build();
-//	        try {
-//				System.err.println(client.send(request, BodyHandlers.ofString()).body());
-//			} catch (InterruptedException e) {
-//				e.printStackTrace();
-//			}
-
-    String rtn = null;
-		try (InputStream input = connection.getInputStream()) {
-			rtn = GeneralTools.readInputStreamAsString(input);
-		}
-
-    // look for session ID in existing session cookies
+    // look for session ID in the session cookies of this client
     // this will throw an IOException if the 'sessionid' cookie is not found
     // the session ID is used later when retrieving raw tiles from the microservice
     sessionId = null;
-    List<HttpCookie> cookies = ((CookieManager) handler).getCookieStore().getCookies();
+    List<HttpCookie> cookies = cookieManager.getCookieStore().getCookies();
     for (HttpCookie cookie : cookies) {
       if (cookie.getName().equals("sessionid")) {
         sessionId = cookie.getValue();
@@ -253,30 +279,23 @@ public class OmeroWebClient {
     // the session ID retrieved above is not required to perform this check,
     // but both the session ID and microservice configuration must be present in order
     // to retrieve raw tiles
-    HttpURLConnection conn = null;
-    try {
-      URL optionsURL = new URL(serverURI.getScheme(), serverURI.getHost(), serverURI.getPort(), "/tile/");
-      conn = (HttpURLConnection) optionsURL.openConnection();
-      conn.setRequestMethod("OPTIONS");
-      conn.connect();
-      int response = conn.getResponseCode();
-      if (response == HttpURLConnection.HTTP_OK) {
-        try (InputStreamReader reader = new InputStreamReader(conn.getInputStream())) {
-          JsonObject root = GsonTools.getInstance().fromJson(reader, JsonObject.class);
-          JsonPrimitive provider = root.getAsJsonPrimitive("provider");
-          if (provider != null && provider.getAsString().equals("PixelBufferMicroservice")) {
-            hasMicroservice = true;
-          }
+    var optionsRequest = HttpRequest.newBuilder(serverURI.resolve("/tile/"))
+        .method("OPTIONS", BodyPublishers.noBody())
+        .build();
+    var optionsResponse = send(optionsRequest, BodyHandlers.ofInputStream());
+    try (InputStreamReader reader = new InputStreamReader(optionsResponse.body())) {
+      if (optionsResponse.statusCode() == HttpURLConnection.HTTP_OK) {
+        JsonObject root = GsonTools.getInstance().fromJson(reader, JsonObject.class);
+        JsonPrimitive provider = root.getAsJsonPrimitive("provider");
+        if (provider != null && provider.getAsString().equals("PixelBufferMicroservice")) {
+          hasMicroservice = true;
         }
       }
       else {
-        logger.error("Could not check for OMERO microservice ({})", response);
+        logger.error("Could not check for OMERO microservice ({})", optionsResponse.statusCode());
         hasMicroservice = false;
       }
     }
-    finally {
-      conn.disconnect();
-    }
 
     return rtn;
 	}
@@ -284,14 +303,11 @@ public class OmeroWebClient {
 	private int keepAlive() {
 		try {
 			logger.debug("Attempting to keep connection alive...");
-			var pingURL = new URL(serverURI.getScheme(), serverURI.getHost(), serverURI.getPort(), "/webclient/keepalive_ping/?_=" + System.currentTimeMillis());
-			HttpURLConnection connection = (HttpURLConnection) pingURL.openConnection();
-			connection.setRequestProperty("Content-Type", "application/json");
-			connection.setRequestMethod("GET");
-			connection.setDoInput(true);
-			int response = connection.getResponseCode();
-			connection.disconnect();
-			return response;
+			var request = HttpRequest.newBuilder(serverURI.resolve("/webclient/keepalive_ping/?_=" + System.currentTimeMillis()))
+					.header("Content-Type", "application/json")
+					.GET()
+					.build();
+			return send(request, BodyHandlers.discarding()).statusCode();
 		} catch (IOException e) {
 			logger.warn("Error trying to keep connection alive. Client will shut down now.", e.getLocalizedMessage());
 			return -1;
@@ -332,14 +348,12 @@ public class OmeroWebClient {
 			}	
 			
 			URL url = new URL(uri.getScheme(), uri.getHost(), uri.getPort(), query + id);
-			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestProperty("Content-Type", "application/json");
-			connection.setRequestMethod("GET");
-			connection.setDoInput(true);
-			int response = connection.getResponseCode();
-			connection.disconnect();
-			return response == 200;
-		} catch (IOException | OperationNotSupportedException ex) {
+			var request = HttpRequest.newBuilder(url.toURI())
+					.header("Content-Type", "application/json")
+					.GET()
+					.build();
+			return OmeroRequests.send(request, BodyHandlers.discarding()).statusCode() == 200;
+		} catch (IOException | URISyntaxException | OperationNotSupportedException ex) {
 			logger.warn("Error attempting to access OMERO object", ex.getLocalizedMessage());
 			return false;
 		}
@@ -374,6 +388,202 @@ public class OmeroWebClient {
     return hasMicroservice;
   }
 
+	/**
+	 * Send the specified request through this client's {@link HttpClient} (sharing its connections and cookies), 
+	 * blocking until the response is received. The request waits for a permit of the client's limiter, with the 
+	 * priority of the current thread (see {@link OmeroRequestLimiter#withPriority(OmeroRequestLimiter.Priority)}).
+	 * @param <T> response body type
+	 * @param request
+	 * @param handler
+	 * @return response
+	 * @throws IOException if the request could not be sent or if the thread was interrupted
+	 */
+	<T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> handler) throws IOException {
+		return send(request, handler, () -> true);
+	}
+
+	/**
+	 * Send the specified request like {@link #send(HttpRequest, BodyHandler)}, calling the specified function 
+	 * once the request has a permit of the limiter, just before it is actually sent.
+	 * @param <T> response body type
+	 * @param request
+	 * @param handler
+	 * @param beforeSend function returning false if the request should not be sent after all, in which case 
+	 *                   its permit is released and a {@link CancellationException} is thrown
+	 * @return response
+	 * @throws IOException if the request could not be sent or if the thread was interrupted
+	 */
+	<T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> handler, BooleanSupplier beforeSend) throws IOException {
+		var priority = OmeroRequestLimiter.getCurrentPriority();
+		limiter.acquire(priority);
+		if (!beforeSend.getAsBoolean()) {
+			limiter.release(priority);
+			throw new CancellationException("Request to " + request.uri() + " was not sent");
+		}
+		var headersNanos = new AtomicLong();
+		long start = System.nanoTime();
+		try {
+			var response = send(httpClient, request, timeHeaders(handler, headersNanos));
+			limiter.release(priority, getLatency(start, headersNanos), OmeroRequestLimiter.isOverloaded(response.statusCode()));
+			return response;
+		} catch (InterruptedIOException e) {
+			limiter.release(priority);
+			throw e;
+		} catch (IOException | RuntimeException e) {
+			limiter.release(priority, getLatency(start, headersNanos), true);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Send the specified request asynchronously through this client's {@link HttpClient}.
+	 * @param <T> response body type
+	 * @param request
+	 * @param handler
+	 * @return future response
+	 */
+	<T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> handler) {
+		return sendAsync(request, handler, () -> true);
+	}
+	
+	/**
+	 * Send the specified request asynchronously like {@link #sendAsync(HttpRequest, BodyHandler)}, calling the 
+	 * specified function once the request has a permit of the limiter, just before it is actually sent.
+	 * @param <T> response body type
+	 * @param request
+	 * @param handler
+	 * @param beforeSend function returning false if the request should not be sent after all, in which case 
+	 *                   its permit is released and the future fails with a {@link CancellationException}
+	 * @return future response
+	 */
+	<T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> handler, BooleanSupplier beforeSend) {
+		var priority = OmeroRequestLimiter.getCurrentPriority();
+		var exchange = new AtomicReference<CompletableFuture<HttpResponse<T>>>();
+		var permit = limiter.acquireAsync(priority);
+		var future = permit.thenCompose(v -> {
+			if (!beforeSend.getAsBoolean()) {
+				limiter.release(priority);
+				return CompletableFuture.<HttpResponse<T>>failedFuture(
+						new CancellationException("Request to " + request.uri() + " was not sent"));
+			}
+			var headersNanos = new AtomicLong();
+			long start = System.nanoTime();
+			exchange.set(httpClient.sendAsync(request, timeHeaders(handler, headersNanos)));
+			return exchange.get().whenComplete((response, e) -> {
+				if (response != null)
+					limiter.release(priority, getLatency(start, headersNanos), OmeroRequestLimiter.isOverloaded(response.statusCode()));
+				else if (exchange.get().isCancelled() || e instanceof CancellationException || e.getCause() instanceof CancellationException)
+					// A cancelled request (e.g. the slowest of a hedged pair, or an obsolete thumbnail) says nothing about the server
+					limiter.release(priority);
+				else
+					limiter.release(priority, getLatency(start, headersNanos), true);
+			});
+		});
+		// Cancelling the returned future should withdraw the request if still waiting, or abort the exchange itself
+		future.whenComplete((response, e) -> {
+			if (!future.isCancelled())
+				return;
+			permit.cancel(false);
+			var sent = exchange.get();
+			if (sent != null)
+				sent.cancel(true);
+		});
+		return future;
+	}
+	
+	/**
+	 * Return the cache of the image thumbnails of this client's server.
+	 * @return thumbnail cache
+	 */
+	OmeroThumbnailCache getThumbnailCache() {
+		return thumbnailCache;
+	}
+	
+	/**
+	 * Return the cache of the annotations of the objects of this client's server.
+	 * @return annotation cache
+	 */
+	OmeroAnnotationCache getAnnotationCache() {
+		return annotationCache;
+	}
+	
+	/**
+	 * Return the current limit on the number of concurrent requests sent to the server. 
+	 * This adapts to the latency and errors of the responses.
+	 * @return concurrency limit
+	 */
+	public int getConcurrencyLimit() {
+		return limiter.getLimit();
+	}
+	
+	/**
+	 * Return the number of requests currently being sent to the server.
+	 * @return active requests
+	 */
+	public int getActiveRequestCount() {
+		return limiter.getInFlight();
+	}
+	
+	/**
+	 * Return the number of requests waiting because the concurrency limit is reached.
+	 * @return queued requests
+	 */
+	public int getQueuedRequestCount() {
+		return limiter.getQueueDepth();
+	}
+	
+	/**
+	 * Create an HTTP client suitable for OMERO requests, using the specified cookie handler (if any).
+	 * @param cookieHandler cookie handler, or {@code null} to not store cookies
+	 * @return HTTP client
+	 */
+	static HttpClient createHttpClient(CookieHandler cookieHandler) {
+		var builder = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NORMAL);
+		int connectTimeout = OmeroPrefs.connectTimeoutProperty().get();
+		if (connectTimeout > 0)
+			builder.connectTimeout(Duration.ofSeconds(connectTimeout));
+		if (cookieHandler != null)
+			builder.cookieHandler(cookieHandler);
+		return builder.build();
+	}
+	
+	/**
+	 * Wrap a body handler to record when the response headers are received. Latencies are measured until then, 
+	 * since handlers complete at different times (e.g. once the whole body is received, or as soon as the 
+	 * headers are received for streams).
+	 */
+	private static <T> BodyHandler<T> timeHeaders(BodyHandler<T> handler, AtomicLong headersNanos) {
+		return info -> {
+			headersNanos.set(System.nanoTime());
+			return handler.apply(info);
+		};
+	}
+	
+	private static long getLatency(long startNanos, AtomicLong headersNanos) {
+		long end = headersNanos.get();
+		return (end == 0 ? System.nanoTime() : end) - startNanos;
+	}
+	
+	/**
+	 * Send the specified request with the specified HTTP client, converting interruptions to {@link InterruptedIOException}s.
+	 * @param <T> response body type
+	 * @param httpClient
+	 * @param request
+	 * @param handler
+	 * @return response
+	 * @throws IOException
+	 */
+	static <T> HttpResponse<T> send(HttpClient httpClient, HttpRequest request, BodyHandler<T> handler) throws IOException {
+		try {
+			return httpClient.send(request, handler);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while requesting " + request.uri());
+		}
+	}
+
 	void setUsername(String newUsername) {
 		username.set(newUsername);
 	}
@@ -458,7 +668,7 @@ public class OmeroWebClient {
 	 * @see #isLoggedIn()
 	 */
 	public boolean checkIfLoggedIn() {
-		loggedIn.set(OmeroRequests.isLoggedIn(serverURI));
+		loggedIn.set(OmeroRequests.isLoggedIn(this));
 		return loggedIn.get();		
 	}
 	/**
@@ -537,16 +747,14 @@ public class OmeroWebClient {
 	 */
 	public void logOut() {
 		try {
-			URL url = new URL(serverURI.getScheme(), serverURI.getHost(), serverURI.getPort(), "/webclient/logout/");
-			HttpURLConnection connection = (HttpURLConnection)url.openConnection();
-			connection.setRequestProperty("X-CSRFToken", token);
-			connection.setRequestProperty("Content-Type", "application/json");
-			connection.setRequestProperty("Referer", url + ":" + omeroServerInfo.port);
-			connection.setRequestMethod("POST");
-			connection.setDoOutput(true);
-			connection.setDoInput(true);
-			int response = connection.getResponseCode();
-			connection.disconnect();
+			URI uri = serverURI.resolve("/webclient/logout/");
+			var request = HttpRequest.newBuilder(uri)
+					.header("X-CSRFToken", token)
+					.header("Content-Type", "application/json")
+					.header("Referer", uri + ":" + omeroServerInfo.port)
+					.POST(BodyPublishers.noBody())
+					.build();
+			int response = send(request, BodyHandlers.discarding()).statusCode();
 			
 			if (response != 200 && response != 403)
 				throw new IOException("Server returned " + response);
@@ -593,36 +801,32 @@ public class OmeroWebClient {
 		return map.get("data").toString();
 	}
 
-	private static String getJSONString(String base, String... query) throws MalformedURLException, IOException {
+	private String getJSONString(String base, String... query) throws MalformedURLException, IOException {
 
 		StringBuilder sb = new StringBuilder(base);
 		for (String q : query)
 			sb.append(q);
 
-		HttpURLConnection connection = (HttpURLConnection) URI.create(sb.toString()).toURL().openConnection();
-		connection.setRequestProperty("Content-Type", "application/json");
-		connection.setRequestMethod("GET");
-		connection.setDoInput(true);
-		
-		// In case of '301 Permanently moved' (sometimes happens when 'http' instead of 'https')
-		var code = connection.getResponseCode();
-		if (code == 301) {
-			var redirectedLink = connection.getHeaderField("Location");
-			logger.error("Could not reach {}. Source permanently moved to {}", connection.getURL().toString(), redirectedLink != null ? redirectedLink : "unknown");
-			throw new IOException(code + ": " + connection.getResponseMessage());
-		}
-		
-		try (InputStream stream = connection.getInputStream()) {
+		var request = HttpRequest.newBuilder(URI.create(sb.toString()))
+				.header("Content-Type", "application/json")
+				.GET()
+				.build();
+		// Redirects (e.g. from 'http' to 'https') are followed by the HTTP client
+		var response = send(request, BodyHandlers.ofInputStream());
+		var code = response.statusCode();
+		try (InputStream stream = response.body()) {
+			if (code >= 400)
+				throw new IOException("Server returned HTTP response code " + code + " for URL: " + request.uri());
 			return GeneralTools.readInputStreamAsString(stream);
 		}
 	}
 
-	private static <T> T parseJSON(Class<T> cls, String base, String... query) throws JsonSyntaxException, MalformedURLException, IOException {
+	private <T> T parseJSON(Class<T> cls, String base, String... query) throws JsonSyntaxException, MalformedURLException, IOException {
 		return GsonTools.getInstance().fromJson(getJSONString(base, query), cls);
 	}
 
 	@SuppressWarnings("unchecked")
-	private static <T> T parseJSON(Type type, String base, String... query) throws JsonSyntaxException, MalformedURLException, IOException {
+	private <T> T parseJSON(Type type, String base, String... query) throws JsonSyntaxException, MalformedURLException, IOException {
 		return (T) GsonTools.getInstance().fromJson(getJSONString(base, query), type);
 	}
 	
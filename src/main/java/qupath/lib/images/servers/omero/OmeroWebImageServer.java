@@ -35,18 +35,39 @@ import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
-import java.net.URL;
-import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.imageio.ImageIO;
 
@@ -60,6 +81,7 @@ import com.google.gson.JsonObject;
 
 import qupath.lib.awt.common.BufferedImageTools;
 import qupath.lib.color.ColorModelFactory;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.servers.AbstractTileableImageServer;
 import qupath.lib.images.servers.ImageChannel;
 import qupath.lib.images.servers.ImageServerBuilder;
@@ -70,6 +92,7 @@ import qupath.lib.images.servers.TileRequest;
 import qupath.lib.images.servers.omero.OmeroShapes.OmeroShape;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectReader;
+import qupath.lib.regions.RegionRequest;
 
 import loci.formats.gui.AWTImageTools;
 
@@ -94,6 +117,12 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 
 	private ImageServerMetadata originalMetadata;
 
+	/**
+	 * Fingerprint of the OMERO metadata of the image, used so that cached tiles are not reused 
+	 * once the image has changed on the server.
+	 */
+	private String metadataFingerprint;
+
 	/**
 	 * Image OMERO ID
 	 */
@@ -114,6 +143,55 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 	 */
 	private double quality = DEFAULT_JPEG_QUALITY;
 
+	/**
+	 * Rendering settings of RGB tiles requested from the webgateway, already URL-encoded.
+	 */
+	private static final String RENDERED_CHANNELS = "&c=1%7C0:255$FF0000,2%7C0:255$00FF00,3%7C0:255$0000FF";
+	private static final String RENDERED_MAPS = "&maps=%5B%7B%22inverted%22:%7B%22enabled%22:false%7D%7D,%7B%22inverted%22:%7B%22enabled%22:false%7D%7D,%7B%22inverted%22:%7B%22enabled%22:false%7D%7D%5D";
+
+	/**
+	 * Maximum number of channel tiles requested concurrently by a single server.
+	 */
+	private static final int MAX_CHANNEL_REQUESTS = 16;
+
+	/**
+	 * Pool used to request the channels of a microservice tile concurrently (created lazily).
+	 */
+	private ExecutorService channelPool;
+
+	/**
+	 * Maximum number of tiles or regions of a batch that are being read or waiting to be consumed, per batch.
+	 */
+	private static final int MAX_BATCH_REQUESTS = 32;
+
+	/**
+	 * Pool used to read batches of tiles or regions asynchronously (created lazily).
+	 */
+	private ExecutorService batchPool;
+
+	/**
+	 * Tiles currently being fetched, so that concurrent requests for the same tile share a single request. 
+	 * This is shared by all servers, since the same image is often opened by several servers at once 
+	 * (e.g. viewer and scripts), and keys identify the server and image.
+	 */
+	private static final Map<String, InFlightTile> inFlightTiles = new ConcurrentHashMap<>();
+
+	/**
+	 * Number of tile requests served by waiting on an identical request in flight (not counting the tiles 
+	 * that were being prefetched).
+	 */
+	private final LongAdder sharedTileRequests = new LongAdder();
+
+	/**
+	 * Background prefetcher of tiles, if enabled (created lazily).
+	 */
+	private OmeroTilePrefetcher prefetcher;
+
+	/**
+	 * Fetcher handling timeouts, retries and hedging of tile requests.
+	 */
+	private final OmeroTileFetcher tileFetcher;
+
 //	/**
 //	 * There appears to be a max size (hard-coded?) in OMERO, so we need to make sure we don't exceed that.
 //	 * Requesting anything larger just returns a truncated image.
@@ -145,6 +223,7 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 		this.host = uri.getHost();
 		this.port = uri.getPort();
 		this.client = client;
+		this.tileFetcher = new OmeroTileFetcher(client);
 		this.originalMetadata = buildMetadata();
 		// Args are stored in the JSON - passwords and usernames must not be included!
 		// Do an extra check to ensure someone hasn't accidentally passed one
@@ -209,6 +288,7 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 		JsonObject map = OmeroRequests.requestMetadata(scheme, host, port, Integer.parseInt(id));
 		JsonObject size = map.getAsJsonObject("size");
     JsonObject meta = map.getAsJsonObject("meta");
+    metadataFingerprint = computeFingerprint(map);
 
 		sizeX = size.getAsJsonPrimitive("width").getAsInt();
 		sizeY = size.getAsJsonPrimitive("height").getAsInt();
@@ -357,23 +437,27 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 		//				);
 
 		// Options are: Rectangle, Ellipse, Point, Line, Polyline, Polygon and Label
-		var data = OmeroRequests.requestROIs(scheme, host, port, id);
 		List<PathObject> list = new ArrayList<>();
 		var gson = new GsonBuilder().registerTypeAdapter(OmeroShape.class, new OmeroShapes.GsonShapeDeserializer()).setLenient().create();
-			
-		for (int i = 0; i < data.size(); i++) {
-			JsonObject roiJson = data.get(i).getAsJsonObject();
-			JsonArray shapesJson = roiJson.getAsJsonArray("shapes");
-			
-			for (int j = 0; j < shapesJson.size(); j++) {
-				try {
-					var shape = gson.fromJson(shapesJson.get(j), OmeroShape.class);
-					if (shape != null)
-						list.add(shape.createAnnotation());
-				} catch (Exception e) {
-					logger.error("Error parsing shape: " + e.getLocalizedMessage(), e);
+		
+		// Convert ROIs as they are received, so that the Json of all the pages is never held in memory at once
+		try (var data = OmeroRequests.streamROIs(scheme, host, port, id)) {
+			data.forEach(roi -> {
+				JsonObject roiJson = roi.getAsJsonObject();
+				JsonArray shapesJson = roiJson.getAsJsonArray("shapes");
+				
+				for (int j = 0; j < shapesJson.size(); j++) {
+					try {
+						var shape = gson.fromJson(shapesJson.get(j), OmeroShape.class);
+						if (shape != null)
+							list.add(shape.createAnnotation());
+					} catch (Exception e) {
+						logger.error("Error parsing shape: " + e.getLocalizedMessage(), e);
+					}
 				}
-			}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
 		}
 		return list;
 	}	
@@ -392,10 +476,19 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
    * Retrieve a rendered tile from webgateway.
    */
   protected BufferedImage readRenderedTile(TileRequest request) throws IOException {
-		int level = request.getLevel();
+		BufferedImage img = requestImage(getRenderedTileURI(request));
+		if (nResolutions() > 1)
+			return img;
+
+		// If resolution == 1
+		return BufferedImageTools.resize(img, request.getTileWidth(), request.getTileHeight(), allowSmoothInterpolation());
+  }
 
-		int targetWidth = request.getTileWidth();
-		int targetHeight = request.getTileHeight();
+  /**
+   * Return the URI of a rendered tile from webgateway.
+   */
+  private URI getRenderedTileURI(TileRequest request) {
+		int level = request.getLevel();
 
 		String urlFile;
 
@@ -434,132 +527,640 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 					"/" + request.getZ() + 
 					"/" + request.getT() +
 					"/?tile=" + level + "," + x + "," + y + "," + width + "," + height +
-					"&c=1|0:255$FF0000,2|0:255$00FF00,3|0:255$0000FF" +
-					"&maps=[{%22inverted%22:{%22enabled%22:false}},{%22inverted%22:{%22enabled%22:false}},{%22inverted%22:{%22enabled%22:false}}]" +
+					RENDERED_CHANNELS +
+					RENDERED_MAPS +
 					"&m=c&p=normal&q=" + quality;
+		} else {
+			int x = request.getTileX();
+			int y = request.getTileY();
+			int width = getPreferredTileWidth();
+			int height = getPreferredTileHeight();
 
-			URL url = new URL(scheme, host, port, urlFile);
-
-			BufferedImage img = ImageIO.read(url);
-
-			return img;
+			urlFile = "/webgateway/render_image_region/" + id + 
+					"/" + request.getZ() + 
+					"/" + request.getT() +
+					"/?region=" + x + "," + y + "," + width + "," + height +
+					RENDERED_CHANNELS +
+					RENDERED_MAPS +
+					"&m=c&p=normal&q=" + quality;
 		}
+		return client.getServerURI().resolve(urlFile);
+  }
 
-		// If resolution == 1
-		int x = request.getTileX();
-		int y = request.getTileY();
-		int width = getPreferredTileWidth();
-		int height = getPreferredTileHeight();
-
-		urlFile = "/webgateway/render_image_region/" + id + 
-				"/" + request.getZ() + 
-				"/" + request.getT() +
-				"/?region=" + x + "," + y + "," + width + "," + height +
-				"&c=1|0:255$FF0000,2|0:255$00FF00,3|0:255$0000FF" +
-				"&maps=[{%22inverted%22:{%22enabled%22:false}},{%22inverted%22:{%22enabled%22:false}},{%22inverted%22:{%22enabled%22:false}}]" +
-				"&m=c&p=normal&q=" + quality;			
-
-
-		URL url = new URL(scheme, host, port, urlFile);
+  /**
+   * Return the URI of a single channel tile from the microservice.
+   */
+  private URI getChannelTileURI(TileRequest request, int channel) {
+    // calculate the resolution index to pass to OMERO
+    // the requested level matches Bio-Formats indexing,
+    // but OMERO expects resolutions to be specified in reverse order
+    int level = getMetadata().nLevels() - request.getLevel() - 1;
 
-		BufferedImage img = ImageIO.read(url);
+    return URI.create("https://" + host + "/tile/" + id + "/" + request.getZ() + "/" + channel + "/" + request.getT() +
+        "?x=" + request.getTileX() + "&y=" + request.getTileY() + "&w=" + request.getTileWidth() + "&h=" + request.getTileHeight() +
+        "&format=tif&resolution=" + level);
+  }
 
-		return BufferedImageTools.resize(img, targetWidth, targetHeight, allowSmoothInterpolation());
+  /**
+   * Return the URIs of all the requests needed to read a tile 
+   * (one per channel with the microservice, a single rendered tile otherwise).
+   * @param request
+   * @return tile URIs
+   */
+  List<URI> getTileURIs(TileRequest request) {
+    if (!client.hasMicroservice())
+      return Collections.singletonList(getRenderedTileURI(request));
+    List<URI> uris = new ArrayList<>(nChannels());
+    for (int c=0; c<nChannels(); c++) {
+      uris.add(getChannelTileURI(request, c));
+    }
+    return uris;
   }
 
 	@Override
 	protected BufferedImage readTile(TileRequest request) throws IOException {
+    var prefetcher = getPrefetcher();
+    if (prefetcher != null) {
+      prefetcher.tileRequested(request);
+    }
+
     if (!client.hasMicroservice()) {
       return readRenderedTile(request);
     }
 
-    // calculate the resolution index to pass to OMERO
-    // the requested level matches Bio-Formats indexing,
-    // but OMERO expects resolutions to be specified in reverse order
-    int level = getMetadata().nLevels() - request.getLevel() - 1;
-
-    int x = request.getTileX();
-    int y = request.getTileY();
 		int width = request.getTileWidth();
 		int height = request.getTileHeight();
 
     // BufferedImage creation adapted from qupath.lib.images.servers.bioformats.BioFormatsImageServer
 
-    Object[] pixels = new Object[nChannels()];
-
-    for (int c=0; c<nChannels(); c++) {
-      String urlFile = "/tile/" + id + "/" + request.getZ() + "/" + c + "/" + request.getT() +
-        "?x=" + x + "&y=" + y + "&w=" + width + "&h=" + height +
-        "&format=tif&resolution=" + level;
-
-      URL url = new URL("https", host, urlFile);
-      URLConnection conn = url.openConnection();
-      conn.setRequestProperty("Cookie", "sessionid=" + getWebclient().getSessionId());
-      conn.connect();
+    List<URI> tileURIs = getTileURIs(request);
 
-      BufferedImage img = ImageIO.read(conn.getInputStream());
+    PixelType pixelType = getPixelType();
+    DataBuffer dataBuffer = createDataBuffer(pixelType, width * height, nChannels());
+    if (dataBuffer == null) {
+      // pixel types without a banked buffer are decoded by ImageIO, as a single channel image
+      if (nChannels() == 1)
+        return requestImage(tileURIs.get(0));
+      throw new UnsupportedOperationException("Unsupported pixel type " + pixelType);
+    }
 
-      if (nChannels() == 1) {
-        return img;
+    // each channel is decoded straight into its own bank of the buffer
+    if (nChannels() == 1) {
+      readChannelTile(tileURIs.get(0), dataBuffer, 0, width, height);
+    } else {
+      // request all channels at once, so that a tile costs about one round trip rather than one per channel
+      ExecutorService pool = getChannelPool();
+      List<Future<?>> futures = new ArrayList<>(tileURIs.size());
+      // channels are requested with the priority of the tile (e.g. a prefetched tile)
+      var priority = OmeroRequestLimiter.getCurrentPriority();
+      for (int c=0; c<tileURIs.size(); c++) {
+        int bank = c;
+        futures.add(pool.submit(() -> {
+          try (var scope = OmeroRequestLimiter.withPriority(priority)) {
+            readChannelTile(tileURIs.get(bank), dataBuffer, bank, width, height);
+          }
+          return null;
+        }));
       }
 
-      pixels[c] = AWTImageTools.getPixels(img);
+      try {
+        for (var future : futures) {
+          future.get();
+        }
+      } catch (ExecutionException e) {
+        // each channel has already been retried if possible, so the tile cannot be completed
+        futures.forEach(f -> f.cancel(true));
+        if (e.getCause() instanceof IOException)
+          throw (IOException) e.getCause();
+        throw new IOException("Unable to read tile " + request, e.getCause());
+      } catch (InterruptedException e) {
+        futures.forEach(f -> f.cancel(true));
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while reading tile " + request);
+      }
     }
 
-    DataBuffer dataBuffer;
-    PixelType pixelType = getPixelType();
+    List<ImageChannel> channels = getMetadata().getChannels();
+    ColorModel colorModel = ColorModelFactory.createColorModel(pixelType, channels);
+    SampleModel sampleModel = new BandedSampleModel(dataBuffer.getDataType(), width, height, channels.size());
+    WritableRaster raster = WritableRaster.createWritableRaster(sampleModel, dataBuffer, null);
+    return new BufferedImage(colorModel, raster, false, null);
+  }
+
+  /**
+   * Create a banked buffer that microservice channel tiles can be decoded into.
+   * @param pixelType pixel type of the image
+   * @param nPixels number of pixels per bank
+   * @param nBanks number of banks, one per channel
+   * @return the buffer, or null if the pixel type has no corresponding buffer
+   */
+  private static DataBuffer createDataBuffer(PixelType pixelType, int nPixels, int nBanks) {
     switch (pixelType) {
 			case UINT8:
-        byte[][] bytes = new byte[pixels.length][];
-        for (int c=0; c<bytes.length; c++) {
-          bytes[c] = ((byte[][]) pixels[c])[0];
-        }
-				dataBuffer = new DataBufferByte(bytes, bytes[0].length);
-        break;
+				return new DataBufferByte(nPixels, nBanks);
 			case UINT16:
-				short[][] shortArray = new short[pixels.length][];
-        for (int c=0; c<shortArray.length; c++) {
-          shortArray[c] = ((short[][]) pixels[c])[0];
-				}
-				dataBuffer = new DataBufferUShort(shortArray, shortArray[0].length);
-				break;
+				return new DataBufferUShort(nPixels, nBanks);
 			case INT16:
-				short[][] sshortArray = new short[pixels.length][];
-        for (int c=0; c<sshortArray.length; c++) {
-          sshortArray[c] = ((short[][]) pixels[c])[0];
-				}
-				dataBuffer = new DataBufferShort(sshortArray, sshortArray[0].length);
-				break;
+				return new DataBufferShort(nPixels, nBanks);
 			case INT32:
-				int[][] intArray = new int[pixels.length][];
-        for (int c=0; c<intArray.length; c++) {
-          intArray[c] = ((int[][]) pixels[c])[0];
-				}
-				dataBuffer = new DataBufferInt(intArray, intArray[0].length);
-				break;
+				return new DataBufferInt(nPixels, nBanks);
 			case FLOAT32:
-				float[][] floatArray = new float[pixels.length][];
-        for (int c=0; c<floatArray.length; c++) {
-          floatArray[c] = ((float[][]) pixels[c])[0];
-				}
-				dataBuffer = new DataBufferFloat(floatArray, floatArray[0].length);
-				break;
+				return new DataBufferFloat(nPixels, nBanks);
 			case FLOAT64:
-				double[][] doubleArray = new double[pixels.length][];
-        for (int c=0; c<doubleArray.length; c++) {
-          doubleArray[c] = ((double[][]) pixels[c])[0];
-				}
-				dataBuffer = new DataBufferDouble(doubleArray, doubleArray[0].length);
-				break;
+				return new DataBufferDouble(nPixels, nBanks);
 			default:
-				throw new UnsupportedOperationException("Unsupported pixel type " + pixelType);
+				return null;
     }
+  }
 
-    List<ImageChannel> channels = getMetadata().getChannels();
-    ColorModel colorModel = ColorModelFactory.createColorModel(pixelType, channels);
-    SampleModel sampleModel = sampleModel = new BandedSampleModel(dataBuffer.getDataType(), width, height, channels.size());
-    WritableRaster raster = WritableRaster.createWritableRaster(sampleModel, dataBuffer, null);
-    return new BufferedImage(colorModel, raster, false, null);
+  /**
+   * Request a single channel tile from the microservice and write its pixels into one bank of a buffer.
+   * @param tileURI URI of the tile to request
+   * @param dataBuffer destination buffer
+   * @param bank bank of the buffer to write into
+   * @param width tile width
+   * @param height tile height
+   * @throws IOException if the tile could not be read
+   */
+  private void readChannelTile(URI tileURI, DataBuffer dataBuffer, int bank, int width, int height) throws IOException {
+    TileDecoder<Boolean> decoder = bytes -> decodeChannelTile(bytes, dataBuffer, bank, width, height) ? Boolean.TRUE : null;
+    if (requestTile(tileURI, decoder) == null)
+      throw new IOException("Unable to decode tile " + tileURI);
+  }
+
+  /**
+   * Decode a single channel tile into one bank of a buffer.
+   * The microservice TIFF decoder is used when possible, otherwise ImageIO.
+   * @return true if the tile was decoded
+   */
+  private static boolean decodeChannelTile(byte[] bytes, DataBuffer dataBuffer, int bank, int width, int height) throws IOException {
+    if (OmeroTiffDecoder.decode(bytes, dataBuffer, bank, width, height))
+      return true;
+
+    BufferedImage img = ImageIO.read(new ByteArrayInputStream(bytes));
+    if (img == null || img.getWidth() != width || img.getHeight() != height)
+      return false;
+    Object pixels = ((Object[]) AWTImageTools.getPixels(img))[0];
+    Object bankData;
+    if (dataBuffer instanceof DataBufferByte)
+      bankData = ((DataBufferByte) dataBuffer).getData(bank);
+    else if (dataBuffer instanceof DataBufferUShort)
+      bankData = ((DataBufferUShort) dataBuffer).getData(bank);
+    else if (dataBuffer instanceof DataBufferShort)
+      bankData = ((DataBufferShort) dataBuffer).getData(bank);
+    else if (dataBuffer instanceof DataBufferInt)
+      bankData = ((DataBufferInt) dataBuffer).getData(bank);
+    else if (dataBuffer instanceof DataBufferFloat)
+      bankData = ((DataBufferFloat) dataBuffer).getData(bank);
+    else
+      bankData = ((DataBufferDouble) dataBuffer).getData(bank);
+    if (pixels.getClass() != bankData.getClass())
+      return false;
+    System.arraycopy(pixels, 0, bankData, 0, width * height);
+    return true;
+  }
+
+  /**
+   * Request an image through the HTTP client of this server, so that its session and connections are reused.
+   * @param uri full URI of the image
+   * @return decoded image, or null if it could not be decoded
+   * @throws IOException if the request failed or the server returned an error code
+   */
+  private BufferedImage requestImage(URI uri) throws IOException {
+    return requestTile(uri, bytes -> ImageIO.read(new ByteArrayInputStream(bytes)));
+  }
+
+  /**
+   * Request a tile through the HTTP client of this server, so that its session and connections are reused.
+   * If the disk tile cache is enabled, the encoded tile is read from (or added to) the cache.
+   * @param <T> type of the decoded tile
+   * @param uri full URI of the tile
+   * @param decoder decoder of the bytes received
+   * @return decoded tile, or null if it could not be decoded
+   * @throws IOException if the request failed or the server returned an error code
+   * @see OmeroTileCache
+   */
+  private <T> T requestTile(URI uri, TileDecoder<T> decoder) throws IOException {
+    OmeroTileCache cache = OmeroTileCache.getInstance();
+    String key = getTileKey(uri);
+    if (cache != null) {
+      byte[] cached = cache.get(key);
+      if (cached != null) {
+        T tile = decodeCached(cache, key, cached, decoder);
+        if (tile != null)
+          return tile;
+      }
+    }
+
+    OmeroTilePrefetcher prefetcher = getPrefetcher();
+    byte[] bytes = prefetcher == null ? null : prefetcher.take(key);
+    if (bytes == null)
+      bytes = fetchTile(uri, key);
+    T tile = decoder.decode(bytes);
+    if (cache != null && tile != null)
+      cache.put(key, bytes);
+    return tile;
+  }
+
+  /**
+   * Decode a tile read from the disk cache. If it cannot be decoded (e.g. if the cache was corrupted by a crash), 
+   * it is removed from the cache and null is returned, so that the tile is requested again.
+   */
+  private static <T> T decodeCached(OmeroTileCache cache, String key, byte[] bytes, TileDecoder<T> decoder) {
+    try {
+      T tile = decoder.decode(bytes);
+      if (tile != null)
+        return tile;
+    } catch (IOException | RuntimeException e) {
+      logger.debug("Unable to decode cached tile {}: {}", key, e.getLocalizedMessage());
+    }
+    logger.warn("Corrupted tile in the OMERO tile cache, requesting it again");
+    cache.remove(key);
+    return null;
+  }
+
+  /**
+   * Fetch the bytes of a tile in the background and hand them to the prefetcher, 
+   * unless they are already cached.
+   * @param request
+   * @param prefetcher
+   * @throws IOException
+   */
+  void prefetchTile(TileRequest request, OmeroTilePrefetcher prefetcher) throws IOException {
+    OmeroTileCache cache = OmeroTileCache.getInstance();
+    for (URI uri : getTileURIs(request)) {
+      String key = getTileKey(uri);
+      if ((cache != null && cache.contains(key)) || prefetcher.contains(key))
+        continue;
+      prefetcher.put(key, fetchTile(uri, key));
+    }
+  }
+
+  /**
+   * Return the key identifying a tile across servers and sessions.
+   * @param uri full URI of the tile
+   * @return key
+   */
+  private String getTileKey(URI uri) {
+    return metadataFingerprint + " " + uri;
+  }
+
+  /**
+   * Return the prefetcher of this server, or null if prefetching is disabled.
+   * @return prefetcher
+   * @see OmeroPrefs#prefetchEnabledProperty()
+   */
+  private synchronized OmeroTilePrefetcher getPrefetcher() {
+    if (!OmeroPrefs.prefetchEnabledProperty().get()) {
+      if (prefetcher != null) {
+        prefetcher.close();
+        prefetcher = null;
+      }
+      return null;
+    }
+    if (prefetcher == null)
+      prefetcher = new OmeroTilePrefetcher(this);
+    return prefetcher;
+  }
+
+  /**
+   * Return the proportion of the tiles prefetched by this server that were later requested.
+   * @return hit rate, or NaN if prefetching is disabled or nothing was prefetched yet
+   * @see OmeroPrefs#prefetchEnabledProperty()
+   */
+  public synchronized double getPrefetchHitRate() {
+    return prefetcher == null ? Double.NaN : prefetcher.getHitRate();
+  }
+
+  /**
+   * Fetch the bytes of a tile from the server. If the same tile is already being fetched by another thread, 
+   * wait for that request instead of sending a duplicate one, unless that request is less urgent and still 
+   * waiting to be sent (e.g. a prefetched tile queued behind other requests): it is then replaced by a request 
+   * with the priority of the current thread.
+   * @param uri full URI of the tile
+   * @param key identity of the tile (server, image, resolution, z, t, channel and bounds)
+   * @return bytes received
+   * @throws IOException if the request failed or the server returned an error code
+   */
+  private byte[] fetchTile(URI uri, String key) throws IOException {
+    var priority = OmeroRequestLimiter.getCurrentPriority();
+    while (true) {
+      var tile = new InFlightTile(priority);
+      var inFlight = inFlightTiles.compute(key, (k, current) -> {
+        if (current == null)
+          return tile;
+        if (priority.compareTo(current.priority) < 0 && current.supersede()) {
+          tile.superseded = current;
+          return tile;
+        }
+        return current;
+      });
+
+      if (inFlight == tile) {
+        try {
+          byte[] bytes = tileFetcher.fetch(uri, tile::markSent);
+          tile.complete(bytes);
+          return bytes;
+        } catch (CancellationException e) {
+          // the request was not sent because a more urgent one replaced it, whose result completes this one
+          if (!tile.isSuperseded()) {
+            tile.completeExceptionally(e);
+            throw e;
+          }
+        } catch (IOException | RuntimeException e) {
+          tile.completeExceptionally(e);
+          throw e;
+        } finally {
+          inFlightTiles.remove(key, tile);
+        }
+      } else if (inFlight.priority != OmeroRequestLimiter.Priority.PREFETCH) {
+        sharedTileRequests.increment();
+      }
+
+      try {
+        return inFlight.bytes.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for tile " + uri);
+      } catch (ExecutionException e) {
+        // if the thread fetching the tile was interrupted, this thread should try on its own
+        if (e.getCause() instanceof InterruptedIOException)
+          continue;
+        if (e.getCause() instanceof IOException)
+          throw new IOException(e.getCause().getLocalizedMessage(), e.getCause());
+        throw new IOException("Unable to read tile " + uri, e.getCause());
+      }
+    }
+  }
+
+  /**
+   * A tile request in flight, shared by all the threads requesting the same tile.
+   */
+  private static class InFlightTile {
+
+    private final CompletableFuture<byte[]> bytes = new CompletableFuture<>();
+    private final OmeroRequestLimiter.Priority priority;
+
+    private boolean sent = false;
+    private boolean isSuperseded = false;
+
+    /**
+     * Less urgent request replaced by this one, which is completed with the same result.
+     */
+    private InFlightTile superseded;
+
+    private InFlightTile(OmeroRequestLimiter.Priority priority) {
+      this.priority = priority;
+    }
+
+    /**
+     * Record that the request is about to be sent.
+     * @return false if the request should not be sent, because a more urgent request replaced it
+     */
+    private synchronized boolean markSent() {
+      if (isSuperseded)
+        return false;
+      sent = true;
+      return true;
+    }
+
+    /**
+     * Mark this request as replaced by a more urgent one, unless it was already sent.
+     * @return true if the request was replaced
+     */
+    private synchronized boolean supersede() {
+      if (sent)
+        return false;
+      isSuperseded = true;
+      return true;
+    }
+
+    private synchronized boolean isSuperseded() {
+      return isSuperseded;
+    }
+
+    private void complete(byte[] bytes) {
+      this.bytes.complete(bytes);
+      if (superseded != null)
+        superseded.complete(bytes);
+    }
+
+    private void completeExceptionally(Throwable e) {
+      bytes.completeExceptionally(e);
+      if (superseded != null)
+        superseded.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Return the number of tile requests that were not sent to the server because an identical request 
+   * was already in flight (e.g. when the viewer and a command request the same region at the same time).
+   * @return number of shared tile requests
+   */
+  public long getSharedTileRequestCount() {
+    return sharedTileRequests.sum();
+  }
+
+  /**
+   * Return the number of tile requests sent a second time because they were slower than usual.
+   * @return number of hedged tile requests
+   * @see OmeroPrefs#tileHedgingProperty()
+   */
+  public long getHedgedTileRequestCount() {
+    return tileFetcher.getHedgedCount();
+  }
+
+  /**
+   * Return the number of tile requests retried after a failure.
+   * @return number of retried tile requests
+   */
+  public long getRetriedTileRequestCount() {
+    return tileFetcher.getRetriedCount();
+  }
+
+  /**
+   * Decoder for the bytes of a tile, returning null if they cannot be decoded.
+   */
+  @FunctionalInterface
+  private static interface TileDecoder<T> {
+    T decode(byte[] bytes) throws IOException;
+  }
+
+  /**
+   * Compute a fingerprint of the parts of the OMERO metadata that define the pixels of the image.
+   * @param map metadata, as returned by {@link OmeroRequests#requestMetadata(String, String, int, int)}
+   * @return fingerprint
+   */
+  private static String computeFingerprint(JsonObject map) {
+    var sb = new StringBuilder();
+    for (String name : new String[] {"id", "size", "meta", "tiles", "levels", "zoomLevelScaling", "tile_size"}) {
+      if (map.has(name))
+        sb.append(name).append('=').append(map.get(name)).append(';');
+    }
+    return UUID.nameUUIDFromBytes(sb.toString().getBytes(StandardCharsets.UTF_8)).toString();
+  }
+
+  /**
+   * Read a batch of tiles, returning them as an ordered stream.
+   * <p>
+   * Tiles are read in parallel (using and filling the tile cache, as with {@link #readRegion(RegionRequest)}), 
+   * but lazily: only a bounded number of tiles are in progress or waiting to be consumed at any time, 
+   * and the following requests are only submitted as the stream is consumed. 
+   * This is intended for scripts processing a whole image tile by tile, which would otherwise 
+   * wait for each tile in turn, without holding more than a window of decoded tiles in memory.
+   * <p>
+   * Errors reading a tile are thrown as {@link UncheckedIOException}s by the stream. 
+   * The stream should be closed if it is not consumed entirely, so that the pending requests are abandoned.
+   * 
+   * @param requests tile requests, e.g. from {@code getTileRequestManager().getAllTileRequests()}
+   * @return stream of tiles, in the same order as the requests
+   */
+  public Stream<BufferedImage> streamTiles(Collection<TileRequest> requests) {
+    return streamBatch(requests, this::getTile);
+  }
+
+  /**
+   * Read a batch of regions, returning them as an ordered stream.
+   * <p>
+   * This is the equivalent of {@link #streamTiles(Collection)} for arbitrary regions, which are read 
+   * with {@link #readRegion(RegionRequest)}.
+   * 
+   * @param requests region requests
+   * @return stream of regions, in the same order as the requests
+   */
+  public Stream<BufferedImage> streamRegions(Collection<RegionRequest> requests) {
+    return streamBatch(requests, this::readRegion);
+  }
+
+  private <T> Stream<BufferedImage> streamBatch(Collection<T> requests, BatchReader<T> reader) {
+    var iterator = new BatchIterator<>(requests.iterator(), reader);
+    var spliterator = Spliterators.spliterator(iterator, requests.size(), Spliterator.ORDERED);
+    return StreamSupport.stream(spliterator, false).onClose(iterator::close);
+  }
+
+  /**
+   * Reader for a single request of a batch.
+   */
+  @FunctionalInterface
+  private static interface BatchReader<T> {
+    BufferedImage read(T request) throws IOException;
+  }
+
+  /**
+   * Iterator returning the results of a batch of requests in order, submitting the requests 
+   * to the batch pool so that no more than {@link #MAX_BATCH_REQUESTS} results are pending at once.
+   */
+  private class BatchIterator<T> implements Iterator<BufferedImage> {
+
+    private final Iterator<T> requests;
+    private final BatchReader<T> reader;
+    private final Deque<CompletableFuture<BufferedImage>> pending = new ArrayDeque<>();
+    private boolean closed = false;
+
+    private BatchIterator(Iterator<T> requests, BatchReader<T> reader) {
+      this.requests = requests;
+      this.reader = reader;
+    }
+
+    @Override
+    public boolean hasNext() {
+      submitPending();
+      return !pending.isEmpty();
+    }
+
+    @Override
+    public BufferedImage next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      var future = pending.removeFirst();
+      try {
+        var img = future.get();
+        submitPending();
+        return img;
+      } catch (InterruptedException e) {
+        close();
+        Thread.currentThread().interrupt();
+        throw new UncheckedIOException(new InterruptedIOException("Interrupted while reading batch from " + getPath()));
+      } catch (ExecutionException e) {
+        close();
+        if (e.getCause() instanceof IOException)
+          throw new UncheckedIOException((IOException)e.getCause());
+        throw new RuntimeException(e.getCause());
+      }
+    }
+
+    private void submitPending() {
+      while (!closed && pending.size() < MAX_BATCH_REQUESTS && requests.hasNext()) {
+        T request = requests.next();
+        pending.addLast(submitBatchTask(() -> reader.read(request)));
+      }
+    }
+
+    private void close() {
+      // Requests cancelled while waiting are skipped by the batch pool
+      closed = true;
+      pending.forEach(f -> f.cancel(true));
+      pending.clear();
+    }
+
+  }
+
+  private CompletableFuture<BufferedImage> submitBatchTask(Callable<BufferedImage> task) {
+    var future = new CompletableFuture<BufferedImage>();
+    getBatchPool().execute(() -> {
+      // skip requests cancelled while waiting
+      if (future.isDone())
+        return;
+      try {
+        future.complete(task.call());
+      } catch (Throwable e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Return the pool used to read batches of tiles or regions, creating it if needed.
+   * @return batch pool
+   */
+  private synchronized ExecutorService getBatchPool() {
+    if (batchPool == null) {
+      batchPool = Executors.newFixedThreadPool(MAX_BATCH_REQUESTS, ThreadTools.createThreadFactory("omero-batch-" + id + "-", true));
+    }
+    return batchPool;
+  }
+
+  /**
+   * Return the pool used to request the channels of a tile concurrently, creating it if needed.
+   * The pool is bounded by the number of channels and by {@link #MAX_CHANNEL_REQUESTS}.
+   * @return channel pool
+   */
+  private synchronized ExecutorService getChannelPool() {
+    if (channelPool == null) {
+      int nThreads = Math.max(1, Math.min(nChannels(), MAX_CHANNEL_REQUESTS));
+      channelPool = Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("omero-channel-tiles-" + id + "-", true));
+    }
+    return channelPool;
+  }
+
+  @Override
+  public void close() throws Exception {
+    super.close();
+    synchronized (this) {
+      if (channelPool != null) {
+        channelPool.shutdownNow();
+        channelPool = null;
+      }
+      if (prefetcher != null) {
+        prefetcher.close();
+        prefetcher = null;
+      }
+      if (batchPool != null) {
+        batchPool.shutdownNow();
+        batchPool = null;
+      }
+    }
   }
 	
 	
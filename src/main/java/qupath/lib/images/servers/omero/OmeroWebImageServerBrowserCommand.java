@@ -23,6 +23,8 @@ package qupath.lib.images.servers.omero;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -32,20 +34,23 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.function.Predicate;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -55,6 +60,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.gson.JsonObject;
 
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.IntegerProperty;
@@ -103,12 +109,12 @@ import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
+import javafx.util.Duration;
 import javafx.util.StringConverter;
 import qupath.lib.common.ThreadTools;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.commands.ProjectCommands;
 import qupath.lib.gui.dialogs.Dialogs;
-import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.gui.tools.GuiTools;
 import qupath.lib.gui.tools.IconFactory;
 import qupath.lib.gui.tools.PaneTools;
@@ -167,20 +173,34 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 	private Label loadingChildrenLabel;
 	private Label loadingThumbnailLabel;
 	private Label loadingOrphanedLabel;
+	private Label loadingAnnotationsLabel;
 	private Button importBtn;
 	
 	// Other
 	private StringConverter<Owner> ownerStringConverter;
 	private Map<OmeroObjectType, BufferedImage> omeroIcons;
 	private ExecutorService executorTable;		// Get TreeView item children in separate thread
-	private ExecutorService executorThumbnails;	// Get image thumbnails in separate thread
+	private ExecutorService executorFilter;		// Filter the TreeView items in separate thread
+	private PauseTransition filterDelay;		// Wait for the user to stop typing before filtering
+	private final AtomicInteger filterGeneration = new AtomicInteger();
+	private Future<?> filterTask;
+	
+	// Time without typing before the tree is filtered
+	private static final long FILTER_DELAY_MILLIS = 250;
 	
 	// Browser data 'storage'
 	private List<OmeroObject> serverChildrenList;
 	private ObservableList<OmeroObject> orphanedImageList;
-	private Map<OmeroObject, List<OmeroObject>> projectMap;
-	private Map<OmeroObject, List<OmeroObject>> datasetMap;
-	private Map<Integer, BufferedImage> thumbnailBank;
+	// Children of projects/datasets, per group and owner (as only those of the selected group/owner are requested)
+	private Map<String, Map<OmeroObject, List<OmeroObject>>> projectMap;
+	private Map<String, Map<OmeroObject, List<OmeroObject>>> datasetMap;
+	private OmeroThumbnailCache thumbnails;		// Shared by all the browsers of the client
+	private OmeroAnnotationCache annotations;	// Shared by all the browsers of the client
+	private CompletableFuture<?> annotationRequest;	// Annotations of the selected object
+	private CompletableFuture<?> thumbnailRequest;	// Thumbnail of the selected image
+	private int selectionGeneration = 0;			// Incremented with each selection, so that obsolete results are never shown
+	private final AtomicInteger treeGeneration = new AtomicInteger();	// Incremented when the tree is refreshed
+	private final Set<OmeroObjectTreeItem> loadingItems = ConcurrentHashMap.newKeySet();	// Items whose children are loading
 	private IntegerProperty currentOrphanedCount;
 	
 	private final String[] orphanedAttributes = new String[] {"Name"};
@@ -238,11 +258,12 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
     	orphanedImageList = FXCollections.observableArrayList();
     	orphanedFolder = new OrphanedFolder(orphanedImageList);
     	currentOrphanedCount = orphanedFolder.getCurrentCountProperty();
-		thumbnailBank = new ConcurrentHashMap<>();
+		thumbnails = client.getThumbnailCache();
+		annotations = client.getAnnotationCache();
 		projectMap = new ConcurrentHashMap<>();
 		datasetMap = new ConcurrentHashMap<>();
-		executorTable = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("children-loader", true));
-		executorThumbnails = Executors.newFixedThreadPool(PathPrefs.numCommandThreadsProperty().get(), ThreadTools.createThreadFactory("thumbnail-loader", true));
+		executorTable = Executors.newSingleThreadExecutor(OmeroRequestLimiter.createThreadFactory("children-loader", OmeroRequestLimiter.Priority.TREE));
+		executorFilter = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("tree-filter", true));
 		
 		tree = new TreeView<>();
 		owners = new HashSet<>();
@@ -274,9 +295,15 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		loadingOrphanedLabel = new Label();
 		loadingOrphanedLabel.setGraphic(progressOrphaned);
 
+		var progressAnnotations = new ProgressIndicator();
+		progressAnnotations.setPrefSize(15, 15);
+		loadingAnnotationsLabel = new Label("Loading annotations", progressAnnotations);
+		loadingAnnotationsLabel.setOpacity(0.0);
+
 		PaneTools.addGridRow(loadingInfoPane, 0, 0, "OMERO objects are loaded in the background", loadingChildrenLabel);
 		PaneTools.addGridRow(loadingInfoPane, 1, 0, "OMERO objects are loaded in the background", loadingOrphanedLabel);
 		PaneTools.addGridRow(loadingInfoPane, 2, 0, "Thumbnails are loaded in the background", loadingThumbnailLabel);
+		PaneTools.addGridRow(loadingInfoPane, 3, 0, "Annotations are loaded in the background", loadingAnnotationsLabel);
 		
 		// Info about the server to display at the top
 		var hostLabel = new Label(serverURI.getHost());
@@ -308,6 +335,11 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		// Get OMERO icons (project and dataset icons)
 		omeroIcons = getOmeroIcons();
 		
+		// Update the local index of the server's hierarchy in the background (if enabled)
+		var index = OmeroHierarchyIndex.getInstance(client);
+		if (index != null)
+			index.crawlAsync();
+		
 		// Create converter from Owner object to proper String
 		ownerStringConverter = new StringConverter<>() {
 		    @Override
@@ -328,8 +360,7 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		OmeroTools.populateOrphanedImageList(serverURI, orphanedFolder);
 		currentOrphanedCount.bind(Bindings.createIntegerBinding(() -> Math.toIntExact(filterList(orphanedImageList, 
 				comboGroup.getSelectionModel().getSelectedItem(), 
-				comboOwner.getSelectionModel().getSelectedItem(),
-				null).size()), 
+				comboOwner.getSelectionModel().getSelectedItem()).size()), 
 					// Binding triggered when the following change: loadingProperty/selected Group/selected Owner
 					orphanedFolder.getLoadingProperty(), comboGroup.getSelectionModel().selectedItemProperty(), comboOwner.getSelectionModel().selectedItemProperty())
 				);
@@ -337,7 +368,9 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		// Bind the top label to the amount of orphaned images
 		loadingOrphanedLabel.textProperty().bind(Bindings.when(orphanedFolder.getLoadingProperty()).then(Bindings.concat("Loading image list (")
 				.concat(Bindings.size(orphanedFolder.getImageList()))
-				.concat("/"+ orphanedFolder.getTotalChildCount() + ")")).otherwise(Bindings.concat("")));
+				.concat("/").concat(Bindings.createStringBinding(() -> orphanedFolder.getTotalChildCount() < 0 ? "?" : String.valueOf(orphanedFolder.getTotalChildCount()), 
+						Bindings.size(orphanedFolder.getImageList())))
+				.concat(")")).otherwise(Bindings.concat("")));
 		loadingOrphanedLabel.opacityProperty().bind(Bindings.createDoubleBinding(() -> orphanedFolder.getLoadingProperty().get() ? 1.0 : 0, orphanedFolder.getLoadingProperty()));
 		
 		OmeroObjectTreeItem root = new OmeroObjectTreeItem(new OmeroObjects.Server(serverURI));
@@ -348,7 +381,7 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		tree.setOnMouseClicked(e -> {
 	        if (e.getClickCount() == 2) {
 	        	var selectedItem = tree.getSelectionModel().getSelectedItem();
-	        	if (selectedItem != null && selectedItem.getValue().getType() == OmeroObjectType.IMAGE && isSupported(selectedItem.getValue())) {
+	        	if (selectedItem != null && !(selectedItem instanceof LoadMoreTreeItem) && selectedItem.getValue().getType() == OmeroObjectType.IMAGE && isSupported(selectedItem.getValue())) {
 	        		if (qupath.getProject() == null) {
                 try {
 	        			  qupath.openImage(qupath.getViewer(), createObjectURI(selectedItem.getValue()), true, true);
@@ -371,15 +404,33 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 	    MenuItem collapseItem = new MenuItem("Collapse all items");
 
 	    // 'More info..' will open new AdvancedObjectInfo pane
-	    moreInfoItem.setOnAction(ev -> new AdvancedObjectInfo(tree.getSelectionModel().getSelectedItem().getValue()));
-	    moreInfoItem.disableProperty().bind(tree.getSelectionModel().selectedItemProperty().isNull()
-				.or(Bindings.size(tree.getSelectionModel().getSelectedItems()).isNotEqualTo(1)
-				.or(Bindings.createBooleanBinding(() -> tree.getSelectionModel().getSelectedItem() != null && tree.getSelectionModel().getSelectedItem().getValue().getType() == OmeroObjectType.ORPHANED_FOLDER, 
-						tree.getSelectionModel().selectedItemProperty()))));
+	    moreInfoItem.setOnAction(ev -> {
+	    	var selected = getSelectedTreeItems();
+	    	if (selected.size() != 1)
+	    		return;
+	    	var obj = selected.get(0).getValue();
+	    	loadingAnnotationsLabel.setOpacity(1.0);
+	    	annotations.getAsync(obj).thenAccept(map -> Platform.runLater(() -> {
+	    		loadingAnnotationsLabel.setOpacity(0);
+	    		new AdvancedObjectInfo(obj, map);
+	    	})).exceptionally(e -> {
+	    		// Failures of the request are wrapped by thenAccept
+	    		logger.error("Could not fetch the annotations of {}: {}", obj, e.getCause().getLocalizedMessage());
+	    		Platform.runLater(() -> {
+	    			loadingAnnotationsLabel.setOpacity(0);
+	    			Dialogs.showErrorMessage("More info", "Could not fetch the annotations of " + obj.getName());
+	    		});
+	    		return null;
+	    	});
+	    });
+	    moreInfoItem.disableProperty().bind(Bindings.createBooleanBinding(() -> {
+	    	var selected = getSelectedTreeItems();
+	    	return selected.size() != 1 || selected.get(0).getValue().getType() == OmeroObjectType.ORPHANED_FOLDER;
+	    }, tree.getSelectionModel().getSelectedItems()));
 	    
 	    // Opens the OMERO object in a browser
 	    openBrowserItem.setOnAction(ev -> {
-	    	var selected = tree.getSelectionModel().getSelectedItems();
+	    	var selected = getSelectedTreeItems();
 			if (selected != null && !selected.isEmpty() && selected.size() == 1) {
 				if (selected.get(0).getValue() instanceof OmeroObjects.OrphanedFolder) {
 					Dialogs.showPlainMessage("Requesting orphaned folder", "Link to orphaned folder does not exist!");
@@ -388,12 +439,12 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 				QuPathGUI.openInBrowser(createObjectURI(selected.get(0).getValue()));
 			}
 	    });
-	    openBrowserItem.disableProperty().bind(tree.getSelectionModel().selectedItemProperty().isNull()
-	    		.or(Bindings.size(tree.getSelectionModel().getSelectedItems()).isNotEqualTo(1)));
+	    openBrowserItem.disableProperty().bind(Bindings.createBooleanBinding(() -> getSelectedTreeItems().size() != 1, 
+	    		tree.getSelectionModel().getSelectedItems()));
 	    
 	    // Clipboard action will *not* fetch all the images in the selected object(s)
 	    clipboardItem.setOnAction(ev -> {
-			var selected = tree.getSelectionModel().getSelectedItems();
+			var selected = getSelectedTreeItems();
 			if (selected != null && !selected.isEmpty()) {
 				ClipboardContent content = new ClipboardContent();
 				List<String> uris = new ArrayList<>();
@@ -482,7 +533,7 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		valueCol.prefWidthProperty().bind(description.widthProperty().multiply(0.75));
 
 		attributeCol.setCellValueFactory(cellData -> {
-			var selectedItems = tree.getSelectionModel().getSelectedItems();
+			var selectedItems = getSelectedTreeItems();
 			if (cellData != null && selectedItems.size() == 1 && selectedItems.get(0).getValue() != null) {
 				var type = selectedItems.get(0).getValue().getType();
 				if (type == OmeroObjectType.ORPHANED_FOLDER)
@@ -498,7 +549,7 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 			
 		});
 		valueCol.setCellValueFactory(cellData -> {
-			var selectedItems = tree.getSelectionModel().getSelectedItems();
+			var selectedItems = getSelectedTreeItems();
 			if (cellData != null && selectedItems.size() == 1 && selectedItems.get(0).getValue() != null) 
 				return getObjectInfo(cellData.getValue(), selectedItems.get(0).getValue());
 			return new ReadOnlyObjectWrapper<>();
@@ -518,32 +569,43 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		});
 
 		tree.getSelectionModel().selectedItemProperty().addListener((v, o, n) -> {
+			// Selecting a 'Load more' item loads the next page instead
+			if (n instanceof LoadMoreTreeItem) {
+				((LoadMoreTreeItem)n).load();
+				Platform.runLater(() -> tree.getSelectionModel().clearSelection(tree.getRow(n)));
+				return;
+			}
+			// Requests for the previous selection are obsolete
+			cancelSelectionRequests();
+			requestAnnotations(n);
 			clearCanvas();
 			if (n != null) {
 				if (description.getPlaceholder() == null)
 					description.setPlaceholder(new Label("Multiple elements selected"));
-				var selectedItems = tree.getSelectionModel().getSelectedItems();
+				var selectedItems = getSelectedTreeItems();
 
 				updateDescription();
 				if (selectedItems.size() == 1) {
-					var selectedObjectLocal = n.getValue();
+					var selectedObjectLocal = selectedItems.get(0).getValue();
 					if (selectedItems.get(0) != null && selectedItems.get(0).getValue().getType() == OmeroObjectType.IMAGE) {
 						// Check if thumbnail was previously cached
-						if (thumbnailBank.containsKey(selectedObjectLocal.getId()))
-							paintBufferedImageOnCanvas(thumbnailBank.get(selectedObjectLocal.getId()), canvas, imgPrefSize);
+						var img = thumbnails.get(selectedObjectLocal.getId(), imgPrefSize);
+						if (img != null)
+							paintBufferedImageOnCanvas(img, canvas, imgPrefSize);
 						else {
-							// Get thumbnail from JSON API in separate thread (and show progress indicator)
+							// Get thumbnail in the background (and show progress indicator)
 							loadingThumbnailLabel.setOpacity(1.0);
-							executorThumbnails.submit(() -> {
-								// Note: it is possible that another task for the same id exists, but it 
-								// shouldn't cause inconsistent results anyway, since '1 id = 1 thumbnail'
-								BufferedImage img = OmeroTools.getThumbnail(serverURI, selectedObjectLocal.getId(), imgPrefSize);
-								if (img != null) {
-									thumbnailBank.put(selectedObjectLocal.getId(), img);
-									paintBufferedImageOnCanvas(thumbnailBank.get(selectedObjectLocal.getId()), canvas, imgPrefSize);
-								}
-								Platform.runLater(() -> loadingThumbnailLabel.setOpacity(0));		
-							});							
+							int generation = selectionGeneration;
+							thumbnailRequest = thumbnails.getAsync(selectedObjectLocal.getId(), imgPrefSize).thenAccept(loadedImg -> {
+								Platform.runLater(() -> {
+									// Only paint it if the image is still selected
+									if (generation != selectionGeneration)
+										return;
+									if (loadedImg != null)
+										paintBufferedImageOnCanvas(loadedImg, canvas, imgPrefSize);
+									loadingThumbnailLabel.setOpacity(0);
+								});
+							});
 						}
 					} else {
 						// To avoid empty space at the top
@@ -558,13 +620,13 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 			}
 		});
 		
-		filter.setPromptText("Filter project names");
+		filter.setPromptText(index == null ? "Filter project names" : "Filter project, dataset or image names");
+		filterDelay = new PauseTransition(Duration.millis(FILTER_DELAY_MILLIS));
+		filterDelay.setOnFinished(e -> applyFilter());
 		filter.textProperty().addListener((v, o, n) -> {
-			refreshTree();
-			if (n.isEmpty())
-				collapseTreeView(tree.getRoot());
-			else
-				expandTreeView(tree.getRoot());
+			// Cancel any filtering in progress, and wait for the user to stop typing
+			cancelFilter();
+			filterDelay.playFromStart();
 		});
 		
 		Button advancedSearchBtn = new Button("Advanced...");
@@ -576,26 +638,24 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		
 		// Text on button will change according to OMERO object selected
 		importBtn.textProperty().bind(Bindings.createStringBinding(() -> {
-			var selected = tree.getSelectionModel().getSelectedItems();
+			var selected = getSelectedTreeItems();
 			if (selected.isEmpty())
 				return "Import OMERO image to QuPath";
 			else if (selected.size() > 1)
 				return "Import selected to QuPath";
 			else
 				return "Import OMERO " + selected.get(0).getValue().getType().toString().toLowerCase() + " to QuPath";
-		}, tree.getSelectionModel().selectedItemProperty()));
+		}, tree.getSelectionModel().getSelectedItems()));
 		
 		// Disable import button if no item is selected or selected item is not compatible
-		importBtn.disableProperty().bind(
-				Bindings.size(tree.getSelectionModel().getSelectedItems()).lessThan(1).or(
-						Bindings.createBooleanBinding(() -> !tree.getSelectionModel().getSelectedItems().stream().allMatch(obj -> isSupported(obj.getValue())),
-								tree.getSelectionModel().selectedItemProperty())
-						)
-				);
+		importBtn.disableProperty().bind(Bindings.createBooleanBinding(() -> {
+			var selected = getSelectedTreeItems();
+			return selected.isEmpty() || !selected.stream().allMatch(obj -> isSupported(obj.getValue()));
+		}, tree.getSelectionModel().getSelectedItems()));
 		
 		// Import button will fetch all the images in the selected object(s) and check their validity
 		importBtn.setOnMouseClicked(e -> {
-			var selected = tree.getSelectionModel().getSelectedItems();
+			var selected = getSelectedTreeItems();
 			var validUris = selected.parallelStream()
 					.flatMap(item -> {
 						OmeroObject uri = item.getValue();
@@ -708,48 +768,134 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 	 * to the server or by retrieving the stored value from the maps. If a request was 
 	 * necessary, the value will be stored in the map to avoid future unnecessary computation.
 	 * <p>
-	 * No filter is applied to the object's children.
+	 * No filter is applied to the object's children. If the children cannot be read, an empty list is returned.
 	 * 
 	 * @param omeroObj
 	 * @return list of omeroObj's children
 	 */
 	private List<OmeroObject> getChildren(OmeroObject omeroObj) {
+		try {
+			return readChildren(omeroObj);
+		} catch (InterruptedIOException e) {
+			logger.debug("Loading of the children of {} cancelled", omeroObj);
+			return new ArrayList<>();
+		} catch (IOException e) {
+			logger.error("Could not fetch server information: {}", e.getLocalizedMessage());
+			return new ArrayList<>();
+		}
+	}
+	
+	/**
+	 * Return a list of all children of the specified omeroObj, like {@link #getChildren(OmeroObject)}, 
+	 * but throwing an exception if they cannot be read.
+	 * 
+	 * @param omeroObj
+	 * @return list of omeroObj's children
+	 * @throws IOException if the children could not be read
+	 */
+	private List<OmeroObject> readChildren(OmeroObject omeroObj) throws IOException {
+		Group group = comboGroup.getSelectionModel().getSelectedItem();
+		Owner owner = comboOwner.getSelectionModel().getSelectedItem();
+		var projects = projectMap.computeIfAbsent(getCacheKey(group, owner), k -> new ConcurrentHashMap<>());
+		var datasets = datasetMap.computeIfAbsent(getCacheKey(group, owner), k -> new ConcurrentHashMap<>());
+		
 		// Check if we already have the children for this OmeroObject (avoid sending request)
 		if (omeroObj.getType() == OmeroObjectType.SERVER && serverChildrenList.size() > 0)
 			return serverChildrenList;
 		else if (omeroObj.getType() == OmeroObjectType.ORPHANED_FOLDER && orphanedImageList.size() > 0)
 			return orphanedImageList;
-		else if (omeroObj.getType() == OmeroObjectType.PROJECT && projectMap.containsKey(omeroObj))
-			return projectMap.get(omeroObj);
-		else if (omeroObj.getType() == OmeroObjectType.DATASET && datasetMap.containsKey(omeroObj))
-			return datasetMap.get(omeroObj);
+		else if (omeroObj.getType() == OmeroObjectType.PROJECT && projects.containsKey(omeroObj))
+			return projects.get(omeroObj);
+		else if (omeroObj.getType() == OmeroObjectType.DATASET && datasets.containsKey(omeroObj))
+			return datasets.get(omeroObj);
 		else if (omeroObj.getType() == OmeroObjectType.IMAGE)
 			return new ArrayList<>();
 		
+		// If orphaned folder, return all orphaned images
+		if (omeroObj.getType() == OmeroObjectType.ORPHANED_FOLDER)
+			return orphanedImageList;
+		
+		// Read children (from the local index if enabled) and populate maps.
+		// The server's children are read for all groups/owners, as they are used to list the groups and owners
 		List<OmeroObject> children;
-		try {
-			// If orphaned folder, return all orphaned images
-			if (omeroObj.getType() == OmeroObjectType.ORPHANED_FOLDER)
-				return orphanedImageList;
-			
-			// Read children and populate maps
+		var index = OmeroHierarchyIndex.getInstance(client);
+		if (index != null)
+			children = index.readOmeroObjects(omeroObj);
+		else if (omeroObj.getType() == OmeroObjectType.SERVER)
 			children = OmeroTools.readOmeroObjects(serverURI, omeroObj);
-			
-			// If omeroObj is a Server, add all the orphaned datasets (orphaned images are in 'Orphaned images' folder)
-			if (omeroObj.getType() == OmeroObjectType.SERVER) {
-				children.addAll(OmeroTools.readOrphanedDatasets(serverURI, (Server)omeroObj));
-				serverChildrenList = children;
-			} else if (omeroObj .getType() == OmeroObjectType.PROJECT)
-				projectMap.put(omeroObj, children);
-			else if (omeroObj.getType() == OmeroObjectType.DATASET)
-				datasetMap.put(omeroObj, children);
-		} catch (IOException e) {
-			logger.error("Could not fetch server information: {}", e.getLocalizedMessage());
-			return new ArrayList<>();
-		}
+		else
+			children = OmeroTools.readOmeroObjects(serverURI, omeroObj, group, owner);
+		
+		// If omeroObj is a Server, add all the orphaned datasets (orphaned images are in 'Orphaned images' folder)
+		if (omeroObj.getType() == OmeroObjectType.SERVER) {
+			children.addAll(index == null ? OmeroTools.readOrphanedDatasets(serverURI, (Server)omeroObj) : index.readOrphanedDatasets((Server)omeroObj));
+			serverChildrenList = children;
+		} else if (omeroObj .getType() == OmeroObjectType.PROJECT)
+			projects.put(omeroObj, children);
+		else if (omeroObj.getType() == OmeroObjectType.DATASET)
+			datasets.put(omeroObj, children);
 		return children;
 	}
 
+	/**
+	 * Return at most {@code limit} children of the specified object, starting from the child at index {@code offset}.
+	 * The children of datasets are requested one page at a time (unless already loaded, or indexed), the 
+	 * children of other objects are all loaded by {@link #readChildren(OmeroObject)}.
+	 * @param omeroObj
+	 * @param offset
+	 * @param limit
+	 * @return list of children
+	 * @throws IOException if the children could not be read
+	 */
+	private List<OmeroObject> getChildren(OmeroObject omeroObj, int offset, int limit) throws IOException {
+		Group group = comboGroup.getSelectionModel().getSelectedItem();
+		Owner owner = comboOwner.getSelectionModel().getSelectedItem();
+		var datasets = datasetMap.get(getCacheKey(group, owner));
+		boolean cached = datasets != null && datasets.containsKey(omeroObj);
+		if (omeroObj.getType() == OmeroObjectType.DATASET && !cached && OmeroHierarchyIndex.getInstance(client) == null)
+			return OmeroTools.readOmeroObjects(serverURI, omeroObj, group, owner, offset, limit);
+		var children = readChildren(omeroObj);
+		return new ArrayList<>(children.subList(Math.min(offset, children.size()), Math.min(offset + limit, children.size())));
+	}
+
+	/**
+	 * Request the annotations of the object of the specified item in the background, so that they are ready 
+	 * if more info is requested. The request for the previously selected object must have been cancelled 
+	 * with {@link #cancelSelectionRequests()}.
+	 * @param item
+	 */
+	private void requestAnnotations(TreeItem<OmeroObject> item) {
+		if (item == null || item instanceof LoadMoreTreeItem || getSelectedTreeItems().size() != 1)
+			return;
+		var type = item.getValue().getType();
+		if (type == OmeroObjectType.SERVER || type == OmeroObjectType.ORPHANED_FOLDER || type == OmeroObjectType.UNKNOWN)
+			return;
+		annotationRequest = annotations.getAsync(item.getValue());
+	}
+	
+	/**
+	 * Cancel the requests for the previously selected object (thumbnail and annotations), so that the 
+	 * requests for the new selection are sent next. Their results are ignored if they are received anyway.
+	 */
+	private void cancelSelectionRequests() {
+		selectionGeneration++;
+		if (annotationRequest != null)
+			annotationRequest.cancel(true);
+		annotationRequest = null;
+		if (thumbnailRequest != null)
+			thumbnailRequest.cancel(true);
+		thumbnailRequest = null;
+		loadingThumbnailLabel.setOpacity(0);
+	}
+	
+	/**
+	 * Return the key of the children cached for the specified group and owner.
+	 */
+	private static String getCacheKey(Group group, Owner owner) {
+		// 'All groups' and 'All members' have id -1
+		return (group == null ? -1 : group.getId()) + "/" + (owner == null ? -1 : owner.getId());
+	}
+
 	private Map<OmeroObjectType, BufferedImage> getOmeroIcons() {
     	Map<OmeroObjectType, BufferedImage> map = new HashMap<>();
     	var scheme = serverURI.getScheme();
@@ -788,7 +934,7 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
     	List<String> URIs = new ArrayList<>();
     	for (OmeroObject obj: list) {
 			if (obj.getType() == OmeroObjectType.ORPHANED_FOLDER) {
-				var filteredList = filterList(((OrphanedFolder)obj).getImageList(), comboGroup.getSelectionModel().getSelectedItem(), comboOwner.getSelectionModel().getSelectedItem(), null);
+				var filteredList = filterList(((OrphanedFolder)obj).getImageList(), comboGroup.getSelectionModel().getSelectedItem(), comboOwner.getSelectionModel().getSelectedItem());
 				URIs.addAll(filteredList.stream().map(sub -> createObjectURI(sub)).collect(Collectors.toList()));
 			} else {
 				try {
@@ -816,7 +962,7 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 				);
 	}
 	
-	private static List<OmeroObject> filterList(List<OmeroObject> list, Group group, Owner owner, String filter) {
+	private static List<OmeroObject> filterList(List<OmeroObject> list, Group group, Owner owner) {
 		return list.stream()
 			.filter(e -> {
 				if (group == null) return true;
@@ -826,30 +972,65 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 				if (owner == null) return true;
 				return owner == Owner.getAllMembersOwner() ? true : e.getOwner().equals(owner);
 			})
-			.filter(e -> matchesSearch(e, filter))
 			.collect(Collectors.toList());
 	}
+
+	/**
+	 * Filter the children of the root of the tree with the current filter text, in a separate thread.
+	 * The root item and the items of its children are kept, so that their children do not need to be 
+	 * loaded again (the filter text only applies to the server's children, which are shown with all their children).
+	 */
+	private void applyFilter() {
+		cancelFilter();
+		var root = (OmeroObjectTreeItem)tree.getRoot();
+		// If the root is still loading, it will be filtered once loaded
+		if (root == null || !root.isLoaded() || executorFilter.isShutdown())
+			return;
+		
+		String text = filter.getText();
+		Group group = comboGroup.getSelectionModel().getSelectedItem();
+		Owner owner = comboOwner.getSelectionModel().getSelectedItem();
+		int generation = filterGeneration.get();
+		filterTask = executorFilter.submit(() -> {
+			var items = root.createChildItems(text, group, owner);
+			Platform.runLater(() -> {
+				if (generation != filterGeneration.get() || tree.getRoot() != root)
+					return;
+				root.setChildItems(items);
+				if (text.isEmpty())
+					collapseTreeView(root);
+				else
+					expandTreeView(root);
+			});
+		});
+	}
 	
-	private static boolean matchesSearch(OmeroObject obj, String filter) {
-		if (filter == null || filter.isEmpty())
-			return true;
-		
-		if (obj.getType() == OmeroObjectType.SERVER)
-			return true;
-		
-		if (obj.getParent().getType() == OmeroObjectType.SERVER)
-			return obj.getName().toLowerCase().contains(filter.toLowerCase());
-		
-		return matchesSearch(obj.getParent(), filter);
+	private void cancelFilter() {
+		filterGeneration.incrementAndGet();
+		if (filterTask != null) {
+			filterTask.cancel(true);
+			filterTask = null;
+		}
 	}
 
 	private void refreshTree() {
+		cancelChildrenRequests();
 		tree.setRoot(null);
 		tree.refresh();
 		tree.setRoot(new OmeroObjectTreeItem(new OmeroObjects.Server(serverURI)));
 		tree.refresh();
 	}
 
+	/**
+	 * Cancel the loading of the children of all the items of the tree, as the tree is about to be replaced.
+	 */
+	private void cancelChildrenRequests() {
+		treeGeneration.incrementAndGet();
+		for (var item: new ArrayList<>(loadingItems))
+			item.cancelChildren();
+		loadingChildrenLabel.setOpacity(0);
+	}
+
 	private static ObservableValue<String> getObjectInfo(Integer index, OmeroObject omeroObject) {
 		if (omeroObject == null)
 			return new ReadOnlyObjectWrapper<>();
@@ -894,7 +1075,7 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 
 	private void updateDescription() {
 		ObservableList<Integer> indexList = FXCollections.observableArrayList();
-		var selectedItems = tree.getSelectionModel().getSelectedItems();
+		var selectedItems = getSelectedTreeItems();
 		if (selectedItems.size() == 1 && selectedItems.get(0) != null) {
 			if (selectedItems.get(0).getValue().getType().equals(OmeroObjectType.ORPHANED_FOLDER)) {
 				Integer[] orphanedIndices = new Integer[orphanedAttributes.length];
@@ -962,6 +1143,17 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		return wi;
 	}
 
+	/**
+	 * Return the items selected in the tree, ignoring any 'Load more' item 
+	 * (whose value is the object of its parent, so it must not be treated as a selected object).
+	 * @return selected items
+	 */
+	private List<TreeItem<OmeroObject>> getSelectedTreeItems() {
+		return tree.getSelectionModel().getSelectedItems().stream()
+				.filter(item -> item != null && !(item instanceof LoadMoreTreeItem))
+				.collect(Collectors.toList());
+	}
+
 	/**
 	 * Return whether the image type is supported by QuPath.
 	 * @param omeroObj
@@ -1023,6 +1215,7 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		
 		private Canvas iconCanvas = new Canvas();
 		private Canvas tooltipCanvas = new Canvas();
+		private CompletableFuture<?> tooltipRequest;
 		
 		@Override
         public void updateItem(OmeroObject item, boolean empty) {
@@ -1037,6 +1230,16 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
         	setOpacity(1.0);
         	disableProperty().unbind();
         	setDisable(false);
+        	
+        	// Only the visible items have a cell, so reaching the end of the loaded images loads the next page
+        	if (getTreeItem() instanceof LoadMoreTreeItem) {
+        		var loadMoreItem = (LoadMoreTreeItem)getTreeItem();
+        		setText(loadMoreItem.getText());
+        		setGraphic(null);
+        		setTooltip(null);
+        		loadMoreItem.load();
+        		return;
+        	}
         	paintBufferedImageOnCanvas(null, tooltipCanvas, 0);
         	
         	String name;
@@ -1096,19 +1299,23 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
             	
             	tooltip.setOnShowing(e -> {
             		// Image tooltip shows the thumbnail (could show icon for other items, but icon is very low quality)
-            		if (thumbnailBank.containsKey(item.getId()))
-            			paintBufferedImageOnCanvas(thumbnailBank.get(item.getId()), tooltipCanvas, 100);
+            		var img = thumbnails.get(item.getId(), imgPrefSize);
+            		if (img != null)
+            			paintBufferedImageOnCanvas(img, tooltipCanvas, 100);
             		else {
-            			// Get thumbnail from JSON API in separate thread
-            			executorThumbnails.submit(() -> {
-            				var loadedImg = OmeroTools.getThumbnail(serverURI, item.getId(), imgPrefSize);
-            				if (loadedImg != null) {
-            					thumbnailBank.put(item.getId(), loadedImg);
+            			// Get thumbnail in the background
+            			tooltipRequest = thumbnails.getAsync(item.getId(), imgPrefSize).thenAccept(loadedImg -> {
+            				if (loadedImg != null)
             					Platform.runLater(() -> paintBufferedImageOnCanvas(loadedImg, tooltipCanvas, 100));
-            				}
-            			});							
+            			});
             		}
             	});
+            	// The thumbnail is not needed anymore if the tooltip was hidden before receiving it
+            	tooltip.setOnHidden(e -> {
+            		if (tooltipRequest != null)
+            			tooltipRequest.cancel(true);
+            		tooltipRequest = null;
+            	});
             	setText(name);
             	setTooltip(tooltip);
             	tooltip.setGraphic(gp);
@@ -1140,8 +1347,28 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		
 		private boolean computed = false;
 		
+		// All the children of the object (before filtering), and an index of their names for the server
+		private volatile List<OmeroObject> loadedChildren;
+		private volatile OmeroNameIndex<OmeroObject> nameIndex;
+		
+		// Items of the children, reused when the children are filtered again (by identity, as ids can be shared across types)
+		private final Map<OmeroObject, OmeroObjectTreeItem> childItems = Collections.synchronizedMap(new IdentityHashMap<>());
+		
+		// Number of children of a dataset loaded so far (updated on the FX thread), and the item loading the next page
+		private volatile int nLoaded = 0;
+		private LoadMoreTreeItem loadMoreItem;
+		
+		// Task loading the children (or the next page), and its generation (incremented when it is cancelled)
+		private Future<?> childrenTask;
+		private volatile int generation = 0;
+		
 		private OmeroObjectTreeItem(OmeroObject obj) {
 			super(obj);
+			// Children that are still loading when the item is collapsed are not needed anymore
+			expandedProperty().addListener((v, o, n) -> {
+				if (!n)
+					cancelChildren();
+			});
 		}
 
 		/**
@@ -1168,11 +1395,34 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 					return FXCollections.observableArrayList();
 				}
 				
-				executorTable.submit(() -> {
+				// Images are loaded one page at a time
+				if (getValue().getType() == OmeroObjectType.DATASET) {
+					computed = true;
+					requestPage();
+					return super.getChildren();
+				}
+				
+				// The children are already loading
+				if (childrenTask != null && !childrenTask.isDone())
+					return super.getChildren();
+				
+				int treeGen = treeGeneration.get();
+				int itemGen = generation;
+				loadingItems.add(this);
+				childrenTask = executorTable.submit(() -> {
 					var omeroObj = this.getValue();
 					
 					// Get children and populate maps if necessary
-					List<OmeroObject> children = OmeroWebImageServerBrowserCommand.this.getChildren(omeroObj);
+					List<OmeroObject> children;
+					try {
+						if (!isCurrent(treeGen, itemGen))
+							return null;
+						children = OmeroWebImageServerBrowserCommand.this.getChildren(omeroObj);
+						if (!isCurrent(treeGen, itemGen))
+							return null;
+					} finally {
+						loadingItems.remove(this);
+					}
 					
 					Group currentGroup = comboGroup.getSelectionModel().getSelectedItem();
 					// If server, update list of groups/owners (and comboBoxes)
@@ -1225,18 +1475,21 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 						
 					if (omeroObj.getType() == OmeroObjectType.ORPHANED_FOLDER)
 						children = orphanedImageList;
-				
-					var items = filterList(children, comboGroup.getSelectionModel().getSelectedItem(), comboOwner.getSelectionModel().getSelectedItem(), filterTemp).stream()
-							.map(e -> new OmeroObjectTreeItem(e))
-							.collect(Collectors.toList());
 					
-					// Add an 'Orphaned Images' item to the server's children
-					if (omeroObj.getType() == OmeroObjectType.SERVER && (filter == null || filterTemp.isEmpty()))
-						items.add(new OmeroObjectTreeItem(orphanedFolder));
+					if (omeroObj.getType() == OmeroObjectType.SERVER)
+						nameIndex = new OmeroNameIndex<>(children, OmeroObject::getName);
+					loadedChildren = children;
+					var items = createChildItems(filterTemp, comboGroup.getSelectionModel().getSelectedItem(), comboOwner.getSelectionModel().getSelectedItem());
 
 					Platform.runLater(() -> {
+						if (!isCurrent(treeGen, itemGen))
+							return;
 						super.getChildren().setAll(items);
-						loadingChildrenLabel.setOpacity(0);
+						if (loadingItems.isEmpty())
+							loadingChildrenLabel.setOpacity(0);
+						// The filter might have changed while the server's children were loading
+						if (omeroObj.getType() == OmeroObjectType.SERVER && !filter.getText().equals(filterTemp))
+							applyFilter();
 					});
 
 					computed = true;
@@ -1247,6 +1500,149 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		}
 		
 		
+		/**
+		 * Load the next page of children, replacing the 'Load more' item (if any) with them.
+		 * The size of the pages is defined by {@link OmeroPrefs#treePageSizeProperty()}.
+		 */
+		private void requestPage() {
+			if (executorTable.isShutdown())
+				return;
+			loadingChildrenLabel.setOpacity(1.0);
+			
+			int treeGen = treeGeneration.get();
+			int itemGen = generation;
+			loadingItems.add(this);
+			childrenTask = executorTable.submit(() -> {
+				var omeroObj = this.getValue();
+				int pageSize = Math.max(1, OmeroPrefs.treePageSizeProperty().get());
+				List<OmeroObject> page;
+				try {
+					if (!isCurrent(treeGen, itemGen))
+						return;
+					page = OmeroWebImageServerBrowserCommand.this.getChildren(omeroObj, nLoaded, pageSize);
+					if (!isCurrent(treeGen, itemGen))
+						return;
+				} catch (InterruptedIOException e) {
+					logger.debug("Loading of the children of {} cancelled", omeroObj);
+					return;
+				} catch (IOException e) {
+					// Keep the 'Load more' item, so that the page is requested again the next time it is shown
+					logger.error("Could not fetch the children of {}: {}", omeroObj, e.getLocalizedMessage());
+					Platform.runLater(() -> {
+						if (!isCurrent(treeGen, itemGen))
+							return;
+						if (loadMoreItem == null) {
+							loadMoreItem = new LoadMoreTreeItem(this);
+							super.getChildren().add(loadMoreItem);
+						}
+						loadMoreItem.requested = false;
+						if (loadingItems.isEmpty())
+							loadingChildrenLabel.setOpacity(0);
+					});
+					return;
+				} finally {
+					loadingItems.remove(this);
+				}
+				var items = filterList(page, comboGroup.getSelectionModel().getSelectedItem(), comboOwner.getSelectionModel().getSelectedItem()).stream()
+						.map(e -> new OmeroObjectTreeItem(e))
+						.collect(Collectors.toList());
+				
+				// The page is only counted once added, so that a page cancelled in the meantime is requested again
+				Platform.runLater(() -> {
+					if (!isCurrent(treeGen, itemGen))
+						return;
+					nLoaded += page.size();
+					boolean hasMore = !page.isEmpty() && nLoaded < omeroObj.getNChildren();
+					var children = super.getChildren();
+					if (loadMoreItem != null)
+						children.remove(loadMoreItem);
+					children.addAll(items);
+					loadMoreItem = hasMore ? new LoadMoreTreeItem(this) : null;
+					if (loadMoreItem != null)
+						children.add(loadMoreItem);
+					if (loadingItems.isEmpty())
+						loadingChildrenLabel.setOpacity(0);
+				});
+			});
+		}
+		
+		/**
+		 * Cancel the loading of the children of this item (if still loading), aborting its requests. 
+		 * The children are requested again the next time they are needed.
+		 */
+		private void cancelChildren() {
+			if (childrenTask == null || childrenTask.isDone())
+				return;
+			generation++;
+			childrenTask.cancel(true);
+			childrenTask = null;
+			loadingItems.remove(this);
+			if (loadMoreItem != null)
+				loadMoreItem.requested = false;
+			else if (nLoaded == 0)
+				computed = false;
+			if (loadingItems.isEmpty())
+				loadingChildrenLabel.setOpacity(0);
+		}
+		
+		/**
+		 * Return whether the results of a task submitted with the specified generations should still be used.
+		 */
+		private boolean isCurrent(int treeGen, int itemGen) {
+			return !Thread.currentThread().isInterrupted() && treeGen == treeGeneration.get() && itemGen == generation;
+		}
+		
+		/**
+		 * Return whether the children of this item have been loaded.
+		 * @return true if loaded
+		 */
+		private boolean isLoaded() {
+			return loadedChildren != null;
+		}
+		
+		/**
+		 * Return the loaded children whose name contains the specified text, ignoring case. If the hierarchy 
+		 * index is enabled, the children with an indexed dataset or image whose name contains the text match too.
+		 */
+		private List<OmeroObject> search(String filterText) {
+			var matches = nameIndex.search(filterText);
+			var index = OmeroHierarchyIndex.getInstance(client);
+			if (index == null || filterText == null || filterText.isEmpty())
+				return matches;
+			Set<OmeroObject> found = new HashSet<>(matches);
+			found.addAll(index.findByDescendantName(loadedChildren, filterText));
+			return loadedChildren.stream()
+					.filter(found::contains)
+					.collect(Collectors.toList());
+		}
+		
+		/**
+		 * Return the items of the loaded children that match the specified group, owner and filter text, 
+		 * reusing the items created previously. This method can be called from any thread.
+		 */
+		private List<OmeroObjectTreeItem> createChildItems(String filterText, Group group, Owner owner) {
+			boolean isServer = getValue().getType() == OmeroObjectType.SERVER;
+			List<OmeroObject> objects;
+			if (isServer)
+				// The descendants of the server's children are shown if their ancestor matches
+				objects = filterList(search(filterText), group, owner);
+			else
+				objects = filterList(loadedChildren, group, owner);
+			
+			var items = objects.stream()
+					.map(e -> childItems.computeIfAbsent(e, OmeroObjectTreeItem::new))
+					.collect(Collectors.toList());
+			
+			// Add an 'Orphaned Images' item to the server's children
+			if (isServer && (filterText == null || filterText.isEmpty()))
+				items.add(childItems.computeIfAbsent(orphanedFolder, OmeroObjectTreeItem::new));
+			return items;
+		}
+		
+		private void setChildItems(List<OmeroObjectTreeItem> items) {
+			super.getChildren().setAll(items);
+		}
+		
 		@Override
 		public boolean isLeaf() {
 			var obj = this.getValue();
@@ -1270,6 +1666,38 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 	}
 	
 	
+	/**
+	 * TreeItem shown after the loaded children of a dataset whose other children have not been loaded yet. 
+	 * The next page is loaded when the item is shown or selected.
+	 */
+	private class LoadMoreTreeItem extends TreeItem<OmeroObject> {
+		
+		private final OmeroObjectTreeItem parentItem;
+		private boolean requested = false;
+		
+		private LoadMoreTreeItem(OmeroObjectTreeItem parentItem) {
+			super(parentItem.getValue());
+			this.parentItem = parentItem;
+		}
+		
+		private void load() {
+			if (requested)
+				return;
+			requested = true;
+			parentItem.requestPage();
+		}
+		
+		private String getText() {
+			return String.format("Load more... (%d/%d)", parentItem.nLoaded, getValue().getNChildren());
+		}
+		
+		@Override
+		public boolean isLeaf() {
+			return true;
+		}
+	}
+	
+	
 	private class AdvancedObjectInfo {
 		
 		private final OmeroObject obj;
@@ -1281,15 +1709,15 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		private final OmeroAnnotations ratings;
 //		private final OmeroAnnotations others;
 
-		private AdvancedObjectInfo(OmeroObject obj) {			
+		private AdvancedObjectInfo(OmeroObject obj, Map<OmeroAnnotationType, OmeroAnnotations> annotations) {			
 			this.obj = obj;
-			this.tags = OmeroTools.readOmeroAnnotations(serverURI, obj, OmeroAnnotationType.TAG);
-			this.keyValuePairs = OmeroTools.readOmeroAnnotations(serverURI, obj, OmeroAnnotationType.MAP);
-//			this.tables = OmeroTools.getOmeroAnnotations(serverURI, obj, OmeroAnnotationType.TABLE);
-			this.attachments = OmeroTools.readOmeroAnnotations(serverURI, obj, OmeroAnnotationType.ATTACHMENT);
-			this.comments = OmeroTools.readOmeroAnnotations(serverURI, obj, OmeroAnnotationType.COMMENT);
-			this.ratings = OmeroTools.readOmeroAnnotations(serverURI, obj, OmeroAnnotationType.RATING);
-//			this.others = OmeroTools.getOmeroAnnotations(serverURI, obj, OmeroAnnotationType.CUSTOM);
+			this.tags = annotations.get(OmeroAnnotationType.TAG);
+			this.keyValuePairs = annotations.get(OmeroAnnotationType.MAP);
+//			this.tables = annotations.get(OmeroAnnotationType.TABLE);
+			this.attachments = annotations.get(OmeroAnnotationType.ATTACHMENT);
+			this.comments = annotations.get(OmeroAnnotationType.COMMENT);
+			this.ratings = annotations.get(OmeroAnnotationType.RATING);
+//			this.others = annotations.get(OmeroAnnotationType.CUSTOM);
 			
 			showOmeroObjectInfo();
 		}
@@ -1305,12 +1733,12 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 			
 			int row = 0;
 			PaneTools.addGridRow(gp, row++, 0, null, new TitledPane(obj.getType().toString() + " Details", createObjectDetailsPane(obj)));
-			PaneTools.addGridRow(gp, row++, 0, null, createAnnotationsPane("Tags (" + tags.getSize() + ")", tags));
-			PaneTools.addGridRow(gp, row++, 0, null, createAnnotationsPane("Key-Value Pairs (" + keyValuePairs.getSize() + ")", keyValuePairs));
+			PaneTools.addGridRow(gp, row++, 0, null, createAnnotationsPane(getTitle("Tags", tags), tags));
+			PaneTools.addGridRow(gp, row++, 0, null, createAnnotationsPane(getTitle("Key-Value Pairs", keyValuePairs), keyValuePairs));
 //			PaneTools.addGridRow(gp, row++, 0, "Tables", new TitledPane("Tables", createAnnotationsPane(tables)));
-			PaneTools.addGridRow(gp, row++, 0, null, createAnnotationsPane("Attachments (" + attachments.getSize() + ")", attachments));
-			PaneTools.addGridRow(gp, row++, 0, null, createAnnotationsPane("Comments (" + comments.getSize() + ")", comments));
-			PaneTools.addGridRow(gp, row++, 0, "Ratings", createAnnotationsPane("Ratings (" + ratings.getSize() + ")", ratings));
+			PaneTools.addGridRow(gp, row++, 0, null, createAnnotationsPane(getTitle("Attachments", attachments), attachments));
+			PaneTools.addGridRow(gp, row++, 0, null, createAnnotationsPane(getTitle("Comments", comments), comments));
+			PaneTools.addGridRow(gp, row++, 0, "Ratings", createAnnotationsPane(getTitle("Ratings", ratings), ratings));
 //			PaneTools.addGridRow(gp, row++, 0, "Others", new TitledPane("Others (" + others.getSize() + ")", createAnnotationsPane(others)));
 			
 			// Top: object name
@@ -1343,6 +1771,13 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 			dialog.showAndWait();
 		}
 
+		/*
+		 * Return the title of the pane of a category of annotations, which could not be fetched if null
+		 */
+		private String getTitle(String name, OmeroAnnotations omeroAnnotations) {
+			return name + " (" + (omeroAnnotations == null ? "unavailable" : omeroAnnotations.getSize()) + ")";
+		}
+
 		/*
 		 * Create a ScrollPane in which each row is an annotation value
 		 */
@@ -1520,18 +1955,17 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		private ProgressIndicator progressIndicator2;
 		
 		// Search query in separate thread
-		private final ExecutorService executorQuery = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("query-processing", true));
+		private final ExecutorService executorQuery = Executors.newSingleThreadExecutor(OmeroRequestLimiter.createThreadFactory("query-processing", OmeroRequestLimiter.Priority.TREE));
 		
-		// Load thumbnail in separate thread
-		private ExecutorService executorThumbnail;
+		// Number of results added to the table at once
+		private static final int RESULTS_PAGE_SIZE = 100;
 		
-		private final Pattern patternRow = Pattern.compile("<tr id=\"(.+?)-(.+?)\".+?</tr>", Pattern.DOTALL | Pattern.MULTILINE);
-	    private final Pattern patternDesc = Pattern.compile("<td class=\"desc\"><a>(.+?)</a></td>");
-	    private final Pattern patternDate = Pattern.compile("<td class=\"date\">(.+?)</td>");
-	    private final Pattern patternGroup = Pattern.compile("<td class=\"group\">(.+?)</td>");
-	    private final Pattern patternLink = Pattern.compile("<td><a href=\"(.+?)\"");
-
-	    private final Pattern[] patterns = new Pattern[] {patternDesc, patternDate, patternDate, patternGroup, patternLink};
+		// Incremented with each search, so that the results of a cancelled search are never shown
+		private final AtomicInteger searchGeneration = new AtomicInteger();
+		private Future<?> searchTask;
+		
+		// Thumbnails of the results shown, cancelled when the results are cleared
+		private final List<CompletableFuture<?>> thumbnailRequests = new ArrayList<>();
 		
 		private AdvancedSearch() {
 			
@@ -1600,30 +2034,29 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 				}
 				ownedByCombo.getSelectionModel().selectFirst();
 				groupCombo.getSelectionModel().selectFirst();
-				resultsTableView.getItems().clear();
+				cancelSearch();
+				clearResults();
 			});
 			searchBtn = new Button("Search");
 			progressIndicator2 = new ProgressIndicator();
 			progressIndicator2.setPrefSize(30, 30);
 			progressIndicator2.setMinSize(30, 30);
 			searchBtn.setOnAction(e -> {
-				searchBtn.setGraphic(progressIndicator2);
+				// Cancel the previous search, if still running
+				cancelSearch();
+				clearResults();
+				
 				// Show progress indicator (loading)
-				Platform.runLater(() -> {
-					// TODO: next line doesn't work
-					searchBtn.setGraphic(progressIndicator2);
-					searchBtn.setText(null);
-				});
+				searchBtn.setGraphic(progressIndicator2);
+				searchBtn.setText(null);
 				
 				// Process the query in different thread
-				executorQuery.submit(() -> searchQuery());
-				
-				// Reset 'Search' button
-				Platform.runLater(() -> {
-					searchBtn.setGraphic(null);
-					searchBtn.setText("Search");
-				});
+				int generation = searchGeneration.get();
+				var query = createQuery();
+				searchTask = executorQuery.submit(() -> searchQuery(generation, query));
 			});
+			// A search is obsolete as soon as its query is changed
+			searchTf.textProperty().addListener((v, o, n) -> cancelSearch());
 			resetBtn.setMaxWidth(Double.MAX_VALUE);
 			searchBtn.setMaxWidth(Double.MAX_VALUE);
 			GridPane.setHgrow(resetBtn, Priority.ALWAYS);
@@ -1692,19 +2125,8 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		            	img = omeroIcons.get(OmeroObjectType.PROJECT);
 		            else if (item.type.toLowerCase().equals("dataset"))
 		            	img = omeroIcons.get(OmeroObjectType.DATASET);
-		            else {
-		            	// To avoid ConcurrentModificationExceptions
-						var it = thumbnailBank.keySet().iterator();
-						synchronized (thumbnailBank) {
-							while (it.hasNext()) {
-								var id = it.next();
-								if (id == item.id) {
-									img = thumbnailBank.get(id);
-									continue;
-								}
-							}							
-						}
-					}
+		            else
+		            	img = thumbnails.get(item.id, imgPrefSize);
 
 		            if (img != null) {
 		            	var wi = paintBufferedImageOnCanvas(img, canvas, prefScale);
@@ -1799,15 +2221,16 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 			dialog.setOnCloseRequest(e -> {
 				// Make sure we're not still sending requests
 				executorQuery.shutdownNow();
-				executorThumbnail.shutdownNow();
 			});
 			dialog.showAndWait();
 		}
 		
 		
-		private void searchQuery() {
-			List<SearchResult> results = new ArrayList<>();
-			
+		/**
+		 * Return the parameters of the search as currently defined in the dialog, as expected by 
+		 * {@link OmeroRequests#openAdvancedSearch(String, String, int, String, String[], String[], Group, Owner)}.
+		 */
+		private SearchQuery createQuery() {
 			List<String> fields = new ArrayList<>();
 			if (restrictedByName.isSelected()) fields.add("field=name");
 			if (restrictedByDesc.isSelected()) fields.add("field=description");
@@ -1820,110 +2243,140 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 			if (searchForPlates.isSelected()) datatypes.add(OmeroObjectType.PLATE);
 			if (searchForScreens.isSelected()) datatypes.add(OmeroObjectType.SCREEN);
 			
-			Owner owner = ownedByCombo.getSelectionModel().getSelectedItem();
-			Group group = groupCombo.getSelectionModel().getSelectedItem();
-
-			try {
-				var response = OmeroRequests.requestAdvancedSearch(
-						serverURI.getScheme(), 
-						serverURI.getHost(), 
-						serverURI.getPort(),
-						searchTf.getText(), 
-						fields.toArray(new String[0]), 
-						datatypes.stream().map(e -> "datatype=" + e.toURLString()).toArray(String[]::new), 
-						group, 
-						owner
-				);
-				
-				if (!response.contains("No results found"))
-					results = parseHTML(response);
+			return new SearchQuery(
+					searchTf.getText(),
+					fields.toArray(new String[0]),
+					datatypes.stream().map(e -> "datatype=" + e.toURLString()).toArray(String[]::new),
+					groupCombo.getSelectionModel().getSelectedItem(),
+					ownedByCombo.getSelectionModel().getSelectedItem()
+			);
+		}
+		
+		/**
+		 * Send the query and add the results to the table as they are parsed, one page at a time, 
+		 * until the search is cancelled (i.e. {@code searchGeneration} changes).
+		 */
+		private void searchQuery(int generation, SearchQuery query) {
+			try (var reader = OmeroRequests.openAdvancedSearch(
+					serverURI.getScheme(), 
+					serverURI.getHost(), 
+					serverURI.getPort(),
+					query.query,
+					query.fields,
+					query.datatypes,
+					query.group,
+					query.owner)) {
 				
-				populateThumbnailBank(results);
-				updateTableView(results);
+				List<SearchResult> page = new ArrayList<>();
+				while (reader.hasNext()) {
+					String[] values = reader.next();
+					if (isCancelled(generation))
+						return;
+					try {
+						page.add(new SearchResult(values));
+					} catch (Exception e) {
+						logger.error("Could not parse search result. {}", e.getLocalizedMessage());
+					}
+					if (page.size() >= RESULTS_PAGE_SIZE) {
+						addResults(generation, page);
+						page = new ArrayList<>();
+					}
+				}
+				addResults(generation, page);
 				
-			} catch (IOException e) {
+			} catch (IOException | UncheckedIOException e) {
+				if (isCancelled(generation))
+					return;
 				logger.error(e.getLocalizedMessage());
 				Dialogs.showErrorMessage("Search query", "An error occurred. Check log for more information.");
+			} finally {
+				// Reset 'Search' button
+				Platform.runLater(() -> {
+					if (generation == searchGeneration.get())
+						resetSearchButton();
+				});
+			}
+		}
+		
+		private void addResults(int generation, List<SearchResult> results) {
+			if (results.isEmpty())
 				return;
+			Platform.runLater(() -> {
+				if (generation != searchGeneration.get())
+					return;
+				resultsTableView.getItems().addAll(results);
+				requestThumbnails(results);
+			});
+		}
+		
+		private boolean isCancelled(int generation) {
+			return Thread.currentThread().isInterrupted() || generation != searchGeneration.get();
+		}
+		
+		/**
+		 * Cancel the current search (if any), keeping the results already shown.
+		 */
+		private void cancelSearch() {
+			searchGeneration.incrementAndGet();
+			if (searchTask != null) {
+				// Interrupting the task also interrupts the reading of the response
+				searchTask.cancel(true);
+				searchTask = null;
 			}
+			resetSearchButton();
 		}
 		
-		private List<SearchResult> parseHTML(String response) {
-			List<SearchResult> searchResults = new ArrayList<>();
-	        Matcher rowMatcher = patternRow.matcher(response);
-	        while (rowMatcher.find()) {
-	            String[] values = new String[7];
-	            String row = rowMatcher.group(0);
-	            values[0] = rowMatcher.group(1);
-	            values[1] = rowMatcher.group(2);
-	            String value = "";
-	            
-	            int nValue = 2;
-	            for (var pattern: patterns) {
-	                Matcher matcher = pattern.matcher(row);
-	                if (matcher.find()) {
-	                    value = matcher.group(1);
-	                    row = row.substring(matcher.end());
-	                }
-	                values[nValue++] = value;
-	            }
-	            
-	            try {
-					SearchResult obj = new SearchResult(values);
-					searchResults.add(obj);
-				} catch (Exception e) {
-					logger.error("Could not parse search result. {}", e.getLocalizedMessage());
-				}
-	        }
-	        
-	        return searchResults;
+		/**
+		 * Remove all the results, cancelling the requests for their thumbnails.
+		 */
+		private void clearResults() {
+			for (var request: thumbnailRequests)
+				request.cancel(true);
+			thumbnailRequests.clear();
+			resultsTableView.getItems().clear();
 		}
 		
-		private void updateTableView(List<SearchResult> results) {
-			resultsTableView.getItems().setAll(results);
-			Platform.runLater(() -> resultsTableView.refresh());
+		private void resetSearchButton() {
+			searchBtn.setGraphic(null);
+			searchBtn.setText("Search");
 		}
 		
 		/**
-		 * Send a request to batch load thumbnails that are not already 
-		 * stored in {@code thumbnailBank}.
+		 * Request the thumbnails of the image results that are not already cached. 
+		 * Thumbnails requested together are fetched in batches by the thumbnail cache.
 		 * @param results 
 		 */
-		private void populateThumbnailBank(List<SearchResult> results) {
-			
-			List<SearchResult> thumbnailsToQuery = results.parallelStream()
-					.filter(e -> {
-						// To avoid ConcurrentModificationExceptions
-						synchronized (thumbnailBank) {
-							for (var id: thumbnailBank.keySet()) {
-								if (id == e.id)
-									return false;
-							}
-						}
-						return true;
-					})
-					.collect(Collectors.toList());
-			
-			if (thumbnailsToQuery.isEmpty())
-				return;
-			
-			if (executorThumbnail != null)
-				executorThumbnail.shutdownNow();
-			executorThumbnail = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("batch-thumbnail-request", true));
-			 
-			for (var searchResult: thumbnailsToQuery) {
-				executorThumbnail.submit(() -> {
-					BufferedImage thumbnail = OmeroTools.getThumbnail(serverURI, searchResult.id, imgPrefSize);
-					if (thumbnail != null) {
-						thumbnailBank.put(searchResult.id, thumbnail);	// 'Put' shouldn't need synchronized key
+		private void requestThumbnails(List<SearchResult> results) {
+			for (var searchResult: results) {
+				if (!searchResult.type.toLowerCase().equals("image") || thumbnails.getBytes(searchResult.id, imgPrefSize) != null)
+					continue;
+				var request = thumbnails.getBytesAsync(searchResult.id, imgPrefSize);
+				thumbnailRequests.add(request);
+				request.thenAccept(bytes -> {
+					if (bytes != null)
 						Platform.runLater(() -> resultsTableView.refresh());
-					}
 				});
 			}
 		}
 	}
 
 
+	private static class SearchQuery {
+		private final String query;
+		private final String[] fields;
+		private final String[] datatypes;
+		private final Group group;
+		private final Owner owner;
+		
+		private SearchQuery(String query, String[] fields, String[] datatypes, Group group, Owner owner) {
+			this.query = query;
+			this.fields = fields;
+			this.datatypes = datatypes;
+			this.group = group;
+			this.owner = owner;
+		}
+	}
+	
 	private class SearchResult {
 		private String type;
 		private int id;
@@ -1958,6 +2411,6 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 	 */
 	void shutdownPools() {
 		executorTable.shutdownNow();
-		executorThumbnails.shutdownNow();
+		executorFilter.shutdownNow();
 	}
 }
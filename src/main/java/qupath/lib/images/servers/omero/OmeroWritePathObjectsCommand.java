@@ -21,15 +21,17 @@
 
 package qupath.lib.images.servers.omero;
 
-import java.io.IOException;
 import java.net.URI;
 import java.util.Collection;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
+import org.controlsfx.dialog.ProgressDialog;
 
+import javafx.concurrent.Task;
 import javafx.scene.control.Label;
 import javafx.scene.layout.GridPane;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.dialogs.Dialogs;
 import qupath.lib.gui.tools.PaneTools;
@@ -114,15 +116,34 @@ public class OmeroWritePathObjectsCommand implements Runnable {
 		if (!confirm)
 			return;
 		
-		// Write path object(s)
-		try {
-			OmeroTools.writePathObjects(objs, omeroServer);
+		// Write path object(s) in the background, as large sets of objects are sent in many batches
+		int nObjects = objs.size();
+		var objsToWrite = objs;
+		var task = new Task<Void>() {
+			@Override
+			protected Void call() throws Exception {
+				updateMessage(String.format("Sending %d %s", nObjects, objectString));
+				updateProgress(0, nObjects);
+				OmeroTools.writePathObjects(objsToWrite, omeroServer, n -> updateProgress(n, nObjects));
+				return null;
+			}
+		};
+		task.setOnSucceeded(e -> {
 			Dialogs.showInfoNotification(StringUtils.capitalize(objectString) + " written successfully", String.format("%d %s %s successfully written to OMERO server", 
-					objs.size(), 
+					nObjects, 
 					objectString, 
-					(objs.size() == 1 ? "was" : "were")));
-		} catch (IOException ex) {
-			Dialogs.showErrorNotification("Could not send " + objectString, ex.getLocalizedMessage());
-		}
+					(nObjects == 1 ? "was" : "were")));
+		});
+		task.setOnFailed(e -> {
+			var ex = task.getException();
+			Dialogs.showErrorNotification("Could not send " + objectString, ex == null ? null : ex.getLocalizedMessage());
+		});
+		
+		var progressDialog = new ProgressDialog(task);
+		progressDialog.initOwner(qupath.getStage());
+		progressDialog.setTitle(title);
+		progressDialog.setHeaderText(uri.toString());
+		ThreadTools.createThreadFactory("omero-objects-writer", true).newThread(task).start();
+		progressDialog.show();
 	}
 }
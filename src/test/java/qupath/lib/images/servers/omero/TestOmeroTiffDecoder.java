@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.NullSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import loci.formats.gui.AWTImageTools;
+
+/**
+ * Check that {@link OmeroTiffDecoder} decodes the same pixels as ImageIO.
+ */
+public class TestOmeroTiffDecoder {
+
+	// Not a multiple of the rows per strip, so that the last strip is partial
+	private static final int WIDTH = 256;
+	private static final int HEIGHT = 203;
+
+	@ParameterizedTest
+	@NullSource
+	@ValueSource(strings = {"Deflate", "ZLib"})
+	public void test_uint8(String compression) throws IOException {
+		byte[] tiff = writeTiff(DataBuffer.TYPE_BYTE, compression);
+		var buffer = new DataBufferByte(WIDTH * HEIGHT, 2);
+		assertTrue(OmeroTiffDecoder.decode(tiff, buffer, 1, WIDTH, HEIGHT));
+		assertArrayEquals(((byte[][])readPixels(tiff))[0], buffer.getData(1));
+	}
+
+	@ParameterizedTest
+	@NullSource
+	@ValueSource(strings = {"Deflate", "ZLib"})
+	public void test_uint16(String compression) throws IOException {
+		byte[] tiff = writeTiff(DataBuffer.TYPE_USHORT, compression);
+		var buffer = new DataBufferUShort(WIDTH * HEIGHT, 2);
+		assertTrue(OmeroTiffDecoder.decode(tiff, buffer, 1, WIDTH, HEIGHT));
+		assertArrayEquals(((short[][])readPixels(tiff))[0], buffer.getData(1));
+	}
+
+	@ParameterizedTest
+	@NullSource
+	@ValueSource(strings = {"Deflate", "ZLib"})
+	public void test_float32(String compression) throws IOException {
+		byte[] tiff = writeTiff(DataBuffer.TYPE_FLOAT, compression);
+		var buffer = new DataBufferFloat(WIDTH * HEIGHT, 2);
+		assertTrue(OmeroTiffDecoder.decode(tiff, buffer, 1, WIDTH, HEIGHT));
+		assertArrayEquals(((float[][])readPixels(tiff))[0], buffer.getData(1));
+	}
+
+	/**
+	 * Decode a TIFF in the same way as the microservice tiles were decoded before {@link OmeroTiffDecoder}.
+	 */
+	private static Object readPixels(byte[] tiff) throws IOException {
+		BufferedImage img = ImageIO.read(new ByteArrayInputStream(tiff));
+		assertNotNull(img);
+		return AWTImageTools.getPixels(img);
+	}
+
+	/**
+	 * Encode a single channel image of random pixels as a TIFF.
+	 * @param dataType data type of the pixels
+	 * @param compression ImageIO compression type, or null for an uncompressed TIFF
+	 */
+	private static byte[] writeTiff(int dataType, String compression) throws IOException {
+		var colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+				false, false, Transparency.OPAQUE, dataType);
+		WritableRaster raster = colorModel.createCompatibleWritableRaster(WIDTH, HEIGHT);
+		var random = new Random(dataType);
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				if (dataType == DataBuffer.TYPE_FLOAT)
+					raster.setSample(x, y, 0, (float)random.nextGaussian() * 1000f);
+				else
+					raster.setSample(x, y, 0, random.nextInt(dataType == DataBuffer.TYPE_BYTE ? 256 : 65536));
+			}
+		}
+		var img = new BufferedImage(colorModel, raster, false, null);
+
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if (compression == null) {
+			param.setCompressionMode(ImageWriteParam.MODE_DISABLED);
+		} else {
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionType(compression);
+		}
+		var bytes = new ByteArrayOutputStream();
+		try (ImageOutputStream stream = ImageIO.createImageOutputStream(bytes)) {
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(img, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return bytes.toByteArray();
+	}
+
+}